@@ -0,0 +1,67 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times a whole generateWorld(), the way MapService runs it for a world
+ * that is not cached: init() and then every stage.  The builder is kept
+ * for the trial and has generated the world once already, so its grid and
+ * scratch buffers are reused as they are in the server.
+ *
+ * @author Odysseus Levy
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class GenerationBenchmark {
+
+    //-------------------------------------------------------------------
+    // Parameters
+    //
+    @Param({"64", "256", "1024", "4096"})
+    public int dimension;
+
+    @Param({"1", "4"})
+    public int iNumSeasons;
+
+    @Param({"0.5", "0.7", "0.9"})
+    public float fRoughness;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private MapBuilder pBuilder;
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    @Setup(Level.Trial)
+    public void setUp ()  {
+        pBuilder = MapBenchmarks.createBuilder(dimension, iNumSeasons, fRoughness);
+        pBuilder.generateWorld();
+    }
+
+    @Benchmark
+    public HexGrid generateWorld ()  {
+        pBuilder.reset();
+        pBuilder.generateWorld();
+        return pBuilder.getGrid();
+    }
+}
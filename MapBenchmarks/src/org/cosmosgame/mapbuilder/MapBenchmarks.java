@@ -0,0 +1,76 @@
+package org.cosmosgame.mapbuilder;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The MapBenchmarks class runs the JMH benchmarks of world generation:
+ * StageBenchmark times each MapStage on its own, GenerationBenchmark times
+ * a whole generateWorld().
+ *
+ * The benchmarks are run with the GC profiler, so every result carries
+ * the bytes allocated per operation next to the time, and the results are
+ * written as JSON, to mapbuilder-jmh.json unless -rff names another file,
+ * so that the runs of two builds can be compared.  Any other JMH option
+ * can be given as well, for example
+ *
+ *      MapBenchmarks -p dimension=256,1024 -p sStage=rainfall
+ *
+ * This module needs annotation processing turned on, for the JMH
+ * generator to write the benchmark harness.
+ *
+ * @author Odysseus Levy
+ */
+
+public class MapBenchmarks {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    /**
+     Every benchmark generates the same worlds.
+     */
+    public static final long SEED = 42;
+
+    public static final String RESULTS = "mapbuilder-jmh.json";
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public static void main (String [] args) throws RunnerException, CommandLineOptionException  {
+        CommandLineOptions pCommandLine = new CommandLineOptions(args);
+        Options pOptions = new OptionsBuilder()
+                .parent(pCommandLine)
+                .include(StageBenchmark.class.getSimpleName())
+                .include(GenerationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(pCommandLine.getResult().orElse(RESULTS))
+                .build();
+        new Runner(pOptions).run();
+    }
+
+    /**
+     Returns a quiet builder, initialized for a map of the given size and
+     roughness grown from SEED.
+     */
+    static MapBuilder createBuilder (int iDimension, int iNumSeasons, float fRoughness)  {
+        MapParams pParams = new MapParams();
+        pParams.dimension = iDimension;
+        pParams.iNumSeasons = iNumSeasons;
+        pParams.fRoughness = fRoughness;
+        pParams.lSeed = SEED;
+
+        MapBuilder pBuilder = new MapBuilder();
+        pBuilder.logger.setLevel(Logger.OFF);
+        pBuilder.init(pParams);
+        return pBuilder;
+    }
+}
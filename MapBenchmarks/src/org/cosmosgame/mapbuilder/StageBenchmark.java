@@ -0,0 +1,82 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times one MapStage of world generation on its own.  The whole world is
+ * generated once per trial, so that the stage finds its inputs in place
+ * and the builder's grid and scratch buffers already allocated; each
+ * operation then runs the stage again.  Every stage computes the same
+ * result from the same inputs, so the world does not drift between runs.
+ *
+ * @author Odysseus Levy
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class StageBenchmark {
+
+    //-------------------------------------------------------------------
+    // Parameters
+    //
+    @Param({"64", "256", "1024", "4096"})
+    public int dimension;
+
+    @Param({"1", "4"})
+    public int iNumSeasons;
+
+    @Param({"0.7"})
+    public float fRoughness;
+
+    @Param({"elevation", "elevation terrain", "temperature", "pressure", "wind",
+            "rainfall", "climate", "terrain", "rivers", "shorelines"})
+    public String sStage;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private MapBuilder pBuilder;
+    private MapStage pStage;
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    @Setup(Level.Trial)
+    public void setUp ()  {
+        pBuilder = MapBenchmarks.createBuilder(dimension, iNumSeasons, fRoughness);
+        pBuilder.generateWorld();
+
+        for (MapStage pNext : pBuilder.getStages())  {
+            if (pNext.getName().equals(sStage))  {
+                pStage = pNext;
+            }
+        }
+        if (pStage == null)  {
+            throw new IllegalArgumentException("No stage named " + sStage
+                                               + " in " + pBuilder.getStages());
+        }
+    }
+
+    @Benchmark
+    public HexGrid runStage ()  {
+        pStage.run();
+        return pBuilder.getGrid();
+    }
+}
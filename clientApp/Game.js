@@ -89,23 +89,110 @@ document.onkeyup = function( event )
 } 
 
 var isGetting;  /* jQuery get lock. */ 
-var model = new Array();      /* the client's copy of the current server game graph model. */
+var model = new Object();     /* the client's copy of the current server game graph model; key:sprite id, val:sprite. */
+var modelVersion = null;      /* the version of the model the server last sent us; null until it has. */
 
 var GET_JSON_URL = "http://localhost:8080/shooter/update/index?callback=?";  /* the special url to get our game model. */
+var STREAM_URL = "http://localhost:8080/shooter/update/stream";               /* the server pushes the model's updates here. */
+
+var stream = null;            /* our EventSource, once opened. */
+var isPolling = false;        /* true once the stream has failed; we poll GET_JSON_URL instead. */
 
 /*
-*   return our jquery get results.
+*   bring our model up to date with an update from the server,
+*   { version, full, sprites, removed }.
+*   a full update replaces the model; otherwise the sprites are merged in by id,
+*   and the removed ids dropped.
+*/
+var applyUpdate = function( update )
+{
+    if ( update.full )
+    {
+        model = new Object();
+    }
+    else
+    {
+        $.each( update.removed, function( i, id )
+        {
+            delete model[ id ];
+        });
+    }
+
+    $.each( update.sprites, function( i, sprite )
+    {
+        model[ sprite.id ] = sprite;
+    });
+
+    modelVersion = update.version;
+}
+
+/*
+*   open our stream of updates, pushed by the server as they happen,
+*   starting from the last version we saw.  each "state" event is an update
+*   for applyUpdate.  a dropped connection is reopened by the browser;
+*   if it gives up, or the server is full (503), we poll instead.
+*/
+var openStream = function()
+{
+    if ( !window.EventSource )
+    {
+        isPolling = true;
+        return;
+    }
+
+    var url = STREAM_URL;
+    if ( modelVersion !== null )
+            url += "?since=" + modelVersion;
+
+    stream = new EventSource( url );
+    stream.addEventListener( "state", function( event )
+    {
+        applyUpdate( $.parseJSON( event.data ) );
+    }, false );
+    stream.onerror = function()
+    {
+        if ( stream.readyState == EventSource.CLOSED )
+        {
+            console.warn( "update stream closed; polling instead." );
+            stream = null;
+            isPolling = true;
+        }
+    };
+}
+
+/*
+*   keep our model up to date: from the stream, or by polling if we must.
 */
 var refreshModel = function()
+{
+    if ( !isPolling )
+    {
+        if ( !stream )
+                openStream();
+        return;
+    }
+
+    pollModel();
+}
+
+/*
+*   return our jquery get results.
+*   we send the last version we saw, and get only what changed since.
+*/
+var pollModel = function()
 {
     if ( isGetting ) 
             return;
 
     isGetting = true; 
-    $.getJSON( GET_JSON_URL, 
+    var url = GET_JSON_URL;
+    if ( modelVersion !== null )
+            url += "&since=" + modelVersion;
+
+    $.getJSON( url, 
             function( jason )
             {  
-                model = jason; 
+                applyUpdate( jason ); 
                 isGetting = false;  // release lock.
             } );
 } 
@@ -122,7 +209,7 @@ var GAME_LOOP_TIMEOUT = 20;     /* 1000/50 = 20; the rate at which our game loop
 
 /*
 *   the client's game loop is responsible for 3 things:
-*       1.) get/pull our server's model.
+*       1.) get our server's model, pushed or pulled.
 *       2.) draw out our current copy of the model.
 *       3.) push out batched user inputs.
 *
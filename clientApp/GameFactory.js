@@ -28,17 +28,18 @@ function GameFactory()
     *   draw our game graph onto the canvas.
     *
     *   @param ctx      the drawing canvas 2d context.
-    *   @param model    the game graph as a json list of objects. 
+    *   @param model    the game graph, the sprites by id. 
     */
     this.drawModel = function( ctx, model )
     {
+        var self = this;
         var x, y, fileName;
-        $.each( model, function( item ) 
+        $.each( model, function( id, item ) 
         {
             x = item.x; 
             y = item.y;
             fileName = "ship.png";  // TODO!
-            drawSprite( ctx, x, y, fileName );
+            self.drawSprite( ctx, x, y, fileName );
         });
     }
 
@@ -53,11 +54,11 @@ function GameFactory()
     */
     this.drawSprite = function( ctx, x, y, fileName )
     {
-        res = images.fileName;
+        var image = images[ fileName ];
 
         try
         {
-            ctx.drawImage( res.image, x, y );
+            ctx.drawImage( image, x, y );
         }
         catch ( e )
         {
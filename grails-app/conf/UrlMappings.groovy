@@ -7,6 +7,10 @@ class UrlMappings {
 			}
 		}
 
+		"/world"(controller:"update", action:"world")
+		"/world/$worldId/tile/$tx/$ty"(controller:"update", action:"tile")
+		"/world/$worldId/level/$level"(controller:"update", action:"level")
+
 		"/"(view:"/index")
 		"500"(view:'/error')
 	}
@@ -7,7 +7,23 @@ beans =
                 dimension = 256
             }
     mapBuilder(org.cosmosgame.mapbuilder.MapBuilder)
+            { bean ->
+                // publish generation progress and stage timings over JMX
+                bean.initMethod = 'registerMonitor'
+                bean.destroyMethod = 'unregisterMonitor'
+            }
+    worldCache(org.cosmosgame.mapbuilder.WorldCache)
             {
-
+                maxBytes = 256L * 1024 * 1024
+                // set to a directory to keep evicted worlds on disk
+                spillDirectory = null
+            }
+    stateStream(org.cosmosgame.grailsgame.StateStream)
+            { bean ->
+                // pushes each game tick to the clients of UpdateController.stream;
+                // GameService makes itself the source once it is wired
+                threads = 4
+                maxSubscribers = 1000
+                bean.destroyMethod = 'shutdown'
             }
 }
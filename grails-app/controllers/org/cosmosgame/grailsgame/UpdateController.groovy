@@ -1,20 +1,163 @@
 package org.cosmosgame.grailsgame
 
 import grails.converters.JSON
+import org.cosmosgame.mapbuilder.Hex
 import org.cosmosgame.mapbuilder.MapBuilder
+import org.cosmosgame.mapbuilder.TerrainPyramid
+import org.cosmosgame.mapbuilder.TerrainTiles
 
 class UpdateController {
 
     GameService gameService;
     MapService mapService;
+    StateStream stateStream;
     
+    /**
+     * Sends the sprites that changed since the version the client last saw,
+     * given as since; see GameService.getUpdate.  Without since, or when it
+     * is too old, every sprite is sent.  With callback, as JSONP, for the
+     * client in clientApp, which is served from elsewhere.
+     */
     def index()
     {
-        render gameService.getGameState() as JSON
+        JSON update = gameService.getUpdate(params.long('since')) as JSON
+        String callback = params.callback
+        if (callback && callback ==~ '[A-Za-z_\\$][\\w\\$.]*')
+        {
+            render contentType: "application/javascript", text: "${callback}(${update});"
+            return
+        }
+        render update
+    }
+
+    /**
+     * Pushes the same updates as index() as they happen, as Server-Sent
+     * Events (see StateStream), for a browser EventSource.  It starts from
+     * since, or from the Last-Event-ID an EventSource sends when it
+     * reconnects, which is newer than the since in the URL it reopens.
+     * Answers 503 when the node has as many streams as it allows; the
+     * client can fall back to polling index().
+     */
+    def stream()
+    {
+        Long since = params.long('since')
+        String lastEventId = request.getHeader("Last-Event-ID")
+        if (lastEventId?.isLong())
+        {
+            since = lastEventId.toLong()
+        }
+        // the client in clientApp is served from elsewhere
+        response.setHeader("Access-Control-Allow-Origin", "*")
+        if (!stateStream.hasRoom())
+        {
+            render status: 503
+            return
+        }
+
+        def ctx = startAsync()
+        if (!stateStream.subscribe(ctx, since == null ? -1L : since))
+        {
+            ctx.response.status = 503
+            ctx.complete()
+        }
     }
     
+    /**
+     * Sends the terrain of the whole world, run-length encoded by rows (see
+     * TerrainStream).  It is written as it is encoded, so no copy of the
+     * world is built for the response.
+     */
     def createWorld()
     {
-        render mapService.createWorld() as JSON;
+        response.contentType = "application/json;charset=UTF-8"
+        mapService.writeWorld(response.outputStream)
+        response.outputStream.flush()
+    }
+
+    /**
+     * Generates a world and describes its tiles, which are then fetched one
+     * at a time with tile(), and the levels of its pyramid, fetched with
+     * level().  levelDimensions[k] is the dimension of level k; level 0 is
+     * the world itself.
+     */
+    def world()
+    {
+        String worldId = mapService.createTiledWorld()
+        TerrainTiles tiles = mapService.getTiles(worldId)
+        TerrainPyramid pyramid = mapService.getPyramid(worldId)
+        if (tiles == null || pyramid == null)
+        {
+            // dropped again by a burst of other worlds
+            render status: 503
+            return
+        }
+        List<Integer> levelDimensions = (0..<pyramid.levelCount).collect { pyramid.getDimension(it) }
+        render([worldId: worldId, format: TerrainTiles.FORMAT, dimension: tiles.dimension,
+                tileSize: tiles.tileSize, tilesX: tiles.tilesX, tilesY: tiles.tilesY,
+                levelFormat: TerrainPyramid.FORMAT, levelDimensions: levelDimensions,
+                terrainNames: Hex.sTerrainLongString] as JSON)
+    }
+
+    /**
+     * Sends one tile of a world, encoded as described in TerrainTiles.  A
+     * world that is no longer held gives 404; the client should then ask
+     * for the world again.
+     */
+    def tile()
+    {
+        TerrainTiles tiles = mapService.getTiles(params.worldId)
+        Integer tx = params.int('tx')
+        Integer ty = params.int('ty')
+        if (tiles == null || tx == null || ty == null || !tiles.hasTile(tx, ty))
+        {
+            render status: 404
+            return
+        }
+
+        // a world never changes, so neither do its tiles
+        String etag = "\"${params.worldId}-${tx}-${ty}\""
+        response.setHeader("ETag", etag)
+        response.setHeader("Cache-Control", "public, max-age=86400")
+        if (request.getHeader("If-None-Match") == etag)
+        {
+            render status: 304
+            return
+        }
+
+        byte[] bytes = tiles.getTile(tx, ty)
+        response.contentType = "application/octet-stream"
+        response.contentLength = bytes.length
+        response.outputStream.write(bytes)
+        response.outputStream.flush()
+    }
+
+    /**
+     * Sends one level of a world's pyramid, encoded as described in
+     * TerrainPyramid, for views too far out to need the tiles.
+     */
+    def level()
+    {
+        TerrainPyramid pyramid = mapService.getPyramid(params.worldId)
+        Integer level = params.int('level')
+        if (pyramid == null || level == null || !pyramid.hasLevel(level))
+        {
+            render status: 404
+            return
+        }
+
+        String etag = "\"${params.worldId}-L${level}\""
+        response.setHeader("ETag", etag)
+        response.setHeader("Cache-Control", "public, max-age=86400")
+        if (request.getHeader("If-None-Match") == etag)
+        {
+            render status: 304
+            return
+        }
+
+        byte[] bytes = pyramid.getLevel(level)
+        response.contentType = "application/octet-stream"
+        response.contentLength = bytes.length
+        response.outputStream.write(bytes)
+        response.outputStream.flush()
     }
 }
@@ -1,49 +1,35 @@
 package org.cosmosgame.grailsgame
 
 import org.cosmosgame.grailsgame.Sprite
+import org.cosmosgame.mapbuilder.Logger
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.InitializingBean
 
-class GameService {
+class GameService implements StateSource, InitializingBean, DisposableBean {
 
-    GameTimerTask gameTimerTask;
-    Timer timer;
+    // the stream reads it every tick; no transaction, and no proxy around it
+    static transactional = false
+
+    StateStream stateStream; // injected bean
+
+    // runs the simulation; the sprites are views of its entities
+    FixedStepGameEngine engine;
 
     Sprite sprite1;
     Sprite sprite2;
-    def sprites;
     static int maxwidth = 800;
     static int maxheight= 1200;
 
-    class GameTimerTask extends TimerTask
-    {
-        def sprites;
+    // a client further behind than this gets the whole state again
+    static final int MAX_DELTA_TICKS = 200
 
-        public GameTimerTask(sprites)
-        {
-            this.sprites = sprites;
-        }
-
-        public void run() {
-            sprites.each
-                    { it.x += it.deltaX
-                        if (it.x >= maxwidth )
-                            it.x = 0;
-                        else if (it.x < 0)
-                        {
-                            it.x = width - it.width;
-                        }
-
-                        it.y += it.deltaY;
-                        if (it.y >= maxwidth)
-                            it.y = 0;
-                        else if (it.y < 0)
-                        {
-                            it.y = maxheight = it.height;
-                        }
-                    }
-        }
-    }
-
-    GameService()
+    /**
+     * Loads the game and starts the engine, once the service is wired, and
+     * makes the service the stream's source.  It is set here, not in
+     * resources.groovy, so that the two beans don't refer to each other.
+     * Nothing is started in the constructor, which a proxy may run again.
+     */
+    void afterPropertiesSet()
     {
         Sprite sprite1 = new Sprite()
         sprite1.x = 20;
@@ -63,14 +49,69 @@ class GameService {
         sprite2.deltaY = 5;
         sprite2.name = "Ship 2 (grailsgame)"
 
-        sprites = [sprite1, sprite2];
-        gameTimerTask = new GameTimerTask(sprites);
-        timer = new Timer();
-        timer.scheduleAtFixedRate(gameTimerTask, 5, 50)
+        engine = new FixedStepGameEngine(maxwidth, maxheight)
+        engine.history = MAX_DELTA_TICKS
+        engine.load(new Game(name: "grailsgame"))
+        engine.addSprite(sprite1)
+        engine.addSprite(sprite2)
+        // the stream does its work on its own threads
+        engine.tickListener = { stateStream?.publishLater() } as Runnable
+
+        stateStream?.source = this
+        engine.start()
+    }
 
+    /**
+     * Stops the engine's thread, and the logger's, when the context closes,
+     * as on a reload; either would keep the old application loaded.
+     */
+    void destroy()
+    {
+        engine?.stop()
+        Logger.shutdown()
     }
 
     def getGameState() {
-        return sprites;
+        return engine.state;
+    }
+
+    void addSprite(Sprite sprite)
+    {
+        engine.addSprite(sprite)
+    }
+
+    void removeSprite(Sprite sprite)
+    {
+        engine.removeSprite(sprite)
+    }
+
+    /**
+     * Returns what changed since the client's version: the sprites added or
+     * moved after it, and the ids of those removed after it.  A client
+     * with no version, one from before MAX_DELTA_TICKS, or one the service
+     * has never handed out, gets every sprite with full set to true.
+     *
+     *      [version: 1234, full: false,
+     *       sprites: [[id: 1, name: "Ship 1", x: 25, y: 20, ...], ...],
+     *       removed: [3, 7]]
+     */
+    Map getUpdate(Long since)
+    {
+        return engine.getChanges(since == null ? -1L : since).toMap()
+    }
+
+    /**
+     * The update for StateStream, as JSON, or null if nothing changed.  Only
+     * the changed sprites are copied out of the engine, and they are written
+     * straight from its arrays.
+     */
+    StateStream.Update getStreamUpdate(long since)
+    {
+        StateChanges changes = engine.getChanges(since)
+        if (changes.empty)
+        {
+            return null
+        }
+        return new StateStream.Update(changes.lVersion, changes.toJson())
     }
 }
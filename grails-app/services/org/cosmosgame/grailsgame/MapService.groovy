@@ -6,19 +6,125 @@ class MapService {
 
     MapBuilder mapBuilder; // injected bean
     MapParams mapParams;   // injected bean
+    WorldCache worldCache; // injected bean
 
-    TerrainMap createWorld()
+    static final int MAX_TILED_WORLDS = 8
+
+    // worlds being served as tiles, by world id, least recently used first
+    private final Map<String, TerrainTiles> tiledWorlds = new LinkedHashMap<String, TerrainTiles>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, TerrainTiles> eldest)
+        {
+            return size() > MAX_TILED_WORLDS
+        }
+    }
+
+    // the level-of-detail pyramids of the same worlds
+    private final Map<String, TerrainPyramid> worldPyramids = new LinkedHashMap<String, TerrainPyramid>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, TerrainPyramid> eldest)
+        {
+            return size() > MAX_TILED_WORLDS
+        }
+    }
+
+    /**
+     * Generates the world and writes its terrain to out, run-length
+     * encoded as described in TerrainStream, straight from the grid.
+     */
+    void writeWorld(OutputStream out)
     {
-        
-        mapBuilder.init(mapParams);
-        mapBuilder.generateWorld();
+        TerrainStream.write(generateWorld(mapParams), out)
+    }
 
-        List hexes = mapBuilder.hex;
+    /**
+     * Generates a world, unless it is already being served as tiles, and
+     * returns the id its tiles and pyramid are served under.  Worlds that
+     * can be cached are known by their cache key, random ones get an id of
+     * their own.
+     */
+    String createTiledWorld()
+    {
+        return createTiledWorld(mapParams)
+    }
 
-        List result = []
+    String createTiledWorld(MapParams params)
+    {
+        String worldId = worldCache.isCacheable(params) ? params.cacheKey : UUID.randomUUID().toString()
+        if (getTiles(worldId) == null)
+        {
+            HexGrid grid = generateWorld(params)
+            TerrainTiles tiles = new TerrainTiles(grid)
+            TerrainPyramid pyramid = new TerrainPyramid(grid, mapBuilder.executor)
+            synchronized (tiledWorlds)
+            {
+                tiledWorlds.put(worldId, tiles)
+                worldPyramids.put(worldId, pyramid)
+            }
+        }
+        return worldId
+    }
 
-        hexes.each { result << new Terrain(gridX: it.getX(), gridY: it.getY(), terrainType: it.getTerrainType(), terrainName: it.getTerrainName())}
-        TerrainMap map = new TerrainMap(terrains: result);
-        return map;
+    /**
+     * Returns the tiles of a world created by createTiledWorld, or null if
+     * the world is no longer held.
+     */
+    TerrainTiles getTiles(String worldId)
+    {
+        synchronized (tiledWorlds)
+        {
+            return tiledWorlds.get(worldId)
+        }
+    }
+
+    /**
+     * Returns the level-of-detail pyramid of a world created by
+     * createTiledWorld, or null if the world is no longer held.
+     */
+    TerrainPyramid getPyramid(String worldId)
+    {
+        synchronized (tiledWorlds)
+        {
+            return worldPyramids.get(worldId)
+        }
+    }
+
+    /**
+     * Returns the world for the given parameters, from the cache if it has
+     * already been generated.  The grid returned must not be modified.
+     */
+    HexGrid generateWorld(MapParams params)
+    {
+        HexGrid grid = worldCache.get(params)
+        if (grid == null)
+        {
+            synchronized (mapBuilder)
+            {
+                if (worldCache.isCacheable(params))
+                {
+                    // only the stages whose parameters changed since the
+                    // builder's last world are run again
+                    mapBuilder.updateWorld(params)
+                }
+                else
+                {
+                    mapBuilder.init(params);
+                    mapBuilder.generateWorld();
+                }
+
+                // the builder reuses its grid, so the cache gets a copy
+                grid = mapBuilder.grid.copy()
+                log.info(mapBuilder.monitor.lastGenerationSummary)
+            }
+            worldCache.put(params, grid)
+        }
+        return grid
+    }
+
+    /**
+     * Returns the stage timings of the last world generated, or null if
+     * none has been.
+     */
+    GenerationSummary getLastSummary()
+    {
+        return mapBuilder.monitor.lastGenerationSummary
     }
 }
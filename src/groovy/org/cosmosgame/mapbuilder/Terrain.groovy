@@ -1,12 +0,0 @@
-package org.cosmosgame.mapbuilder
-
-/**
-* Bean object represents info about a given area
-*/
-class Terrain {
-
-  byte terrainType;
-  String terrainName;
-  int gridX,gridY;
-  float height;
-}
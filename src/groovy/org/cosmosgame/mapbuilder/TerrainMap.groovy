@@ -1,9 +0,0 @@
-package org.cosmosgame.mapbuilder
-
-/**
-* Holds a world map. Returned to client
-*/
-class TerrainMap {
-  
-  List terrains;
-}
@@ -0,0 +1,428 @@
+package org.cosmosgame.grailsgame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cosmosgame.mapbuilder.Logger;
+
+/**
+ * The FixedStepGameEngine class runs the game simulation.  The entities are
+ * kept in parallel arrays of floats (position, velocity, size), which a
+ * step advances in one pass with a fixed time step:
+ *
+ *      x += vx * dt,  y += vy * dt,  wrapped to the world
+ *
+ * The loop thread steps at a fixed rate, catching up with several steps
+ * if it falls behind, and skipping time it can not catch up with after
+ * MAX_CATCH_UP steps, so the simulation is the same whatever the load.
+ *
+ * A Sprite is a view of an entity, for persistence: its fields are copied
+ * into the arrays when it is added, and refreshed from them by getState().
+ * Velocities in a Sprite (deltaX, deltaY) are per step, as the old timer
+ * moved them; the arrays keep them per second.
+ *
+ * Clients are sent changes, not Sprites.  The state has a version, which
+ * every step, add and remove moves on; each entity has an id that is never
+ * reused and the version it was added at, and each removal leaves its id
+ * with the version it went at, for iHistory versions.  getChanges() works
+ * out what changed since a version from those, counting an entity that
+ * moves as changed by every step, so a step does no more than move the
+ * entities.
+ *
+ * @author Odysseus Levy
+ */
+
+public class FixedStepGameEngine implements IGameEngine {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final long DEFAULT_STEP_NANOS = 50000000L;           // 20 steps a second
+    public static final int MAX_CATCH_UP = 5;
+    public static final int DEFAULT_HISTORY = 200;                    // versions
+    private static final int INITIAL_CAPACITY = 64;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    public Logger logger = new Logger();
+
+    private final Object pLock = new Object();
+    private final long lStepNanos;
+    private final float fStep;                  // seconds
+    private final float fWorldWidth;
+    private final float fWorldHeight;
+
+    private Game pGame;
+    private int iCount;
+    private float [] fX = new float [INITIAL_CAPACITY];
+    private float [] fY = new float [INITIAL_CAPACITY];
+    private float [] fVX = new float [INITIAL_CAPACITY];
+    private float [] fVY = new float [INITIAL_CAPACITY];
+    private float [] fWidth = new float [INITIAL_CAPACITY];
+    private float [] fHeight = new float [INITIAL_CAPACITY];
+    private int [] iIds = new int [INITIAL_CAPACITY];
+    private long [] lAdded = new long [INITIAL_CAPACITY];
+    private String [] sNames = new String [INITIAL_CAPACITY];
+    private int [] iScratch = new int [INITIAL_CAPACITY];      // for getChanges()
+    private Sprite [] pViews = new Sprite [INITIAL_CAPACITY];
+    private final Map<Sprite, Integer> pIndexOf = new IdentityHashMap<Sprite, Integer>();
+    private long lSteps;
+
+    private int iNextId = 1;
+    private int iHistory = DEFAULT_HISTORY;
+    private long lVersion;
+    private long lLoaded;                       // the version of the last load()
+    private long lStepped;                      // the version of the last step
+    // the ids of removed entities, with the version they went at, oldest first
+    private final LinkedHashMap<Integer, Long> pRemovedAt = new LinkedHashMap<Integer, Long>();
+
+    private volatile Runnable pTickListener;
+    private volatile Thread pLoop;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    public FixedStepGameEngine (float fWorldWidth, float fWorldHeight)  {
+        this(fWorldWidth, fWorldHeight, DEFAULT_STEP_NANOS);
+    }
+
+    public FixedStepGameEngine (float fWorldWidth, float fWorldHeight, long lStepNanos)  {
+        if (fWorldWidth <= 0 || fWorldHeight <= 0 || lStepNanos <= 0)  {
+            throw new IllegalArgumentException("Bad world " + fWorldWidth + "x" + fWorldHeight
+                                               + " or step " + lStepNanos + " ns");
+        }
+        this.fWorldWidth = fWorldWidth;
+        this.fWorldHeight = fWorldHeight;
+        this.lStepNanos = lStepNanos;
+        this.fStep = lStepNanos / 1e9f;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public Game getGame ()  {
+        synchronized (pLock)  {
+            return pGame;
+        }
+    }
+
+    public int getEntityCount ()  {
+        synchronized (pLock)  {
+            return iCount;
+        }
+    }
+
+    /**
+     Returns the number of steps run since the last load().
+     */
+    public long getStepCount ()  {
+        synchronized (pLock)  {
+            return lSteps;
+        }
+    }
+
+    public long getVersion ()  {
+        synchronized (pLock)  {
+            return lVersion;
+        }
+    }
+
+    /**
+     Sets how many versions back getChanges() answers with changes, rather
+     than the whole state.
+     */
+    public void setHistory (int iHistory)  {
+        synchronized (pLock)  {
+            this.iHistory = iHistory;
+        }
+    }
+
+    public boolean isRunning ()  {
+        return pLoop != null;
+    }
+
+    /**
+     Called on the loop thread after every step, outside the engine's lock.
+     */
+    public void setTickListener (Runnable pTickListener)  {
+        this.pTickListener = pTickListener;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public synchronized void start ()  {
+        if (pLoop != null)  {
+            return;
+        }
+        pLoop = new Thread(new Runnable()  {
+            public void run ()  {
+                loop();
+            }
+        }, "Game engine");
+        pLoop.setDaemon(true);
+        pLoop.start();
+    }
+
+    public synchronized void stop ()  {
+        Thread pThread = pLoop;
+        if (pThread == null)  {
+            return;
+        }
+        pLoop = null;
+        LockSupport.unpark(pThread);
+        if (pThread != Thread.currentThread())  {
+            try  {
+                pThread.join();
+            }
+            catch (InterruptedException e)  {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     Makes g the game being run, with no entities yet.
+     */
+    public void load (Game g)  {
+        synchronized (pLock)  {
+            pGame = g;
+            Arrays.fill(pViews, 0, iCount, null);
+            Arrays.fill(sNames, 0, iCount, null);
+            pIndexOf.clear();
+            pRemovedAt.clear();
+            iCount = 0;
+            lSteps = 0;
+            lLoaded = ++lVersion;
+        }
+    }
+
+    /**
+     Adds an entity with the sprite's position, size and velocity.  The
+     sprite becomes its view.
+     */
+    public void addSprite (Sprite pSprite)  {
+        synchronized (pLock)  {
+            if (pIndexOf.containsKey(pSprite))  {
+                return;
+            }
+            if (iCount == fX.length)  {
+                grow(2 * iCount);
+            }
+            int i = iCount++;
+            fX[i] = pSprite.getX();
+            fY[i] = pSprite.getY();
+            fVX[i] = pSprite.getDeltaX() / fStep;
+            fVY[i] = pSprite.getDeltaY() / fStep;
+            fWidth[i] = pSprite.getWidth();
+            fHeight[i] = pSprite.getHeight();
+            iIds[i] = iNextId++;
+            lAdded[i] = ++lVersion;
+            sNames[i] = pSprite.getName();
+            pViews[i] = pSprite;
+            pIndexOf.put(pSprite, i);
+        }
+    }
+
+    /**
+     Removes the sprite's entity; the last entity takes its place.
+     */
+    public void removeSprite (Sprite pSprite)  {
+        synchronized (pLock)  {
+            Integer k = pIndexOf.remove(pSprite);
+            if (k == null)  {
+                return;
+            }
+            int i = k, iLast = --iCount;
+            pRemovedAt.put(iIds[i], ++lVersion);
+            pruneRemoved();
+            if (i != iLast)  {
+                fX[i] = fX[iLast];
+                fY[i] = fY[iLast];
+                fVX[i] = fVX[iLast];
+                fVY[i] = fVY[iLast];
+                fWidth[i] = fWidth[iLast];
+                fHeight[i] = fHeight[iLast];
+                iIds[i] = iIds[iLast];
+                lAdded[i] = lAdded[iLast];
+                sNames[i] = sNames[iLast];
+                pViews[i] = pViews[iLast];
+                pIndexOf.put(pViews[i], i);
+            }
+            sNames[iLast] = null;
+            pViews[iLast] = null;
+        }
+    }
+
+    /**
+     Returns a Sprite per entity, refreshed from the arrays.  The list is
+     new on each call; the sprites are the entities' views.
+     */
+    public List getState ()  {
+        synchronized (pLock)  {
+            List<Sprite> pState = new ArrayList<Sprite>(iCount);
+            for (int i = 0; i < iCount; i++)  {
+                Sprite pSprite = pViews[i];
+                pSprite.setX(Math.round(fX[i]));
+                pSprite.setY(Math.round(fY[i]));
+                pSprite.setWidth(Math.round(fWidth[i]));
+                pSprite.setHeight(Math.round(fHeight[i]));
+                pSprite.setDeltaX(Math.round(fVX[i] * fStep));
+                pSprite.setDeltaY(Math.round(fVY[i] * fStep));
+                pState.add(pSprite);
+            }
+            return pState;
+        }
+    }
+
+    /**
+     Returns what changed since version lSince: the entities added or moved
+     after it, and the ids of those removed after it.  The whole state, with
+     bFull set, if lSince is -1, from before the last load(), more than
+     iHistory versions old, or not a version yet.
+     */
+    public StateChanges getChanges (long lSince)  {
+        synchronized (pLock)  {
+            boolean bFull = lSince < lLoaded || lSince > lVersion || lVersion - lSince > iHistory;
+            boolean bStepped = lSince < lStepped;
+            int [] iChanged = iScratch;
+            int n = 0;
+            for (int i = 0; i < iCount; i++)  {
+                if (bFull || lAdded[i] > lSince || (bStepped && (fVX[i] != 0 || fVY[i] != 0)))  {
+                    iChanged[n++] = i;
+                }
+            }
+
+            int [] iRemoved = new int [0];
+            if (!bFull)  {
+                pruneRemoved();
+                int r = 0;
+                for (Map.Entry<Integer, Long> pEntry : pRemovedAt.entrySet())  {
+                    if (pEntry.getValue() > lSince)  {
+                        if (r == iRemoved.length)  {
+                            iRemoved = Arrays.copyOf(iRemoved, Math.max(4, 2 * r));
+                        }
+                        iRemoved[r++] = pEntry.getKey();
+                    }
+                }
+                iRemoved = Arrays.copyOf(iRemoved, r);
+            }
+
+            StateChanges pChanges = new StateChanges(lVersion, bFull, n, iRemoved);
+            for (int k = 0; k < n; k++)  {
+                int i = iChanged[k];
+                pChanges.iIds[k] = iIds[i];
+                pChanges.sNames[k] = sNames[i];
+                pChanges.iX[k] = Math.round(fX[i]);
+                pChanges.iY[k] = Math.round(fY[i]);
+                pChanges.iWidth[k] = Math.round(fWidth[i]);
+                pChanges.iHeight[k] = Math.round(fHeight[i]);
+                pChanges.iDeltaX[k] = Math.round(fVX[i] * fStep);
+                pChanges.iDeltaY[k] = Math.round(fVY[i] * fStep);
+            }
+            return pChanges;
+        }
+    }
+
+    /**
+     Runs one step now, then the tick listener.  The loop thread calls this;
+     it may also be called while the engine is stopped.
+     */
+    public void tick ()  {
+        step();
+        Runnable pListener = pTickListener;
+        if (pListener != null)  {
+            pListener.run();
+        }
+    }
+
+    private void step ()  {
+        synchronized (pLock)  {
+            float dt = fStep, w = fWorldWidth, h = fWorldHeight;
+            float [] x = fX, y = fY, vx = fVX, vy = fVY;
+            for (int i = 0, n = iCount; i < n; i++)  {
+                float fNewX = x[i] + vx[i] * dt;
+                if (fNewX >= w)  {
+                    fNewX -= w;
+                }
+                else if (fNewX < 0)  {
+                    fNewX += w;
+                }
+                x[i] = fNewX;
+
+                float fNewY = y[i] + vy[i] * dt;
+                if (fNewY >= h)  {
+                    fNewY -= h;
+                }
+                else if (fNewY < 0)  {
+                    fNewY += h;
+                }
+                y[i] = fNewY;
+            }
+            lSteps++;
+            lStepped = ++lVersion;
+        }
+    }
+
+    /**
+     Forgets the removals no delta reaches back to.
+     */
+    private void pruneRemoved ()  {
+        Iterator<Long> it = pRemovedAt.values().iterator();
+        while (it.hasNext() && lVersion - it.next() > iHistory)  {
+            it.remove();
+        }
+    }
+
+    private void loop ()  {
+        long lNext = System.nanoTime() + lStepNanos;
+        Thread pSelf = Thread.currentThread();
+        while (pLoop == pSelf)  {
+            long lWait = lNext - System.nanoTime();
+            if (lWait > 0)  {
+                LockSupport.parkNanos(lWait);
+                continue;
+            }
+            int iSteps = 0;
+            while (lNext - System.nanoTime() <= 0 && iSteps < MAX_CATCH_UP && pLoop == pSelf)  {
+                try  {
+                    tick();
+                }
+                catch (RuntimeException e)  {
+                    // a bad step must not stop the game
+                    logger.error(e);
+                }
+                lNext += lStepNanos;
+                iSteps++;
+            }
+            if (lNext - System.nanoTime() <= 0)  {
+                // too far behind to catch up; let the time go
+                lNext = System.nanoTime() + lStepNanos;
+            }
+        }
+    }
+
+    private void grow (int iCapacity)  {
+        fX = Arrays.copyOf(fX, iCapacity);
+        fY = Arrays.copyOf(fY, iCapacity);
+        fVX = Arrays.copyOf(fVX, iCapacity);
+        fVY = Arrays.copyOf(fVY, iCapacity);
+        fWidth = Arrays.copyOf(fWidth, iCapacity);
+        fHeight = Arrays.copyOf(fHeight, iCapacity);
+        iIds = Arrays.copyOf(iIds, iCapacity);
+        lAdded = Arrays.copyOf(lAdded, iCapacity);
+        sNames = Arrays.copyOf(sNames, iCapacity);
+        iScratch = new int [iCapacity];
+        pViews = Arrays.copyOf(pViews, iCapacity);
+    }
+}
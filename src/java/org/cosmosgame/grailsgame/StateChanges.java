@@ -0,0 +1,163 @@
+package org.cosmosgame.grailsgame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The StateChanges class holds what changed in the game since a version,
+ * as FixedStepGameEngine.getChanges() copied it out of the engine's arrays:
+ * the entities that changed, one per index of the arrays, and the ids of
+ * those removed.  When bFull is set the entities are all of them and there
+ * are no removals to apply.  Sent to a client it is
+ *
+ *      {"version":1234,"full":false,
+ *       "sprites":[{"id":1,"name":"Ship 1","x":25,"y":20,...},...],
+ *       "removed":[3,7]}
+ *
+ * Positions and sizes are rounded, and deltaX and deltaY are the moves
+ * per step, as in a Sprite.
+ *
+ * @author Odysseus Levy
+ */
+
+public class StateChanges {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    public final long lVersion;
+    public final boolean bFull;
+    public final int iCount;
+    public final int [] iIds;
+    public final String [] sNames;
+    public final int [] iX;
+    public final int [] iY;
+    public final int [] iWidth;
+    public final int [] iHeight;
+    public final int [] iDeltaX;
+    public final int [] iDeltaY;
+    public final int [] iRemoved;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    StateChanges (long lVersion, boolean bFull, int iCount, int [] iRemoved)  {
+        this.lVersion = lVersion;
+        this.bFull = bFull;
+        this.iCount = iCount;
+        this.iIds = new int [iCount];
+        this.sNames = new String [iCount];
+        this.iX = new int [iCount];
+        this.iY = new int [iCount];
+        this.iWidth = new int [iCount];
+        this.iHeight = new int [iCount];
+        this.iDeltaX = new int [iCount];
+        this.iDeltaY = new int [iCount];
+        this.iRemoved = iRemoved;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    /**
+     True if a client already at the version it was asked from has nothing
+     to be sent.
+     */
+    public boolean isEmpty ()  {
+        return !bFull && iCount == 0 && iRemoved.length == 0;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns the changes as maps and lists, for a JSON converter; a map per
+     changed entity is only made here.
+     */
+    public Map<String, Object> toMap ()  {
+        List<Map<String, Object>> pSprites = new ArrayList<Map<String, Object>>(iCount);
+        for (int k = 0; k < iCount; k++)  {
+            Map<String, Object> pSprite = new LinkedHashMap<String, Object>();
+            pSprite.put("id", iIds[k]);
+            pSprite.put("name", sNames[k]);
+            pSprite.put("x", iX[k]);
+            pSprite.put("y", iY[k]);
+            pSprite.put("width", iWidth[k]);
+            pSprite.put("height", iHeight[k]);
+            pSprite.put("deltaX", iDeltaX[k]);
+            pSprite.put("deltaY", iDeltaY[k]);
+            pSprites.add(pSprite);
+        }
+        List<Integer> pRemoved = new ArrayList<Integer>(iRemoved.length);
+        for (int id : iRemoved)  {
+            pRemoved.add(id);
+        }
+
+        Map<String, Object> pUpdate = new LinkedHashMap<String, Object>();
+        pUpdate.put("version", lVersion);
+        pUpdate.put("full", bFull);
+        pUpdate.put("sprites", pSprites);
+        pUpdate.put("removed", pRemoved);
+        return pUpdate;
+    }
+
+    /**
+     Returns the changes as JSON, written straight from the arrays.
+     */
+    public String toJson ()  {
+        StringBuilder sb = new StringBuilder(64 + 96 * iCount + 8 * iRemoved.length);
+        sb.append("{\"version\":").append(lVersion);
+        sb.append(",\"full\":").append(bFull);
+        sb.append(",\"sprites\":[");
+        for (int k = 0; k < iCount; k++)  {
+            if (k > 0)  {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(iIds[k]);
+            sb.append(",\"name\":");
+            appendString(sb, sNames[k]);
+            sb.append(",\"x\":").append(iX[k]);
+            sb.append(",\"y\":").append(iY[k]);
+            sb.append(",\"width\":").append(iWidth[k]);
+            sb.append(",\"height\":").append(iHeight[k]);
+            sb.append(",\"deltaX\":").append(iDeltaX[k]);
+            sb.append(",\"deltaY\":").append(iDeltaY[k]);
+            sb.append('}');
+        }
+        sb.append("],\"removed\":[");
+        for (int k = 0; k < iRemoved.length; k++)  {
+            if (k > 0)  {
+                sb.append(',');
+            }
+            sb.append(iRemoved[k]);
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static void appendString (StringBuilder sb, String s)  {
+        if (s == null)  {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int k = 0; k < s.length(); k++)  {
+            char c = s.charAt(k);
+            if (c == '"' || c == '\\')  {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20)  {
+                sb.append(String.format("\\u%04x", (int)c));
+            }
+            else  {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,17 @@
+package org.cosmosgame.grailsgame;
+
+/**
+ * A StateSource is the game state a StateStream pushes to its clients.
+ *
+ * @author Odysseus Levy
+ */
+
+public interface StateSource {
+
+    /**
+     Returns what changed since version lSince, or the whole state if lSince
+     is -1 or too old to send changes from.  Returns null if nothing has
+     changed.
+     */
+    StateStream.Update getStreamUpdate (long lSince);
+}
@@ -0,0 +1,463 @@
+package org.cosmosgame.grailsgame;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cosmosgame.mapbuilder.Logger;
+
+/**
+ * The StateStream class pushes the game state to its clients as Server-Sent
+ * Events, instead of each client polling for it:
+ *
+ *      id: 1234
+ *      event: state
+ *      data: {"version":1234,"full":false,"sprites":[...],"removed":[...]}
+ *
+ * A client subscribes with an async request, which stays open.  Each tick
+ * the game calls publishLater(), and a pool thread publishes: it asks the
+ * source once for the changes since the last published version and encodes
+ * them once; every client that is up to date is sent those same bytes.  The
+ * writes are made by a small pool of threads, never by the request threads
+ * or the game loop.
+ *
+ * A client that falls behind is not queued frames.  When its writer gets
+ * to it again it skips the ticks it missed, and gets one update since the
+ * last version it was sent, or the whole state if that is too old.  A
+ * client whose write has not finished after STALL_MS is dropped; an
+ * EventSource reconnects by itself, with the last id it got.  Its output
+ * stream is closed, so that the blocked write fails, and until it does the
+ * pool has an extra thread in its place, so stalled clients never hold up
+ * the others.
+ *
+ * When nothing changes a comment is sent every HEARTBEAT_MS, so that dead
+ * connections are found and proxies keep the live ones open.
+ *
+ * @author Odysseus Levy
+ */
+
+public class StateStream {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_SUBSCRIBERS = 1000;
+    public static final long STALL_MS = 10000;
+    public static final long HEARTBEAT_MS = 15000;
+    private static final byte [] RETRY = bytes("retry: 2000\n\n");
+    private static final byte [] HEARTBEAT = bytes(": heartbeat\n\n");
+
+    /**
+     The changes that bring a client to lVersion, as JSON.
+     */
+    public static class Update {
+        final long lVersion;
+        final String sJson;
+
+        public Update (long lVersion, String sJson)  {
+            this.lVersion = lVersion;
+            this.sJson = sJson;
+        }
+    }
+
+    /**
+     What was published for tick lSeq: the bytes that bring a client at
+     version lBase to lVersion.  A heartbeat has lBase == lVersion.
+     */
+    private static class Frame {
+        final long lSeq;
+        final long lBase;
+        final long lVersion;
+        final byte [] pBytes;
+
+        Frame (long lSeq, long lBase, long lVersion, byte [] pBytes)  {
+            this.lSeq = lSeq;
+            this.lBase = lBase;
+            this.lVersion = lVersion;
+            this.pBytes = pBytes;
+        }
+    }
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    public Logger logger = new Logger();
+
+    private StateSource pSource;
+    private int iThreads = DEFAULT_THREADS;
+    private int iMaxSubscribers = DEFAULT_MAX_SUBSCRIBERS;
+    private ThreadPoolExecutor executor;
+    private int iStalledWriters;                // guarded by this
+
+    private final Set<Subscriber> pSubscribers =
+            Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+    private final AtomicLong lDropped = new AtomicLong();
+    private volatile Frame pLatest;
+    private final AtomicBoolean bPublishPending = new AtomicBoolean();
+    private final Runnable pPublisher = new Runnable()  {
+        public void run ()  {
+            bPublishPending.set(false);
+            try  {
+                publish();
+            }
+            catch (RuntimeException e)  {
+                logger.error(e);
+            }
+        }
+    };
+
+    // only touched by publish()
+    private long lSeq;
+    private long lPublishedVersion = -1;
+    private long lLastFrameTime;
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public void setSource (StateSource pSource)  {
+        this.pSource = pSource;
+    }
+
+    public void setThreads (int iThreads)  {
+        this.iThreads = iThreads;
+    }
+
+    public void setMaxSubscribers (int iMaxSubscribers)  {
+        this.iMaxSubscribers = iMaxSubscribers;
+    }
+
+    public int getSubscriberCount ()  {
+        return pSubscribers.size();
+    }
+
+    public boolean hasRoom ()  {
+        return pSubscribers.size() < iMaxSubscribers;
+    }
+
+    /**
+     Returns the number of clients dropped for not keeping up.
+     */
+    public long getDroppedCount ()  {
+        return lDropped.get();
+    }
+
+    /**
+     Returns the number of writers blocked on a client that was dropped.
+     */
+    public synchronized int getStalledWriterCount ()  {
+        return iStalledWriters;
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor ()  {
+        if (executor == null)  {
+            final AtomicInteger iThread = new AtomicInteger();
+            executor = new ThreadPoolExecutor(iThreads, iThreads, 60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(), new ThreadFactory()  {
+                public Thread newThread (Runnable r)  {
+                    Thread t = new Thread(r, "State stream " + iThread.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     Gives the pool a thread in place of a writer that is stuck on a
+     dropped client, and takes it back once the write gives up.
+     */
+    private synchronized void resizePool (int iChange)  {
+        iStalledWriters += iChange;
+        ThreadPoolExecutor pPool = getExecutor();
+        int iSize = iThreads + iStalledWriters;
+        if (iSize > pPool.getMaximumPoolSize())  {
+            pPool.setMaximumPoolSize(iSize);
+            pPool.setCorePoolSize(iSize);
+        }
+        else  {
+            pPool.setCorePoolSize(iSize);
+            pPool.setMaximumPoolSize(iSize);
+        }
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Streams the state to the async request, starting with the changes since
+     version lSince (-1 for the whole state).  Returns false, and leaves the
+     request alone, if there are already as many clients as allowed.
+     */
+    public boolean subscribe (AsyncContext ctx, long lSince)  {
+        if (!hasRoom())  {
+            return false;
+        }
+        ServletResponse pResponse = ctx.getResponse();
+        pResponse.setContentType("text/event-stream");
+        pResponse.setCharacterEncoding("UTF-8");
+        if (pResponse instanceof HttpServletResponse)  {
+            ((HttpServletResponse)pResponse).setHeader("Cache-Control", "no-cache");
+        }
+        ctx.setTimeout(0);
+
+        Subscriber s = new Subscriber(ctx, lSince);
+        ctx.addListener(s);
+        pSubscribers.add(s);
+        s.schedule();
+        return true;
+    }
+
+    /**
+     Called by the game after each tick: has a pool thread publish(), so the
+     game's loop never waits on the source or the encoding.  Ticks that come
+     while one is waiting are folded into it.  Cheap when no one is
+     subscribed.
+     */
+    public void publishLater ()  {
+        if (!pSubscribers.isEmpty() && bPublishPending.compareAndSet(false, true))  {
+            getExecutor().execute(pPublisher);
+        }
+    }
+
+    /**
+     Publishes the changes since the last call, now, on the calling thread.
+     Cheap when no one is subscribed.
+     */
+    public synchronized void publish ()  {
+        if (pSubscribers.isEmpty())  {
+            return;
+        }
+        long lNow = System.currentTimeMillis();
+        Frame pFrame = null;
+
+        Update u = pSource.getStreamUpdate(lPublishedVersion);
+        if (u != null)  {
+            pFrame = new Frame(++lSeq, lPublishedVersion, u.lVersion, encode(u));
+            lPublishedVersion = u.lVersion;
+        }
+        else if (lNow - lLastFrameTime >= HEARTBEAT_MS)  {
+            pFrame = new Frame(++lSeq, lPublishedVersion, lPublishedVersion, HEARTBEAT);
+        }
+        if (pFrame == null)  {
+            return;
+        }
+        lLastFrameTime = lNow;
+        pLatest = pFrame;
+
+        for (Subscriber s : pSubscribers)  {
+            if (s.abortIfStalled(lNow))  {
+                lDropped.incrementAndGet();
+            }
+            else  {
+                s.schedule();
+            }
+        }
+    }
+
+    /**
+     Closes every stream and stops the writers.
+     */
+    public void shutdown ()  {
+        for (Subscriber s : pSubscribers)  {
+            s.close();
+        }
+        synchronized (this)  {
+            if (executor != null)  {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static byte [] encode (Update u)  {
+        StringBuilder sb = new StringBuilder(u.sJson.length() + 32);
+        sb.append("id: ").append(u.lVersion).append("\nevent: state\ndata: ");
+        sb.append(u.sJson.replace("\n", "\ndata: "));
+        sb.append("\n\n");
+        return bytes(sb.toString());
+    }
+
+    private static byte [] bytes (String s)  {
+        try  {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)  {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Subscriber
+    //
+    /**
+     One client.  At most one writer task runs or waits for it at a time;
+     lVersion and lSeenSeq are only touched by that task.
+     */
+    private class Subscriber implements Runnable, AsyncListener {
+        private final AsyncContext ctx;
+        private final AtomicBoolean bScheduled = new AtomicBoolean();
+        private long lWriteStart;                   // 0 while not writing, guarded by this
+        private boolean bStalled;                   // guarded by this
+        private long lVersion;
+        private long lSeenSeq = -1;
+
+        Subscriber (AsyncContext ctx, long lSince)  {
+            this.ctx = ctx;
+            this.lVersion = lSince;
+        }
+
+        void schedule ()  {
+            if (bScheduled.compareAndSet(false, true))  {
+                getExecutor().execute(this);
+            }
+        }
+
+        /**
+         If a write has been blocked for more than STALL_MS, drops the client,
+         closes its stream to fail the write, and has the pool cover for the
+         writer until the write returns.
+         */
+        boolean abortIfStalled (long lNow)  {
+            synchronized (this)  {
+                if (bStalled || lWriteStart == 0 || lNow - lWriteStart <= STALL_MS)  {
+                    return false;
+                }
+                bStalled = true;
+            }
+            resizePool(1);
+            close();
+            try  {
+                ctx.getResponse().getOutputStream().close();
+            }
+            catch (IOException e)  {
+                // the write it unblocks fails too
+            }
+            catch (RuntimeException e)  {
+                // the container has already let go of the response
+            }
+            return true;
+        }
+
+        public void run ()  {
+            try  {
+                do  {
+                    write();
+                    bScheduled.set(false);
+                    // a frame published while writing, after the last look at pLatest
+                } while (isBehind() && bScheduled.compareAndSet(false, true));
+            }
+            catch (IOException e)  {
+                close();
+            }
+            catch (RuntimeException e)  {
+                close();
+            }
+        }
+
+        private boolean isBehind ()  {
+            Frame f = pLatest;
+            return f != null && f.lSeq > lSeenSeq;
+        }
+
+        private void write () throws IOException  {
+            if (lSeenSeq < 0)  {
+                send(RETRY);
+            }
+            for (;;)  {
+                Frame f = pLatest;
+                long lTarget = (f == null) ? 0 : f.lSeq;
+                if (lSeenSeq >= lTarget)  {
+                    return;
+                }
+
+                byte [] pBytes = null;
+                if (f != null && lVersion == f.lBase)  {
+                    pBytes = f.pBytes;
+                    lVersion = f.lVersion;
+                }
+                else  {
+                    // behind, or new: one update for everything it missed
+                    Update u = pSource.getStreamUpdate(lVersion);
+                    if (u != null)  {
+                        pBytes = encode(u);
+                        lVersion = u.lVersion;
+                    }
+                }
+
+                if (pBytes != null)  {
+                    send(pBytes);
+                }
+                lSeenSeq = lTarget;
+            }
+        }
+
+        private void send (byte [] pBytes) throws IOException  {
+            synchronized (this)  {
+                if (bStalled)  {
+                    throw new IOException("Dropped for not keeping up");
+                }
+                lWriteStart = System.currentTimeMillis();
+            }
+            try  {
+                ServletResponse pResponse = ctx.getResponse();
+                pResponse.getOutputStream().write(pBytes);
+                pResponse.flushBuffer();
+            }
+            finally  {
+                boolean bCovered;
+                synchronized (this)  {
+                    lWriteStart = 0;
+                    bCovered = bStalled;
+                }
+                if (bCovered)  {
+                    resizePool(-1);
+                }
+            }
+        }
+
+        void close ()  {
+            if (pSubscribers.remove(this))  {
+                try  {
+                    ctx.complete();
+                }
+                catch (IllegalStateException e)  {
+                    // already completed by the container
+                }
+            }
+        }
+
+        public void onComplete (AsyncEvent event)  {
+            pSubscribers.remove(this);
+        }
+
+        public void onTimeout (AsyncEvent event)  {
+            close();
+        }
+
+        public void onError (AsyncEvent event)  {
+            close();
+        }
+
+        public void onStartAsync (AsyncEvent event)  {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks MapBuilder.computeRange against the sweep it replaced, kept below
+ * as referenceRange, on random maps: dimensions 1 to 128, bMaxRange 0 to
+ * 40 (and past the map's size), and densities of -1 squares from none to
+ * all of them.
+ *
+ * Usage: ComputeRangeTest [cases [seed]].  Prints the first mismatch and
+ * exits with status 1, or prints the number of cases checked.
+ *
+ * @author Odysseus Levy
+ */
+
+public class ComputeRangeTest {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    private static final double [] DENSITIES = { 0.0, 0.001, 0.01, 0.05, 0.2, 0.5, 0.9, 1.0 };
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public static void main (String [] args)  {
+        int iCases = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        long lSeed = (args.length > 1) ? Long.parseLong(args[1]) : 12345L;
+        Random pRandom = new Random(lSeed);
+
+        for (int c = 0; c < iCases; c++)  {
+            int iDim = 1 + pRandom.nextInt(128);
+            int iMaxRange = (c % 10 == 0) ? 0 : (c % 10 == 1) ? iDim + 2 + pRandom.nextInt(20) : pRandom.nextInt(41);
+            double fDensity = DENSITIES[c % DENSITIES.length];
+            if (c % 7 == 6)  {
+                fDensity = pRandom.nextDouble();
+            }
+
+            int [] iInput = new int [iDim * iDim];
+            for (int i = 0; i < iInput.length; i++)  {
+                iInput[i] = (pRandom.nextDouble() < fDensity) ? -1 : 0;
+            }
+            if (c % 13 == 12)  {
+                // a single source
+                Arrays.fill(iInput, 0);
+                iInput[pRandom.nextInt(iInput.length)] = -1;
+            }
+
+            int [] iExpected = iInput.clone();
+            referenceRange(iExpected, iDim, iMaxRange);
+            int [] iActual = iInput.clone();
+            MapBuilder.computeRange(iActual, iDim, iMaxRange, new int [iInput.length]);
+
+            if (!Arrays.equals(iExpected, iActual))  {
+                int i = 0;
+                while (iExpected[i] == iActual[i])  {
+                    i++;
+                }
+                System.out.println("Case " + c + " (dimension " + iDim + ", bMaxRange " + iMaxRange
+                                   + ", density " + fDensity + "): square (" + (i % iDim) + "," + (i / iDim)
+                                   + ") is " + iActual[i] + ", expected " + iExpected[i]);
+                System.exit(1);
+            }
+        }
+        System.out.println(iCases + " cases match");
+    }
+
+    /**
+     The computeRange of before the breadth first search, unchanged but for
+     its parameters: up to iMaxRange sweeps over the whole map.
+     */
+    static void referenceRange (int [] iRanges, int iDim, int iMaxRange)  {
+        int i, j;
+        int x, k, keepgo;
+
+        for (k = 1; k < iMaxRange; k++)  {
+            for (keepgo=0, j=0; j < iDim; j++)  {
+                for (i = 0; i < iDim; i++)  {
+                    if (iRanges[(j*iDim)+i] == 0) {
+                        keepgo = 1;
+                        x = iRanges[(j*iDim) + (i != 0 ? i-1 : iDim - 1)];
+                        if (x != 0 && (x != k))  {
+                            iRanges[(j*iDim)+i] = k;
+                        }
+                        x = iRanges[(j*iDim) + ((i<iDim-1) ? i+1 : 0)];
+                        if (x != 0 && (x != k))  {
+                            iRanges[(j*iDim)+i] = k;
+                        }
+                        if (j < iDim-1) {
+                            x = iRanges[((j+1)*iDim)+i];
+                            if (x != 0 && (x != k))  {
+                                iRanges[(j*iDim)+i] = k;
+                            }
+                        }
+                        if (j != 0) {
+                            x = iRanges[((j-1)*iDim)+i];
+                            if (x != 0 && (x != k))  {
+                                iRanges[(j*iDim)+i] = k;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        for (j = 0; j < iDim; j++)  {
+            for (i = 0; i < iDim; i++)  {
+                if (iRanges[(j*iDim)+i] == 0)  {
+                    iRanges[(j*iDim)+i] = iMaxRange;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The DiamondSquare class fills an elevation array using the diamond
+ * square algorithm described in MapBuilder.generateElevations.
+ *
+ * Within one level every new value only depends on values from coarser
+ * levels, so each level is done in two parallel passes: the centers of
+ * the squares (diamond step), then the midpoints of their edges (square
+ * step).  Every cell is written exactly once per level.
+ *
+ * Random numbers are not drawn from a shared generator; instead each one
+ * is a hash of (seed, level, x, y).  The same seed therefore always gives
+ * the same heightmap, whatever the number of threads.
+ *
+ * @author Odysseus Levy
+ */
+
+class DiamondSquare {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+
+    // Passes with fewer cells than this are not worth handing to the executor
+    private static final int MIN_PARALLEL_CELLS = 16384;
+    private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final float [] fElevation;
+    private final int iDim;
+    private final long lSeed;
+    private final ExecutorService executor;
+    private final int iBands;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     The passes are split into iThreads * 4 bands, so that the threads of
+     the executor finish at about the same time.
+     */
+    DiamondSquare (float [] fElevation, int iDim, long lSeed, ExecutorService executor, int iThreads)  {
+        this.fElevation = fElevation;
+        this.iDim = iDim;
+        this.lSeed = lSeed;
+        this.executor = executor;
+        this.iBands = Math.max(1, iThreads) * 4;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Generates the elevations.  The first iIterations levels are set to
+     purely random values; the remaining levels average their neighbors and
+     add a random amount whose range shrinks by 2^-fRoughness per level.
+     */
+    void generate (int iIterations, float fRoughness)  {
+        float fRange = 2.0f;   // So that we get values between -1.0 and 1.0
+        int iStep = iDim >> 1;
+
+        fElevation[0] = random(iDim, 0, 0, fRange);
+
+        while (iIterations > 0 && iStep > 0)  {
+            level(iStep, fRange, false);
+            iStep = iStep >> 1;
+            iIterations -= 1;
+        }
+
+        while (iStep > 0)  {
+            level(iStep, fRange, true);
+            fRange = fRange * (float)(Math.pow (2, -fRoughness));
+            iStep = iStep >> 1;
+        }
+    }
+
+    private void level (int iStep, float fRange, boolean bAverage)  {
+        // Diamond step: the centers of the squares, on odd rows only
+        int iCenterRows = (iDim - iStep + (iStep << 1) - 1) / (iStep << 1);
+        pass(iStep, fRange, bAverage, true, iCenterRows, iDim / (iStep << 1));
+
+        // Square step: the midpoints of the edges, on every row
+        int iEdgeRows = (iDim + iStep - 1) / iStep;
+        pass(iStep, fRange, bAverage, false, iEdgeRows, iDim / (iStep << 1));
+    }
+
+    private void pass (final int iStep,
+                       final float fRange,
+                       final boolean bAverage,
+                       final boolean bCenters,
+                       int iRows,
+                       int iCellsPerRow)
+    {
+        if (executor == null || iRows < 2 || (long)iRows * iCellsPerRow < MIN_PARALLEL_CELLS)  {
+            rows(iStep, fRange, bAverage, bCenters, 0, iRows);
+            return;
+        }
+
+        int iCount = Math.min(iBands, iRows);
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(iCount);
+        for (int b = 0; b < iCount; b++)  {
+            final int iFirst = (int)(((long)iRows * b) / iCount);
+            final int iLast = (int)(((long)iRows * (b + 1)) / iCount);
+            pTasks.add(new Callable<Void>() {
+                public Void call ()  {
+                    rows(iStep, fRange, bAverage, bCenters, iFirst, iLast);
+                    return null;
+                }
+            });
+        }
+
+        MapTasks.invokeAll(executor, pTasks, "Elevation generation");
+    }
+
+    /**
+     Computes the rows [iFirst, iLast) of one pass.  For the diamond step
+     row r is y = (2r + 1) * iStep; for the square step it is y = r * iStep,
+     and x starts at iStep on even multiples of iStep and at 0 on odd ones.
+     */
+    private void rows (int iStep,
+                       float fRange,
+                       boolean bAverage,
+                       boolean bCenters,
+                       int iFirst,
+                       int iLast)
+    {
+        int iStep2 = iStep << 1;
+        for (int r = iFirst; r < iLast; r++)  {
+            int y, x;
+            if (bCenters)  {
+                y = iStep + (r * iStep2);
+                x = iStep;
+            }
+            else  {
+                y = r * iStep;
+                x = ((r & 1) == 0) ? iStep : 0;
+            }
+            for (; x < iDim; x += iStep2)  {
+                float fValue = random(iStep, x, y, fRange);
+                if (bAverage)  {
+                    fValue += bCenters ? squareAverage(x, y, iStep) : diamondAverage(x, y, iStep);
+                }
+                fElevation[(y * iDim) + x] = fValue;
+            }
+        }
+    }
+
+    /**
+     Takes the average of the four corners of the square centered on (x, y).
+     */
+    private float squareAverage (int x, int y, int iStep)  {
+        int x0 = x - iStep, x1 = (x + iStep) % iDim;
+        int y0 = y - iStep, y1 = (y + iStep) % iDim;
+        float fSum;
+
+        fSum  = fElevation[(y0 * iDim) + x0];
+        fSum += fElevation[(y0 * iDim) + x1];
+        fSum += fElevation[(y1 * iDim) + x1];
+        fSum += fElevation[(y1 * iDim) + x0];
+        return (fSum / 4.0f);
+    }
+
+    /**
+     Takes the average of the four corners of the diamond centered on (x, y).
+     */
+    private float diamondAverage (int x, int y, int iStep)  {
+        float fSum;
+
+        fSum  = fElevation[(((y - iStep + iDim) % iDim) * iDim) + x];
+        fSum += fElevation[(y * iDim) + ((x - iStep + iDim) % iDim)];
+        fSum += fElevation[(y * iDim) + ((x + iStep) % iDim)];
+        fSum += fElevation[(((y + iStep) % iDim) * iDim) + x];
+        return (fSum / 4.0f);
+    }
+
+    /**
+     Generates a random value in the range from  - fRange / 2 to + fRange /2,
+     determined only by the seed, the level and the position.
+     */
+    private float random (int iStep, int x, int y, float fRange)  {
+        long lKey = ((long)iStep << 42) | ((long)y << 21) | (long)x;
+        long lHash = mix(lSeed ^ mix(lKey));
+        double dUnit = (lHash >>> 11) * DOUBLE_UNIT;
+        return (float)((dUnit * (double)fRange) - ((double)fRange / 2.0d));
+    }
+
+    /**
+     The SplitMix64 finalizer; turns a counter into a well mixed 64 bit value.
+     */
+    static long mix (long z)  {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,28 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * A GenerationListener is told about the progress of world generation by
+ * a MapBuilder's GenerationMonitor.  It is called on the generating
+ * thread, so it should return quickly.
+ *
+ * @author Odysseus Levy
+ */
+
+public interface GenerationListener {
+
+    /**
+     Called before a stage runs; iPercent is how much of the generation is
+     done so far.
+     */
+    void stageStarted (String sStage, int iPercent);
+
+    /**
+     Called after a stage has run, successfully or not.
+     */
+    void stageFinished (StageStats pStats, int iPercent);
+
+    /**
+     Called once all the stages have run, or one has failed.
+     */
+    void generationFinished (GenerationSummary pSummary);
+}
@@ -0,0 +1,336 @@
+package org.cosmosgame.mapbuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The GenerationMonitor class measures the stages a MapBuilder runs, and
+ * reports on them to GenerationListeners, over JMX once register() has
+ * been called, and as a GenerationSummary per generation.
+ *
+ * Stages hand their parallel work to the builder's executor, so the
+ * executor is wrapped (see meter()) to add the CPU time and allocation of
+ * every task to the stage that is running.  A monitor follows one
+ * generation at a time, as the builder only runs one at a time.
+ *
+ * @author Odysseus Levy
+ */
+
+public class GenerationMonitor implements GenerationMonitorMXBean {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    private static final ThreadMXBean pThreads = ManagementFactory.getThreadMXBean();
+    private static final boolean bCpuTime = enableCpuTime();
+    private static final boolean bAllocation = enableAllocation();
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final List<GenerationListener> pListeners = new CopyOnWriteArrayList<GenerationListener>();
+
+    private volatile String sCurrentStage = null;
+    private volatile int iPercent = 0;
+    private volatile GenerationSummary pLastSummary = null;
+    private final AtomicLong lGenerations = new AtomicLong();
+
+    // The generation being run
+    private int iDim, iNumSeasons, iStages, iDone;
+    private long lGenerationStart;
+    private List<StageStats> pStats = new ArrayList<StageStats>();
+
+    // The stage being run
+    private long lWallStart, lCpuStart, lAllocatedStart;
+    private final AtomicLong lTaskCpu = new AtomicLong();
+    private final AtomicLong lTaskAllocated = new AtomicLong();
+
+    private ExecutorService pExecutor = null;
+    private ExecutorService pMetered = null;
+    private ObjectName pName = null;
+
+    public Logger logger = new Logger();
+
+
+    //-------------------------------------------------------------------
+    // Accessors & Mutators
+    //
+    public void addListener (GenerationListener pListener)  {
+        pListeners.add(pListener);
+    }
+
+    public void removeListener (GenerationListener pListener)  {
+        pListeners.remove(pListener);
+    }
+
+    public String getCurrentStage ()  {
+        return sCurrentStage;
+    }
+
+    public int getPercentComplete ()  {
+        return iPercent;
+    }
+
+    public long getGenerationCount ()  {
+        return lGenerations.get();
+    }
+
+    public long getLastGenerationMillis ()  {
+        GenerationSummary pSummary = pLastSummary;
+        return (pSummary != null) ? pSummary.getWallNanos() / 1000000L : 0;
+    }
+
+    public String getLastSummary ()  {
+        GenerationSummary pSummary = pLastSummary;
+        return (pSummary != null) ? pSummary.toString() : null;
+    }
+
+    /**
+     Returns the summary of the last generation, or null if there has been
+     none.
+     */
+    public GenerationSummary getLastGenerationSummary ()  {
+        return pLastSummary;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Registers the monitor with the platform MBean server, as
+     org.cosmosgame.mapbuilder:type=GenerationMonitor,name=sName.
+     */
+    public synchronized void register (String sName)  {
+        unregister();
+        try  {
+            ObjectName pNew = new ObjectName("org.cosmosgame.mapbuilder:type=GenerationMonitor,name="
+                                             + ObjectName.quote(sName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, pNew);
+            pName = pNew;
+        }
+        catch (JMException e)  {
+            logger.error(e);
+        }
+    }
+
+    public synchronized void unregister ()  {
+        if (pName != null)  {
+            try  {
+                MBeanServer pServer = ManagementFactory.getPlatformMBeanServer();
+                if (pServer.isRegistered(pName))  {
+                    pServer.unregisterMBean(pName);
+                }
+            }
+            catch (JMException e)  {
+                logger.error(e);
+            }
+            pName = null;
+        }
+    }
+
+    /**
+     Returns an executor running its tasks on executor, and adding their
+     CPU time and allocation to the running stage.
+     */
+    synchronized ExecutorService meter (ExecutorService executor)  {
+        if (executor == null)  {
+            return null;
+        }
+        if (executor != pExecutor)  {
+            pExecutor = executor;
+            pMetered = new MeteredExecutor(executor);
+        }
+        return pMetered;
+    }
+
+    void begin (int iDim, int iNumSeasons, int iStages)  {
+        this.iDim = iDim;
+        this.iNumSeasons = iNumSeasons;
+        this.iStages = iStages;
+        this.iDone = 0;
+        this.pStats = new ArrayList<StageStats>(iStages);
+        this.iPercent = 0;
+        lGenerationStart = System.nanoTime();
+    }
+
+    void stageStarted (MapStage pStage)  {
+        sCurrentStage = pStage.getName();
+        for (GenerationListener pListener : pListeners)  {
+            try  {
+                pListener.stageStarted(pStage.getName(), iPercent);
+            }
+            catch (RuntimeException e)  {
+                logger.error(e);
+            }
+        }
+
+        lTaskCpu.set(0);
+        lTaskAllocated.set(0);
+        lCpuStart = cpuTime();
+        lAllocatedStart = allocatedBytes();
+        lWallStart = System.nanoTime();
+    }
+
+    void stageFinished (MapStage pStage)  {
+        long lWall = System.nanoTime() - lWallStart;
+        long lCpu = bCpuTime ? (cpuTime() - lCpuStart) + lTaskCpu.get() : -1;
+        long lAllocated = bAllocation ? (allocatedBytes() - lAllocatedStart) + lTaskAllocated.get() : -1;
+        long lCells = (long)iDim * iDim * (pStage.isSeasonal() ? iNumSeasons : 1);
+        StageStats pStageStats = new StageStats(pStage.getName(), lWall, lCpu, lAllocated, lCells);
+
+        pStats.add(pStageStats);
+        iDone++;
+        iPercent = (iStages > 0) ? (100 * iDone) / iStages : 100;
+        sCurrentStage = null;
+        for (GenerationListener pListener : pListeners)  {
+            try  {
+                pListener.stageFinished(pStageStats, iPercent);
+            }
+            catch (RuntimeException e)  {
+                logger.error(e);
+            }
+        }
+    }
+
+    void end (boolean bCompleted)  {
+        GenerationSummary pSummary = new GenerationSummary(iDim, iNumSeasons,
+                                                           System.nanoTime() - lGenerationStart,
+                                                           bCompleted, pStats);
+        sCurrentStage = null;
+        pLastSummary = pSummary;
+        lGenerations.incrementAndGet();
+        for (GenerationListener pListener : pListeners)  {
+            try  {
+                pListener.generationFinished(pSummary);
+            }
+            catch (RuntimeException e)  {
+                logger.error(e);
+            }
+        }
+    }
+
+    private static boolean enableCpuTime ()  {
+        try  {
+            if (!pThreads.isCurrentThreadCpuTimeSupported())  {
+                return false;
+            }
+            if (!pThreads.isThreadCpuTimeEnabled())  {
+                pThreads.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        }
+        catch (UnsupportedOperationException e)  {
+            return false;
+        }
+        catch (SecurityException e)  {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocation ()  {
+        try  {
+            return Allocation.enable();
+        }
+        catch (LinkageError e)  {
+            return false;
+        }
+    }
+
+    private static long cpuTime ()  {
+        return bCpuTime ? pThreads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes ()  {
+        return bAllocation ? Allocation.current() : 0;
+    }
+
+    /**
+     Per thread allocation is only offered by the HotSpot ThreadMXBean, so
+     everything touching it is kept in this class; if it is missing, loading
+     the class fails and allocation is simply not measured.
+     */
+    private static class Allocation {
+        static boolean enable ()  {
+            try  {
+                if (!(pThreads instanceof com.sun.management.ThreadMXBean))  {
+                    return false;
+                }
+                com.sun.management.ThreadMXBean pHotSpot = (com.sun.management.ThreadMXBean)pThreads;
+                if (!pHotSpot.isThreadAllocatedMemorySupported())  {
+                    return false;
+                }
+                if (!pHotSpot.isThreadAllocatedMemoryEnabled())  {
+                    pHotSpot.setThreadAllocatedMemoryEnabled(true);
+                }
+                return true;
+            }
+            catch (UnsupportedOperationException e)  {
+                return false;
+            }
+        }
+
+        static long current ()  {
+            return ((com.sun.management.ThreadMXBean)pThreads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+    }
+
+    /**
+     Runs tasks on another executor, measuring each one on the thread that
+     runs it.
+     */
+    private class MeteredExecutor extends AbstractExecutorService {
+        private final ExecutorService executor;
+
+        MeteredExecutor (ExecutorService executor)  {
+            this.executor = executor;
+        }
+
+        public void execute (final Runnable pTask)  {
+            executor.execute(new Runnable() {
+                public void run ()  {
+                    long lCpu = cpuTime();
+                    long lAllocated = allocatedBytes();
+                    try  {
+                        pTask.run();
+                    }
+                    finally  {
+                        lTaskCpu.addAndGet(cpuTime() - lCpu);
+                        lTaskAllocated.addAndGet(allocatedBytes() - lAllocated);
+                    }
+                }
+            });
+        }
+
+        public void shutdown ()  {
+            executor.shutdown();
+        }
+
+        public List<Runnable> shutdownNow ()  {
+            return executor.shutdownNow();
+        }
+
+        public boolean isShutdown ()  {
+            return executor.isShutdown();
+        }
+
+        public boolean isTerminated ()  {
+            return executor.isTerminated();
+        }
+
+        public boolean awaitTermination (long lTimeout, TimeUnit unit) throws InterruptedException  {
+            return executor.awaitTermination(lTimeout, unit);
+        }
+    }
+}
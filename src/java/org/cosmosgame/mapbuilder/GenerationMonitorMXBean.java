@@ -0,0 +1,26 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * The JMX view of a GenerationMonitor.
+ *
+ * @author Odysseus Levy
+ */
+
+public interface GenerationMonitorMXBean {
+
+    /**
+     Returns the stage being run, or null if the builder is idle.
+     */
+    String getCurrentStage ();
+
+    int getPercentComplete ();
+
+    long getGenerationCount ();
+
+    long getLastGenerationMillis ();
+
+    /**
+     Returns the last GenerationSummary, as text.
+     */
+    String getLastSummary ();
+}
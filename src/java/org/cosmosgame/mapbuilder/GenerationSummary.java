@@ -0,0 +1,92 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The GenerationSummary class lists the StageStats of the stages run by
+ * one generateWorld(), updateWorld() or reCreateWorld() call.
+ *
+ * @author Odysseus Levy
+ */
+
+public class GenerationSummary {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iDim;
+    private final int iNumSeasons;
+    private final long lWallNanos;
+    private final boolean bCompleted;
+    private final List<StageStats> pStages;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    GenerationSummary (int iDim,
+                       int iNumSeasons,
+                       long lWallNanos,
+                       boolean bCompleted,
+                       List<StageStats> pStages)
+    {
+        this.iDim = iDim;
+        this.iNumSeasons = iNumSeasons;
+        this.lWallNanos = lWallNanos;
+        this.bCompleted = bCompleted;
+        this.pStages = Collections.unmodifiableList(new ArrayList<StageStats>(pStages));
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public int getDimension ()  {
+        return iDim;
+    }
+
+    public int getNumSeasons ()  {
+        return iNumSeasons;
+    }
+
+    public long getWallNanos ()  {
+        return lWallNanos;
+    }
+
+    /**
+     Returns false if a stage failed, in which case the stages after it
+     are missing.
+     */
+    public boolean isCompleted ()  {
+        return bCompleted;
+    }
+
+    public List<StageStats> getStages ()  {
+        return pStages;
+    }
+
+    /**
+     Returns the stats of the named stage, or null if it did not run.
+     */
+    public StageStats getStage (String sStage)  {
+        for (StageStats pStats : pStages)  {
+            if (pStats.getStage().equals(sStage))  {
+                return pStats;
+            }
+        }
+        return null;
+    }
+
+    public String toString ()  {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s %dx%d map, %d seasons, %d stages in %.1f ms",
+                                bCompleted ? "Generated" : "FAILED generating",
+                                iDim, iDim, iNumSeasons, pStages.size(), lWallNanos / 1e6));
+        for (StageStats pStats : pStages)  {
+            sb.append("\n  ").append(pStats);
+        }
+        return sb.toString();
+    }
+}
@@ -5,6 +5,9 @@ package org.cosmosgame.mapbuilder;
  * terrains elevation, the amount of water in the hex, the amount
  * of water generated in the hex, etc
  *
+ * The data itself lives in a HexGrid; a Hex is only a view onto one
+ * entry of the grid.
+ *
  * @author Odysseus Levy
  *
  *  Adapted from code by Lee Wilson
@@ -84,51 +87,24 @@ public class Hex {
     //-------------------------------------------------------------------
     // Instance Variables
     //
-    private String sName = null;
-    private int iIDNum;
-    private int iX;
-    private int iY;
-    private float fElevation = 0.0f;
-    private float [] fTemperature;
-    private float [] fScaledTemperature;
-    private byte [] iPressure;
-    private short [] iWind;
-    private short [] iRainfall;
-    private byte iClimate;
-    private byte iTerrainType = TERRAIN_NOTYPE;
-    private Hex [] pNeighbors;
-    private byte iShoreline;
-    private byte iRiver;
-    private MapParams pParams;
+    private final HexGrid pGrid;
+    private final int iIDNum;
 
 
     //---------------------------------------------------------------------------
     // Constructors
     //
-    Hex(int x, int y, String sName, MapParams pParams) {
-        this.iX = x;
-        this.iY = y;
-        this.iIDNum = (y * pParams.dimension) + x;
-        this.sName = sName;
-        this.pParams = pParams;
-        init ();
+    Hex(HexGrid pGrid, int iIDNum) {
+        this.pGrid = pGrid;
+        this.iIDNum = iIDNum;
     };
 
-    private void init ()  {
-        pNeighbors = new Hex[6];
-        fTemperature = new float [pParams.iNumSeasons];
-        fScaledTemperature = new float [pParams.iNumSeasons];
-        iPressure = new byte [pParams.iNumSeasons];
-        iWind = new short [pParams.iNumSeasons];
-        iRainfall = new short [pParams.iNumSeasons];
-    }
-
 
     //---------------------------------------------------------------------------
     // Accessors and Mutators
     //
     public String toString ()  {
-        return (sName+": ("+getElevation()+","+ getTerrainName()+")");
+        return (getName()+": ("+getElevation()+","+ getTerrainName()+")");
     }
 
     public String getTerrainName()
@@ -142,49 +118,46 @@ public class Hex {
     }
 
     public String getName ()  {
-        return sName;
+        return pGrid.getName(iIDNum);
     }
 
     public void setName (String newName)  {
         if (newName != null && !newName.equals(""))  {
-            sName = newName;
+            pGrid.setName(iIDNum, newName);
         }
     }
 
     public byte getTerrainType ()  {
-        return iTerrainType;
+        return pGrid.getTerrainType(iIDNum);
     }
 
     public void setTerrainType (byte newTerrainType)  {
         if (newTerrainType >= 0 && newTerrainType <= NUM_TERRAIN)  {
-            iTerrainType = newTerrainType;
+            pGrid.setTerrainType(iIDNum, newTerrainType);
         }
     }
 
     public Hex getNeighbor (int iDirection)  {
         if (iDirection >= 0 && iDirection < 6)  {
-            return pNeighbors[iDirection];
+            int iNeighbor = pGrid.getNeighbor(iIDNum, iDirection);
+            if (iNeighbor >= 0)  {
+                return pGrid.getHex(iNeighbor);
+            }
         }
         return null;
     }
 
-    public void setNeighbor (int iDirection, Hex pHex)  {
-        if (iDirection >= 0 && iDirection < 6)  {
-            pNeighbors[iDirection] = pHex;
-        }
-    }
-
     public float getElevation() {
-        return (fElevation);
+        return pGrid.getElevation(iIDNum);
     };
 
     public void setElevation (float dValue) {
-        fElevation = dValue;
+        pGrid.setElevation(iIDNum, dValue);
     };
 
     public float getTemperature(int iSeason) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            return (fTemperature[iSeason]);
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            return pGrid.getTemperature(iSeason, iIDNum);
         }
         else  {
             return 0.0f;
@@ -192,24 +165,24 @@ public class Hex {
     }
 
     public void setTemperature (int iSeason, float fTemp) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            fTemperature[iSeason] = fTemp;
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            pGrid.setTemperature(iSeason, iIDNum, fTemp);
         }
     }
 
     public float getAvgTemperatureF ()  {
         float fAvgTemp = 0.0f;
-        for (int i = 0; i < pParams.iNumSeasons; i++)  {
+        for (int i = 0; i < pGrid.getNumSeasons(); i++)  {
             fAvgTemp += getTemperature(i);
         }
-        fAvgTemp /= pParams.iNumSeasons;
+        fAvgTemp /= pGrid.getNumSeasons();
         fAvgTemp = ((fAvgTemp / 10.0f) - 273.0f) * 1.8f + 32.0f;
         return fAvgTemp;
     }
 
     public float getScaledTemperature(int iSeason) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            return (fScaledTemperature[iSeason]);
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            return pGrid.getScaledTemperature(iSeason, iIDNum);
         }
         else  {
             return 0.0f;
@@ -217,14 +190,14 @@ public class Hex {
     }
 
     public void setScaledTemperature (int iSeason, float fTemp) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            fScaledTemperature[iSeason] = fTemp;
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            pGrid.setScaledTemperature(iSeason, iIDNum, fTemp);
         }
     }
 
     public byte getPressure(int iSeason) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            return (iPressure[iSeason]);
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            return pGrid.getPressure(iSeason, iIDNum);
         }
         else  {
             return 0;
@@ -232,14 +205,14 @@ public class Hex {
     }
 
     public void setPressure (int iSeason, byte bPres) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            iPressure[iSeason] = bPres;
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            pGrid.setPressure(iSeason, iIDNum, bPres);
         }
     }
 
     public short getWind(int iSeason) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            return (iWind[iSeason]);
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            return pGrid.getWind(iSeason, iIDNum);
         }
         else  {
             return 0;
@@ -247,14 +220,14 @@ public class Hex {
     }
 
     public void setWind (int iSeason, short iW) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            iWind[iSeason] = iW;
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            pGrid.setWind(iSeason, iIDNum, iW);
         }
     }
 
     public short getRainfall(int iSeason) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            return (iRainfall[iSeason]);
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            return pGrid.getRainfall(iSeason, iIDNum);
         }
         else  {
             return 0;
@@ -263,33 +236,33 @@ public class Hex {
 
     public float getAvgRainfall ()  {
         float fAvgRain = 0.0f;
-        for (int i = 0; i < pParams.iNumSeasons; i++)  {
+        for (int i = 0; i < pGrid.getNumSeasons(); i++)  {
             fAvgRain += getRainfall(i);
         }
-        fAvgRain /= pParams.iNumSeasons;
+        fAvgRain /= pGrid.getNumSeasons();
         return fAvgRain;
     }
 
     public void setRainfall (int iSeason, short iRF) {
-        if (iSeason >= 0 && iSeason < pParams.iNumSeasons)  {
-            iRainfall[iSeason] = iRF;
+        if (iSeason >= 0 && iSeason < pGrid.getNumSeasons())  {
+            pGrid.setRainfall(iSeason, iIDNum, iRF);
         }
     }
 
     public byte getClimate() {
-        return (iClimate);
+        return pGrid.getClimate(iIDNum);
     }
 
     public void setClimate (byte iClim) {
-        iClimate = iClim;
+        pGrid.setClimate(iIDNum, iClim);
     }
 
     public int getX ()  {
-        return iX;
+        return pGrid.getX(iIDNum);
     }
 
     public int getY ()  {
-        return iY;
+        return pGrid.getY(iIDNum);
     }
 
     public int getIDNum ()  {
@@ -297,50 +270,30 @@ public class Hex {
     }
 
     public boolean isWater ()  {
-        boolean bWater;
-        switch (getTerrainType())  {
-            case TERRAIN_DEEPOCEAN:
-            case TERRAIN_OCEAN:
-                bWater = true;
-                break;
-            default:
-                bWater = false;
-                break;
-        }
-        return bWater;
+        return pGrid.isWater(iIDNum);
     }
 
     public boolean isLand ()  {
-        boolean bLand;
-        switch (getTerrainType())  {
-            case TERRAIN_DEEPOCEAN:
-            case TERRAIN_OCEAN:
-                bLand = false;
-                break;
-            default:
-                bLand = true;
-                break;
-        }
-        return bLand;
+        return pGrid.isLand(iIDNum);
     }
 
     public void clearShorelines ()  {
-        iShoreline = 0;
+        pGrid.setShoreline(iIDNum, (byte)0);
     }
 
     public void setShoreline (byte iDir, boolean value)  {
+        byte iShoreline = pGrid.getShoreline(iIDNum);
         if (value)  {
             iShoreline |= iDir;
         }
         else  {
             iShoreline ^= iDir;
         }
+        pGrid.setShoreline(iIDNum, iShoreline);
     }
 
     public boolean isShoreline (byte iDir)  {
-        return ((iShoreline & iDir) > 0);
+        return ((pGrid.getShoreline(iIDNum) & iDir) > 0);
     }
 
 }
-
-
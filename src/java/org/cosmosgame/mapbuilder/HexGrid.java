@@ -0,0 +1,290 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The HexGrid class holds all of the per-hex data of a map in flat
+ * primitive arrays, one array per field, indexed by hex id
+ * ((y * dimension) + x).  Seasonal fields are stored season-major, so
+ * the value of hex i in season s is found at (s * size) + i.
+ *
+ * MapBuilder works on these arrays directly; Hex is only a lightweight
+ * view onto one entry of a HexGrid.
+ *
+ * @author Odysseus Levy
+ */
+
+public class HexGrid implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    final int iDim;
+    final int iSize;
+    final int iNumSeasons;
+
+    final float [] fElevation;
+    final float [] fTemperature;          // season-major
+    final float [] fScaledTemperature;    // season-major
+    final byte [] iPressure;              // season-major
+    final short [] iWind;                 // season-major
+    final short [] iRainfall;             // season-major
+    final byte [] iClimate;
+    final byte [] iTerrainType;
+    final byte [] iShoreline;
+    final byte [] iRiver;
+    private String [] sNames = null;      // only allocated once a hex is renamed
+    final HexTopology pTopology;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    public HexGrid (int iDim, int iNumSeasons)  {
+        this.iDim = iDim;
+        this.iSize = iDim * iDim;
+        this.iNumSeasons = iNumSeasons;
+
+        fElevation = new float [iSize];
+        fTemperature = new float [iNumSeasons * iSize];
+        fScaledTemperature = new float [iNumSeasons * iSize];
+        iPressure = new byte [iNumSeasons * iSize];
+        iWind = new short [iNumSeasons * iSize];
+        iRainfall = new short [iNumSeasons * iSize];
+        iClimate = new byte [iSize];
+        iTerrainType = new byte [iSize];
+        iShoreline = new byte [iSize];
+        iRiver = new byte [iSize];
+        pTopology = new HexTopology (iDim);
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns true if this grid can hold a map of the given dimension and
+     number of seasons without reallocating.
+     */
+    public boolean fits (int iDim, int iNumSeasons)  {
+        return this.iDim == iDim && this.iNumSeasons == iNumSeasons;
+    }
+
+    /**
+     Returns a deep copy of this grid.
+     */
+    public HexGrid copy ()  {
+        HexGrid pCopy = new HexGrid (iDim, iNumSeasons);
+        System.arraycopy(fElevation, 0, pCopy.fElevation, 0, fElevation.length);
+        System.arraycopy(fTemperature, 0, pCopy.fTemperature, 0, fTemperature.length);
+        System.arraycopy(fScaledTemperature, 0, pCopy.fScaledTemperature, 0, fScaledTemperature.length);
+        System.arraycopy(iPressure, 0, pCopy.iPressure, 0, iPressure.length);
+        System.arraycopy(iWind, 0, pCopy.iWind, 0, iWind.length);
+        System.arraycopy(iRainfall, 0, pCopy.iRainfall, 0, iRainfall.length);
+        System.arraycopy(iClimate, 0, pCopy.iClimate, 0, iClimate.length);
+        System.arraycopy(iTerrainType, 0, pCopy.iTerrainType, 0, iTerrainType.length);
+        System.arraycopy(iShoreline, 0, pCopy.iShoreline, 0, iShoreline.length);
+        System.arraycopy(iRiver, 0, pCopy.iRiver, 0, iRiver.length);
+        if (sNames != null)  {
+            pCopy.sNames = sNames.clone();
+        }
+        return pCopy;
+    }
+
+    /**
+     Returns the approximate number of bytes held by the arrays of this grid.
+     */
+    public long getByteSize ()  {
+        long lCells = (long)iSize;
+        long lSeasonCells = (long)iNumSeasons * iSize;
+        return (lCells * 4)                 // elevation
+                + (lSeasonCells * (4 + 4 + 1 + 2 + 2))
+                + (lCells * 4);             // climate, terrain, shoreline, river
+    }
+
+    /**
+     Clears every field in place so the grid can be used for a new map.
+     */
+    public void clear ()  {
+        Arrays.fill(fElevation, 0.0f);
+        Arrays.fill(fTemperature, 0.0f);
+        Arrays.fill(fScaledTemperature, 0.0f);
+        Arrays.fill(iPressure, (byte)0);
+        Arrays.fill(iWind, (short)0);
+        Arrays.fill(iRainfall, (short)0);
+        Arrays.fill(iClimate, (byte)0);
+        Arrays.fill(iTerrainType, Hex.TERRAIN_NOTYPE);
+        Arrays.fill(iShoreline, (byte)0);
+        Arrays.fill(iRiver, (byte)0);
+        if (sNames != null)  {
+            Arrays.fill(sNames, null);
+        }
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Accessors and Mutators
+    //
+    public int getDimension ()  {
+        return iDim;
+    }
+
+    public int getSize ()  {
+        return iSize;
+    }
+
+    public HexTopology getTopology ()  {
+        return pTopology;
+    }
+
+    public int getNumSeasons ()  {
+        return iNumSeasons;
+    }
+
+    public int getIDNum (int x, int y)  {
+        return (y * iDim) + x;
+    }
+
+    public int getX (int iIDNum)  {
+        return iIDNum % iDim;
+    }
+
+    public int getY (int iIDNum)  {
+        return iIDNum / iDim;
+    }
+
+    /**
+     Returns the offset of (season, hex) in the season-major arrays.
+     */
+    public int seasonIndex (int iSeason, int iIDNum)  {
+        return (iSeason * iSize) + iIDNum;
+    }
+
+    /**
+     Returns the name of a hex.  Unless it has been renamed, the name is
+     built on demand as "(x,y)".
+     */
+    public String getName (int iIDNum)  {
+        if (sNames != null && sNames[iIDNum] != null)  {
+            return sNames[iIDNum];
+        }
+        return "("+getX(iIDNum)+","+getY(iIDNum)+")";
+    }
+
+    /**
+     Returns the names given with setName(), by hex id, or null if no hex
+     has been renamed.
+     */
+    String [] getCustomNames ()  {
+        return sNames;
+    }
+
+    public void setName (int iIDNum, String sName)  {
+        if (sNames == null)  {
+            sNames = new String [iSize];
+        }
+        sNames[iIDNum] = sName;
+    }
+
+    public float getElevation (int iIDNum)  {
+        return fElevation[iIDNum];
+    }
+
+    public void setElevation (int iIDNum, float fValue)  {
+        fElevation[iIDNum] = fValue;
+    }
+
+    public byte getTerrainType (int iIDNum)  {
+        return iTerrainType[iIDNum];
+    }
+
+    public void setTerrainType (int iIDNum, byte iType)  {
+        iTerrainType[iIDNum] = iType;
+    }
+
+    public byte getClimate (int iIDNum)  {
+        return iClimate[iIDNum];
+    }
+
+    public void setClimate (int iIDNum, byte iClim)  {
+        iClimate[iIDNum] = iClim;
+    }
+
+    public float getTemperature (int iSeason, int iIDNum)  {
+        return fTemperature[seasonIndex(iSeason, iIDNum)];
+    }
+
+    public void setTemperature (int iSeason, int iIDNum, float fTemp)  {
+        fTemperature[seasonIndex(iSeason, iIDNum)] = fTemp;
+    }
+
+    public float getScaledTemperature (int iSeason, int iIDNum)  {
+        return fScaledTemperature[seasonIndex(iSeason, iIDNum)];
+    }
+
+    public void setScaledTemperature (int iSeason, int iIDNum, float fTemp)  {
+        fScaledTemperature[seasonIndex(iSeason, iIDNum)] = fTemp;
+    }
+
+    public byte getPressure (int iSeason, int iIDNum)  {
+        return iPressure[seasonIndex(iSeason, iIDNum)];
+    }
+
+    public void setPressure (int iSeason, int iIDNum, byte bPres)  {
+        iPressure[seasonIndex(iSeason, iIDNum)] = bPres;
+    }
+
+    public short getWind (int iSeason, int iIDNum)  {
+        return iWind[seasonIndex(iSeason, iIDNum)];
+    }
+
+    public void setWind (int iSeason, int iIDNum, short iW)  {
+        iWind[seasonIndex(iSeason, iIDNum)] = iW;
+    }
+
+    public short getRainfall (int iSeason, int iIDNum)  {
+        return iRainfall[seasonIndex(iSeason, iIDNum)];
+    }
+
+    public void setRainfall (int iSeason, int iIDNum, short iRF)  {
+        iRainfall[seasonIndex(iSeason, iIDNum)] = iRF;
+    }
+
+    public byte getShoreline (int iIDNum)  {
+        return iShoreline[iIDNum];
+    }
+
+    public void setShoreline (int iIDNum, byte iShore)  {
+        iShoreline[iIDNum] = iShore;
+    }
+
+    /**
+     Returns the id of the neighbor of a hex in the given direction, or -1
+     if there is none.
+     */
+    public int getNeighbor (int iIDNum, int iDirection)  {
+        return pTopology.neighbor(iIDNum, iDirection);
+    }
+
+    public boolean isWater (int iIDNum)  {
+        return isWaterTerrain(iTerrainType[iIDNum]);
+    }
+
+    public boolean isLand (int iIDNum)  {
+        return !isWaterTerrain(iTerrainType[iIDNum]);
+    }
+
+    static boolean isWaterTerrain (byte iTerrain)  {
+        return iTerrain == Hex.TERRAIN_DEEPOCEAN || iTerrain == Hex.TERRAIN_OCEAN;
+    }
+
+    /**
+     Returns a Hex view onto the given entry of this grid.
+     */
+    public Hex getHex (int iIDNum)  {
+        return new Hex(this, iIDNum);
+    }
+}
@@ -0,0 +1,94 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.Serializable;
+
+/**
+ * The HexTopology class computes the neighbors of a hex arithmetically
+ * from its position, so that no neighbor references need to be stored.
+ *
+ * Columns are offset hex columns: even columns sit half a hex lower than
+ * odd ones.  x wraps around the map, y does not.  Two quirks of the
+ * original neighbor wiring are kept so that generated maps do not change:
+ * the last column, when it is odd, has no SouthEast neighbor; and the
+ * bottom hex of the last column, when it is even, has its SouthEast
+ * neighbor on the same row of column 0.
+ *
+ * @author Odysseus Levy
+ */
+
+public class HexTopology implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+
+    // Offsets indexed by [x % 2][direction], in the order of Hex.N .. Hex.NW
+    private static final int [][] DX = {
+            { 0, 1, 1, 0, -1, -1 },      // even columns
+            { 0, 1, 1, 0, -1, -1 }       // odd columns
+    };
+    private static final int [][] DY = {
+            { -1, 0, 1, 1, 1, 0 },       // even columns
+            { -1, -1, 0, 1, 0, -1 }      // odd columns
+    };
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iDim;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    public HexTopology (int iDim)  {
+        this.iDim = iDim;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public int getDimension ()  {
+        return iDim;
+    }
+
+    /**
+     Returns the id of the neighbor of (x, y) in the given direction, or -1
+     if there is none.
+     */
+    public int neighbor (int x, int y, int iDirection)  {
+        int iParity = x & 1;
+        int nx = x + DX[iParity][iDirection];
+        int ny = y + DY[iParity][iDirection];
+
+        if (nx == iDim)  {
+            if (iDirection == Hex.SE)  {
+                if (iParity == 1)  {
+                    return -1;
+                }
+                if (ny == iDim)  {
+                    ny = y;
+                }
+            }
+            nx = 0;
+        }
+        else if (nx < 0)  {
+            nx = iDim - 1;
+        }
+        if (ny < 0 || ny >= iDim)  {
+            return -1;
+        }
+        return (ny * iDim) + nx;
+    }
+
+    /**
+     Returns the id of the neighbor of the given hex in the given direction,
+     or -1 if there is none.
+     */
+    public int neighbor (int iIDNum, int iDirection)  {
+        return neighbor(iIDNum % iDim, iIDNum / iDim, iDirection);
+    }
+}
@@ -1,35 +1,534 @@
 package org.cosmosgame.mapbuilder;
 
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
 /**
+ * The Logger class writes leveled messages to System.out, from a
+ * background thread, so that logging never blocks the map builder on I/O.
+ *
+ * Messages below the logger's level are dropped before anything is done
+ * with them.  Messages take "{}" placeholders, filled from the arguments
+ * only when the message is written, so a disabled message costs a
+ * compare; the arguments must therefore not change after the call.
+ * Messages wait in a fixed ring of reusable records, shared by all
+ * loggers; if the ring is full the message is dropped and counted, and
+ * the count is written once there is room again.
+ *
+ * The writer thread, and the shutdown hook that flushes the ring when the
+ * JVM exits, are started by the first message.  A web application must
+ * call shutdown() when it stops, or both keep its class loader alive;
+ * messages after that are written by the thread logging them.
+ *
+ * Diagnostics repeated per hex should go through a Tally, which counts
+ * them and writes a single summary line.
+ *
  * Author: odysseus
  * Date: 2/4/12
  */
 public class Logger
 {
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+
+    private static final String [] LEVEL_NAMES = { "Debug", "Info", "Warn", "Error" };
+
+    /**
+     The system property holding the default level, by name ("Debug", ...).
+     */
+    public static final String LEVEL_PROPERTY = "org.cosmosgame.mapbuilder.log";
+
+    private static final int RING_SIZE = 4096;
+    private static final long SHUTDOWN_FLUSH_MS = 1000;
+    private static final Ring pRing = new Ring (RING_SIZE);
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private volatile int iLevel = parseLevel(System.getProperty(LEVEL_PROPERTY), INFO);
+
+
+    //-------------------------------------------------------------------
+    // Accessors & Mutators
+    //
+    public int getLevel ()  {
+        return iLevel;
+    }
+
+    /**
+     Sets the lowest level written; OFF turns the logger off.
+     */
+    public void setLevel (int iLevel)  {
+        this.iLevel = iLevel;
+    }
+
+    public boolean isEnabled (int iLevel)  {
+        return iLevel >= this.iLevel && iLevel < OFF;
+    }
+
+    public boolean isDebugEnabled ()  {
+        return isEnabled(DEBUG);
+    }
+
+    /**
+     Returns the number of messages dropped, by all loggers, because the
+     ring was full.
+     */
+    public static long getDroppedCount ()  {
+        return pRing.getDropped();
+    }
+
+    /**
+     Returns the level called sName, ignoring case, or iDefault.
+     */
+    public static int parseLevel (String sName, int iDefault)  {
+        if (sName != null)  {
+            for (int i = 0; i < LEVEL_NAMES.length; i++)  {
+                if (LEVEL_NAMES[i].equalsIgnoreCase(sName))  {
+                    return i;
+                }
+            }
+            if ("Off".equalsIgnoreCase(sName))  {
+                return OFF;
+            }
+        }
+        return iDefault;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public void debug (String sFormat)  {
+        if (isEnabled(DEBUG))  {
+            pRing.put(DEBUG, sFormat, null, null, null, null, 0);
+        }
+    }
+
+    public void debug (String sFormat, Object a0)  {
+        if (isEnabled(DEBUG))  {
+            pRing.put(DEBUG, sFormat, a0, null, null, null, 1);
+        }
+    }
+
+    public void debug (String sFormat, Object a0, Object a1)  {
+        if (isEnabled(DEBUG))  {
+            pRing.put(DEBUG, sFormat, a0, a1, null, null, 2);
+        }
+    }
+
+    public void debug (String sFormat, Object a0, Object a1, Object a2)  {
+        if (isEnabled(DEBUG))  {
+            pRing.put(DEBUG, sFormat, a0, a1, a2, null, 3);
+        }
+    }
+
+    public void debug (String sFormat, Object... pArgs)  {
+        if (isEnabled(DEBUG))  {
+            pRing.put(DEBUG, sFormat, null, null, null, pArgs, pArgs.length);
+        }
+    }
+
+    public void info (String sFormat)  {
+        if (isEnabled(INFO))  {
+            pRing.put(INFO, sFormat, null, null, null, null, 0);
+        }
+    }
+
+    public void info (String sFormat, Object a0)  {
+        if (isEnabled(INFO))  {
+            pRing.put(INFO, sFormat, a0, null, null, null, 1);
+        }
+    }
+
+    public void info (String sFormat, Object a0, Object a1)  {
+        if (isEnabled(INFO))  {
+            pRing.put(INFO, sFormat, a0, a1, null, null, 2);
+        }
+    }
+
+    public void info (String sFormat, Object a0, Object a1, Object a2)  {
+        if (isEnabled(INFO))  {
+            pRing.put(INFO, sFormat, a0, a1, a2, null, 3);
+        }
+    }
+
+    public void info (String sFormat, Object... pArgs)  {
+        if (isEnabled(INFO))  {
+            pRing.put(INFO, sFormat, null, null, null, pArgs, pArgs.length);
+        }
+    }
+
+    public void warn (String sFormat)  {
+        if (isEnabled(WARN))  {
+            pRing.put(WARN, sFormat, null, null, null, null, 0);
+        }
+    }
+
+    public void warn (String sFormat, Object a0)  {
+        if (isEnabled(WARN))  {
+            pRing.put(WARN, sFormat, a0, null, null, null, 1);
+        }
+    }
+
+    public void warn (String sFormat, Object a0, Object a1)  {
+        if (isEnabled(WARN))  {
+            pRing.put(WARN, sFormat, a0, a1, null, null, 2);
+        }
+    }
+
+    public void warn (String sFormat, Object a0, Object a1, Object a2)  {
+        if (isEnabled(WARN))  {
+            pRing.put(WARN, sFormat, a0, a1, a2, null, 3);
+        }
+    }
+
+    public void warn (String sFormat, Object... pArgs)  {
+        if (isEnabled(WARN))  {
+            pRing.put(WARN, sFormat, null, null, null, pArgs, pArgs.length);
+        }
+    }
+
+    /**
+     Writes info at the level named by level ("Info", "Warn", ...; anything
+     else is Info), and returns the line, or null if the level is off.
+     */
     public String log(String level, String info)
     {
-        String out = level + ":" + info + "\n";
-        System.out.print (out);
-        
-        return out;
+        int iAt = parseLevel(level, INFO);
+        if (!isEnabled(iAt))  {
+            return null;
+        }
+        pRing.put(iAt, info, null, null, null, null, 0);
+        return LEVEL_NAMES[iAt] + ":" + info + "\n";
     }
-    
+
     public String error(String error)
     {
-        return error(new Exception(error));    
+        return error(new Exception(error));
     }
-    
+
+    /**
+     Writes the exception with its stack trace, and returns them.
+     */
     public String error( Exception e)
     {
-        System.out.print(e.getMessage() + "\n");
         StringWriter writer = new StringWriter();
         e.printStackTrace(new PrintWriter(writer));
+        String trace = writer.toString();
+
+        if (isEnabled(ERROR))  {
+            // the trace starts with the message
+            pRing.put(ERROR, trace.trim(), null, null, null, null, 0);
+        }
+        return trace;
+    }
+
+    /**
+     Waits, for at most lMillis, until every message logged so far has been
+     written.
+     */
+    public static void flush (long lMillis)  {
+        pRing.flush(lMillis);
+    }
+
+    /**
+     Writes the messages waiting, for at most SHUTDOWN_FLUSH_MS, then stops
+     the writer thread and removes the shutdown hook.
+     */
+    public static void shutdown ()  {
+        pRing.shutdown(SHUTDOWN_FLUSH_MS);
+    }
+
+    /**
+     Returns a Tally of diagnostics to be logged at iLevel.
+     */
+    public Tally tally (int iLevel, String sWhat)  {
+        return new Tally (this, iLevel, sWhat);
+    }
+
+
+    //-------------------------------------------------------------------
+    // Tally
+    //
+    /**
+     A Tally counts a diagnostic that can happen for any number of hexes
+     (or whatever else) and keeps where it happened first; report() then
+     writes one line, "<count> <what>, the first at <where>", instead of
+     one per hex.  A Tally is used by one thread.
+     */
+    public static class Tally  {
+        private final Logger pLogger;
+        private final int iLevel;
+        private final String sWhat;
+        private long lCount = 0;
+        private long lFirst = -1;
+
+        Tally (Logger pLogger, int iLevel, String sWhat)  {
+            this.pLogger = pLogger;
+            this.iLevel = iLevel;
+            this.sWhat = sWhat;
+        }
+
+        public void add (long lWhere)  {
+            if (lCount++ == 0)  {
+                lFirst = lWhere;
+            }
+        }
+
+        public long getCount ()  {
+            return lCount;
+        }
+
+        /**
+         Returns where the diagnostic happened first, or -1.
+         */
+        public long getFirst ()  {
+            return lFirst;
+        }
+
+        /**
+         Logs the count, if there is any, and starts counting again.
+         */
+        public void report ()  {
+            if (lCount > 0 && pLogger.isEnabled(iLevel))  {
+                pRing.put(iLevel, "{} {}, the first at {}", lCount, sWhat, lFirst, null, 3);
+            }
+            lCount = 0;
+            lFirst = -1;
+        }
+    }
+
+
+    //-------------------------------------------------------------------
+    // Ring
+    //
+    /**
+     The ring of messages waiting to be written, and the daemon thread
+     writing them.  Records are reused: a producer copies its message into
+     the free record at the tail, the writer formats the record at the head
+     and only then frees it.
+     */
+    private static class Ring implements Runnable  {
+        private final Record [] pRecords;
+        private int iHead = 0;              // next record to write
+        private int iCount = 0;             // records waiting
+        private boolean bWriting = false;   // the head record is being written
+        private long lDropped = 0;
+        private long lReported = 0;         // drops already written about
+        private Thread pWriter = null;
+        private Thread pHook = null;
+        private boolean bStopped = false;   // by shutdown(); the callers write
+        private final StringBuilder pLine = new StringBuilder(256);
+
+        Ring (int iSize)  {
+            pRecords = new Record [iSize];
+            for (int i = 0; i < iSize; i++)  {
+                pRecords[i] = new Record();
+            }
+        }
+
+        synchronized long getDropped ()  {
+            return lDropped;
+        }
+
+        synchronized void put (int iLevel, String sFormat,
+                               Object a0, Object a1, Object a2, Object [] pArgs, int iArgs)
+        {
+            if (bStopped)  {
+                Record pRecord = new Record();
+                pRecord.iLevel = iLevel;
+                pRecord.sFormat = sFormat;
+                pRecord.a0 = a0;
+                pRecord.a1 = a1;
+                pRecord.a2 = a2;
+                pRecord.pArgs = pArgs;
+                pRecord.iArgs = iArgs;
+                write(pRecord, new StringBuilder(256), System.out);
+                return;
+            }
+            if (iCount == pRecords.length)  {
+                lDropped++;
+                return;
+            }
+            Record pRecord = pRecords[(iHead + iCount) % pRecords.length];
+            pRecord.iLevel = iLevel;
+            pRecord.sFormat = sFormat;
+            pRecord.a0 = a0;
+            pRecord.a1 = a1;
+            pRecord.a2 = a2;
+            pRecord.pArgs = pArgs;
+            pRecord.iArgs = iArgs;
+            iCount++;
+
+            if (pWriter == null)  {
+                start();
+            }
+            else if (iCount == 1)  {
+                notifyAll();
+            }
+        }
+
+        synchronized void flush (long lMillis)  {
+            long lEnd = System.currentTimeMillis() + lMillis;
+            long lLeft = lMillis;
+            while ((iCount > 0 || bWriting) && lLeft > 0)  {
+                try  {
+                    wait(lLeft);
+                }
+                catch (InterruptedException e)  {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                lLeft = lEnd - System.currentTimeMillis();
+            }
+        }
+
+        private void start ()  {
+            pWriter = new Thread(this, "Logger");
+            pWriter.setDaemon(true);
+            pWriter.start();
+            pHook = new Thread("Logger flush")  {
+                public void run ()  {
+                    flush(SHUTDOWN_FLUSH_MS);
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(pHook);
+        }
+
+        /**
+         Flushes, then ends the writer and removes the hook.  Messages left
+         after lMillis are dropped.
+         */
+        void shutdown (long lMillis)  {
+            Thread pThread, pHookThread;
+            synchronized (this)  {
+                flush(lMillis);
+                bStopped = true;
+                pThread = pWriter;
+                pHookThread = pHook;
+                pHook = null;
+                notifyAll();
+            }
+            if (pHookThread != null)  {
+                try  {
+                    Runtime.getRuntime().removeShutdownHook(pHookThread);
+                }
+                catch (IllegalStateException e)  {
+                    // the JVM is already exiting, and runs it anyway
+                }
+            }
+            if (pThread != null && pThread != Thread.currentThread())  {
+                try  {
+                    pThread.join(lMillis);
+                }
+                catch (InterruptedException e)  {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        public void run ()  {
+            while (true)  {
+                Record pRecord;
+                long lNewDrops;
+                synchronized (this)  {
+                    bWriting = false;
+                    notifyAll();
+                    while (iCount == 0 && lDropped == lReported && !bStopped)  {
+                        try  {
+                            wait();
+                        }
+                        catch (InterruptedException e)  {
+                            return;
+                        }
+                    }
+                    if (bStopped)  {
+                        pWriter = null;
+                        return;
+                    }
+                    lNewDrops = lDropped - lReported;
+                    lReported = lDropped;
+                    pRecord = (iCount > 0) ? pRecords[iHead] : null;
+                    bWriting = true;
+                }
+
+                PrintStream pOut = System.out;
+                if (lNewDrops > 0)  {
+                    pOut.print(LEVEL_NAMES[WARN] + ":" + lNewDrops + " log messages dropped\n");
+                }
+                if (pRecord != null)  {
+                    write(pRecord, pLine, pOut);
+
+                    synchronized (this)  {
+                        iHead = (iHead + 1) % pRecords.length;
+                        iCount--;
+                    }
+                }
+            }
+        }
+
+        private static void write (Record pRecord, StringBuilder pLine, PrintStream pOut)  {
+            pLine.setLength(0);
+            try  {
+                pRecord.format(pLine);
+            }
+            catch (RuntimeException e)  {
+                // an argument's toString() failed; keep the writer alive
+                pLine.setLength(0);
+                pLine.append(LEVEL_NAMES[ERROR]).append(":Could not format \"")
+                     .append(pRecord.sFormat).append("\": ").append(e).append('\n');
+            }
+            pOut.append(pLine);
+            pOut.flush();
+            pRecord.clear();
+        }
+    }
+
+    /**
+     A message waiting in the ring.  Up to three arguments are held in
+     fields, so that the common calls need no array.
+     */
+    private static class Record  {
+        int iLevel;
+        String sFormat;
+        Object a0, a1, a2;
+        Object [] pArgs;
+        int iArgs;
+
+        Object getArg (int i)  {
+            if (pArgs != null)  {
+                return pArgs[i];
+            }
+            return (i == 0) ? a0 : (i == 1) ? a1 : a2;
+        }
+
+        /**
+         Appends "Level:message\n", with each "{}" replaced by the next
+         argument; extra placeholders are left as they are.
+         */
+        void format (StringBuilder pLine)  {
+            pLine.append(LEVEL_NAMES[iLevel]).append(':');
+            String sFormat = String.valueOf(this.sFormat);
+            int iArg = 0, iFrom = 0, iAt;
+            while (iArg < iArgs && (iAt = sFormat.indexOf("{}", iFrom)) >= 0)  {
+                pLine.append(sFormat, iFrom, iAt).append(getArg(iArg++));
+                iFrom = iAt + 2;
+            }
+            pLine.append(sFormat, iFrom, sFormat.length()).append('\n');
+        }
 
-        e.printStackTrace();
-        
-        return writer.toString();
+        void clear ()  {
+            sFormat = null;
+            a0 = a1 = a2 = null;
+            pArgs = null;
+        }
     }
 }
@@ -0,0 +1,93 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * The MapArena class holds the scratch buffers used by the MapBuilder
+ * stages, sized for one map dimension.  A MapBuilder keeps its arena
+ * between generations so that generating another world of the same
+ * dimension does not allocate them again.
+ *
+ * The seasons of the climate stages run concurrently, so each season has
+ * its own set of buffers (see Season).
+ *
+ * The stages initialize every buffer they read before using it, so the
+ * arena never needs to be cleared as a whole.
+ *
+ * @author Odysseus Levy
+ */
+
+class MapArena {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    final int iDim;
+
+    final QuantileSelector pQuantiles = new QuantileSelector();  // terrain thresholds
+    final byte [] iBaseTerrain;                 // water and mountains, for the climate stages
+    final int [] iParent;                       // fillPuddles
+    final int [] iOceanRanges;                  // computeLandOceanRanges
+    final int [] iLandRanges;
+    final SummedAreaTable pLandTable;           // computeTemperatures
+    final WaterBodies pWaterBodies;             // fillPuddles, kept for callers
+
+    private Season [] pSeasons = new Season [0];
+
+
+    /**
+     The buffers used by one season of the pressure, wind and rainfall
+     stages.  Rainfall runs after wind in the same season, so it reuses the
+     wind buffers for its fetch frontiers, marks and counts.
+     */
+    static class Season {
+        final int [] iQueue;                    // computeRange, then fetch marks
+        final int [] iHighPressure;             // computeWind, then fetch frontier
+        final int [] iLowPressure;              // computeWind, then fetch frontier
+        final int [] iSmoothedPressure;         // computeWind, then fs
+
+        Season (int iSize)  {
+            iQueue = new int [iSize];
+            iHighPressure = new int [iSize];
+            iLowPressure = new int [iSize];
+            iSmoothedPressure = new int [iSize];
+        }
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    MapArena (int iDim)  {
+        int iSize = iDim * iDim;
+        this.iDim = iDim;
+
+        iParent = new int [iSize];
+        iBaseTerrain = new byte [iSize];
+        iOceanRanges = new int [iSize];
+        iLandRanges = new int [iSize];
+        pLandTable = new SummedAreaTable (iDim);
+        pWaterBodies = new WaterBodies (iDim);
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Makes sure there are buffers for iNumSeasons seasons.  Must be called
+     before the seasons are started.
+     */
+    void ensureSeasons (int iNumSeasons)  {
+        if (pSeasons.length < iNumSeasons)  {
+            Season [] pNew = new Season [iNumSeasons];
+            System.arraycopy(pSeasons, 0, pNew, 0, pSeasons.length);
+            for (int i = pSeasons.length; i < iNumSeasons; i++)  {
+                pNew[i] = new Season (iDim * iDim);
+            }
+            pSeasons = pNew;
+        }
+    }
+
+    Season getSeason (int iSeason)  {
+        return pSeasons[iSeason];
+    }
+}
@@ -10,6 +10,10 @@ package org.cosmosgame.mapbuilder;
 */
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  The Map class consists of a collection of hexes and contains
@@ -22,12 +26,44 @@ import java.util.*;
 
 public class MapBuilder {
 
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+
+    // The weight of each terrain type in countland(): water 0, mountains 3,
+    // any other land 1.
+    private static final int [] LAND_WEIGHTS = new int [Hex.NUM_TERRAIN + 1];
+    static  {
+        Arrays.fill (LAND_WEIGHTS, 1);
+        LAND_WEIGHTS[Hex.TERRAIN_DEEPOCEAN] = 0;
+        LAND_WEIGHTS[Hex.TERRAIN_OCEAN] = 0;
+        LAND_WEIGHTS[Hex.TERRAIN_MOUNTAINS] = 3;
+        LAND_WEIGHTS[Hex.TERRAIN_IMPASSABLEMOUNTAINS] = 3;
+    }
+
+    // The narrowest band of columns given its own task when finding the
+    // heat equator
+    private static final int MIN_HEQ_BAND_WIDTH = 64;
+
+    // The names of the map data the stages read and write (see MapStage)
+    public static final String DATA_ELEVATION = "elevation";
+    public static final String DATA_BASE_TERRAIN = "base terrain";   // water and mountains
+    public static final String DATA_TEMPERATURE = "temperature";
+    public static final String DATA_PRESSURE = "pressure";
+    public static final String DATA_WIND = "wind";
+    public static final String DATA_RAINFALL = "rainfall";
+    public static final String DATA_CLIMATE = "climate";
+    public static final String DATA_TERRAIN = "terrain";
+    public static final String DATA_RIVERS = "rivers";
+    public static final String DATA_SHORELINES = "shorelines";
+
     //-------------------------------------------------------------------
     // Data
     //
     public MapParams pParams;
     private String sName = null;
-    private Hex [] pHex = null;         // The collection of hexes.
+    private HexGrid pGrid = null;       // The per-hex data, as flat arrays.
+    private MapArena pArena = null;     // Scratch buffers, kept between generations.
     private int iDim;                   // The dimensions of the map
                                         // (note that the map has to be a square)
 
@@ -37,7 +73,13 @@ public class MapBuilder {
     private float fElevationImpassableMountains;
     private float fElevationLowest;
     private float fElevationHighest;
-    private transient int iProgress;
+    private StageGraph pStageGraph = null;
+    private final GenerationMonitor pMonitor = new GenerationMonitor();
+    private long lSeed;                 // The seed of the current map
+    private ExecutorService executor = null;
+    private int iThreads = 0;           // 0: as many as the executor has
+
+    private static ExecutorService defaultExecutor = null;
 
 
     public Random generator = new Random();
@@ -52,20 +94,38 @@ public class MapBuilder {
 
     }
 
+    /**
+     Prepares the builder for a new map.  If the builder already holds a grid
+     and scratch buffers of the right size they are cleared and reused, so
+     generating worlds of the same dimension back to back allocates (almost)
+     nothing.
+     */
     public void init (MapParams pParams)
     {
         this.pParams = pParams;
         this.iDim = pParams.dimension;
         this.sName = pParams.sName;
 
-        pHex = new Hex [iDim * iDim];
-        for (int x = 0; x < iDim; x++)  {
-            for (int y = 0; y < iDim; y++)  {
-                pHex[y*iDim + x] = new Hex (x,y,"("+x+","+y+")", pParams);
-            }
+        if (pGrid != null && pGrid.fits(iDim, pParams.iNumSeasons))  {
+            pGrid.clear();
+        }
+        else  {
+            pGrid = new HexGrid (iDim, pParams.iNumSeasons);
+        }
+        if (pArena == null || pArena.iDim != iDim)  {
+            pArena = new MapArena (iDim);
         }
-        attachHexen();
+        pArena.ensureSeasons(pParams.iNumSeasons);
+        pArena.pQuantiles.reset(pGrid.fElevation);
+        getStageGraph().invalidate();
+    }
 
+    /**
+     Clears the current map in place, keeping the grid and scratch buffers.
+     */
+    public void reset ()
+    {
+        init(pParams);
     }
 
     //-------------------------------------------------------------------
@@ -89,29 +149,136 @@ public class MapBuilder {
         return iDim;
     }
 
+    public HexGrid getGrid ()  {
+        return pGrid;
+    }
+
+    /**
+     Returns a Hex view for every hex in the map.  The views are created
+     on each call; stages that touch every hex should use getGrid().
+     */
     public Hex[] getHex()
     {
-        return pHex;
+        Hex [] pHexes = new Hex [iDim * iDim];
+        for (int i = 0; i < pHexes.length; i++)  {
+            pHexes[i] = pGrid.getHex(i);
+        }
+        return pHexes;
     }
 
     public Hex getHex (int x, int y)  {
-        try  {
-            return pHex[y*iDim + x];
-        }
-        catch (ArrayIndexOutOfBoundsException e)  {
+        int i = y*iDim + x;
+        if (i < 0 || i >= iDim * iDim)  {
             logger.error("argh!  no pHex("+x+","+y+")");
             return null;
         }
+        return pGrid.getHex(i);
     }
 
     public Hex getHex (int i)  {
-        return pHex[i];
+        return pGrid.getHex(i);
+    }
+
+    /**
+     Returns the catalog of the bodies of water of the current map.  It is
+     reused by the next generation, like the grid.
+     */
+    public WaterBodies getWaterBodies ()  {
+        return pArena.pWaterBodies;
+    }
+
+    /**
+     Returns the stages of world generation, in the order they run.
+     */
+    public List<MapStage> getStages ()  {
+        return getStageGraph().getStages();
     }
 
     public MapParams getParams ()  {
         return pParams;
     }
 
+    /**
+     Returns the seed the current map was generated from.
+     */
+    public long getSeed ()  {
+        return lSeed;
+    }
+
+    /**
+     Returns the executor the parallel stages run on.  Unless one has been
+     set, this is a shared pool with one daemon thread per processor.
+     */
+    public ExecutorService getExecutor ()  {
+        if (executor == null)  {
+            executor = getDefaultExecutor();
+        }
+        return executor;
+    }
+
+    public void setExecutor (ExecutorService executor)  {
+        this.executor = executor;
+    }
+
+    /**
+     Returns the number of threads the stages split their work for: as set,
+     or else as many as the executor runs at once.
+     */
+    public int getThreads ()  {
+        return (iThreads > 0) ? iThreads : MapTasks.threadsOf(getExecutor());
+    }
+
+    /**
+     Sets the number of threads to split the work for, for an executor
+     whose size can not be told; 0 goes back to the executor's.
+     */
+    public void setThreads (int iThreads)  {
+        this.iThreads = iThreads;
+    }
+
+    /**
+     The executor the stages hand their work to: getExecutor(), measured
+     by the monitor.
+     */
+    private ExecutorService getStageExecutor ()  {
+        return pMonitor.meter(getExecutor());
+    }
+
+    /**
+     Returns the monitor that times the stages and reports progress.
+     */
+    public GenerationMonitor getMonitor ()  {
+        return pMonitor;
+    }
+
+    /**
+     Publishes the monitor over JMX, under the name "MapBuilder".
+     */
+    public void registerMonitor ()  {
+        pMonitor.register("MapBuilder");
+    }
+
+    public void unregisterMonitor ()  {
+        pMonitor.unregister();
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor ()  {
+        if (defaultExecutor == null)  {
+            defaultExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        private int iCount = 0;
+
+                        public synchronized Thread newThread (Runnable r)  {
+                            Thread t = new Thread(r, "MapBuilder-" + (++iCount));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return defaultExecutor;
+    }
+
     public float getElevationHighest()  {
         return fElevationHighest;
     }
@@ -137,7 +304,7 @@ public class MapBuilder {
     }
 
     public float getElevation (int x, int y) throws NullPointerException {
-        return getHex(x,y).getElevation();
+        return pGrid.fElevation[y*iDim + x];
     }
 
 
@@ -146,192 +313,15 @@ public class MapBuilder {
                               float fElevation)
             throws NullPointerException
     {
-        getHex(x,y).setElevation(fElevation);
+        pGrid.fElevation[y*iDim + x] = fElevation;
+        pArena.pQuantiles.reset(pGrid.fElevation);
+        getStageGraph().invalidate(DATA_ELEVATION);
     }
 
 
     //-------------------------------------------------------------------
     // Methods
     //
-    /**
-     Takes the average of the four corners of the square.
-     The corners are given by the location and the step size.
-
-     1---2  1 = < x - step, y - step>
-     -----  2 = < x + step, y - step>
-     --*--  3 = < x - step, y + step>
-     -----  4 = < x + step, y + step>
-     3---4
-
-     @param x the x location of the center of the square
-     @param y the y location of the center of the square
-     @param iStep the step size of the sub division.
-     @return the average of the elevations of the square.
-     */
-    private float squareAverage (int x,
-                                 int y,
-                                 int iStep)
-            throws NullPointerException
-    {
-        float fSum;
-
-        // Surrounding component
-        fSum  = getElevation (x - iStep, y - iStep);
-        fSum += getElevation ((x + iStep) % iDim, y - iStep);
-        fSum += getElevation ((x + iStep) % iDim, (y + iStep) % iDim);
-        fSum += getElevation (x - iStep, (y + iStep) % iDim);
-
-        // Return average
-        return (fSum / 4.0f);
-    }
-
-
-    /**
-     Takes the average of the four corners of the diamond.
-     The corners are given by the location and the step size.
-
-     --1--  1 = < x, y - step>
-     -----  2 = < x + step, y>
-     4-*-2  3 = < x, y + step>
-     -----  4 = < x - step, y>
-     --3--
-
-     @param x the x location of the center of the diamond
-     @param y the y location of the center of the diamond
-     @param iStep the step size of the sub division.
-     @return the average of the elevations of the diamond.
-     */
-    private float diamondAverage (int x,
-                                  int y,
-                                  int iStep)
-            throws NullPointerException
-    {
-        float fSum;
-
-        // Surrounding component
-        fSum  = getElevation (x, (y - iStep + iDim) % iDim);
-        fSum += getElevation ((x - iStep + iDim) % iDim, y);
-        fSum += getElevation ((x + iStep) % iDim, y);
-        fSum += getElevation (x, (y + iStep) % iDim);
-
-        // Return average
-        return (fSum / 4.0f);
-    }
-
-
-    /**
-     Generates a random value in the range from  - fRange / 2 to + fRange /2.
-
-     @param fRange the range of the random number.
-     @return the random number ( - fRange/2 .. + fRange/2 ).
-     */
-    private float Random (float fRange)  {
-        return (float)((generator.nextDouble() * (double)fRange) - ((double)fRange / 2.0d));
-    }
-
-
-    private void attachHexen ()  {
-        int x, y;
-        // Attach neighboring hexen
-        for (x = 0; x < iDim; x++)  {
-            for (y = 0; y < iDim; y++)  {
-                // North
-                if (y > 0)  {
-                    getHex(x,y).setNeighbor(Hex.N,pHex[((y-1)*iDim)+x]);
-                }
-                // NorthEast
-                if (x < (iDim-1))  {
-                    if (x % 2 == 0)  {
-                        getHex(x,y).setNeighbor(Hex.NE,pHex[(y*iDim)+(x+1)]);
-                    }
-                    else {
-                        if (y > 0)  {
-                            getHex(x,y).setNeighbor(Hex.NE,pHex[((y-1)*iDim)+(x+1)]);
-                        }
-                    }
-                }
-                else  {
-                    if (x % 2 == 0)  {
-                        getHex(x,y).setNeighbor(Hex.NE,pHex[y*iDim]);
-                    }
-                    else {
-                        if (y > 0)  {
-                            getHex(x,y).setNeighbor(Hex.NE,pHex[(y-1)*iDim]);
-                        }
-                    }
-                }
-                // SouthEast
-                if (x < (iDim-1)) {
-                    if (x % 2 == 0)  {
-                        if (y < (iDim-1))  {
-                            getHex(x,y).setNeighbor(Hex.SE,pHex[((y+1)*iDim)+(x+1)]);
-                        }
-                    }
-                    else  {
-                        getHex(x,y).setNeighbor(Hex.SE,pHex[(y*iDim)+(x+1)]);
-                    }
-                }
-                else  {
-                    if (x % 2 == 0)  {
-                        if (y < iDim-1)  {
-                            getHex(x,y).setNeighbor(Hex.SE,pHex[(y+1)*iDim]);
-                        }
-                        else  {
-                            getHex(x,y).setNeighbor(Hex.SE,pHex[y*iDim]);
-                        }
-                    }
-                }
-                // South
-                if (y < (iDim-1))  {
-                    getHex(x,y).setNeighbor(Hex.S,pHex[((y+1)*iDim)+x]);
-                }
-                // SouthWest
-                if (x > 0)  {
-                    if (x % 2 == 0)  {
-                        if (y < (iDim-1))  {
-                            getHex(x,y).setNeighbor(Hex.SW,pHex[((y+1)*iDim)+(x-1)]);
-                        }
-                    }
-                    else  {
-                        getHex(x,y).setNeighbor(Hex.SW,pHex[(y*iDim)+(x-1)]);
-                    }
-                }
-                else  {
-                    if (x % 2 == 0)  {
-                        if (y < iDim-1)  {
-                            getHex(x,y).setNeighbor(Hex.SW,pHex[((y+1)*iDim)+(iDim-1)]);
-                        }
-                    }
-                    else  {
-                        getHex(x,y).setNeighbor(Hex.SW,pHex[(y*iDim)+(iDim-1)]);
-                    }
-                }
-                // NorthWest
-                if (x > 0)  {
-                    if (x % 2 == 0)  {
-                        getHex(x,y).setNeighbor(Hex.NW,pHex[(y*iDim)+(x-1)]);
-                    }
-                    else  {
-                        if (y > 0)  {
-                            getHex(x,y).setNeighbor(Hex.NW,pHex[((y-1)*iDim)+(x-1)]);
-                        }
-                    }
-                }
-                else  {
-                    if (x % 2 == 0)  {
-                        getHex(x,y).setNeighbor(Hex.NW,pHex[(y*iDim)+(iDim-1)]);
-                    }
-                    else  {
-                        if (y > 0)  {
-                            getHex(x,y).setNeighbor(Hex.NW,pHex[((y-1)*iDim)+(iDim-1)]);
-                        }
-                    }
-                }
-            }
-        }
-    }
-
-
     /**
      This function initializes the terrain in the map.  It uses
      the diamond square algorithm described in the description of
@@ -360,90 +350,22 @@ public class MapBuilder {
      new value.  This generates squares.  This is repeated until the entire
      map is filled.  With each iteration the range of the random value
      generator is multiplied by 2^H (where H is the roughness value).
+
+     The work is done by DiamondSquare, in parallel on the builder's
+     executor.  The random values depend only on MapParams.lSeed (or on a
+     seed drawn from generator when lSeed is 0), so a seed always gives
+     the same heightmap.
      */
     private void generateElevations ()  {
-        int x, y, iStep;
-        float fRange, fAvg;
-        int iIterations = pParams.iIterations;
-
-        try  {
-            // Initializations
-            fRange = 2.0f;   // So that we get values between -1.0 and 1.0
-            iStep = iDim >> 1;
-
-            setElevation (0, 0, Random (fRange));
-
-            // Initialize the map matrix with random elevations
-
-            while (iIterations > 0 && iStep > 0)  {
-                // Step through all the squares and diamonds
-                y = iStep;
-                while (y < iDim)  {
-                    x = iStep;
-                    while (x < iDim)  {
-                        // Generate squares
-                        setElevation (x, y, Random (fRange));
-                        // Generate diamonds
-                        setElevation (x, (y + iStep) % iDim, Random (fRange));
-                        x += iStep << 1;   // Go to the next square
-                    }
-                    y += iStep << 1;
-                }
-
-                // Go to the next iteration
-                iStep = iStep >> 1;
-                iIterations -= 1;
-            }
-
-            // Now generate the terrain again using the diamond square step
-
-            while (iStep > 0)  {
-                // Diamond Step
-                y = iStep;
-                while (y < iDim)  {
-                    x = iStep;
-                    while (x < iDim)  {
-                        fAvg  = squareAverage (x, y, iStep);
-                        fAvg += Random (fRange);
-                        setElevation (x, y, fAvg);
-                        x += iStep << 1;
-                    }
-                    y += iStep << 1;
-                }
-
-                // Square step
-                y = iStep;
-
-                while (y < iDim)  {
-                    x = iStep;
-                    while (x < iDim)  {
-                        fAvg  = diamondAverage (x, y - iStep, iStep);
-                        fAvg += Random (fRange);
-                        setElevation (x, y - iStep, fAvg);
-                        fAvg = diamondAverage (x - iStep, y, iStep);
-                        fAvg += Random (fRange);
-                        setElevation (x - iStep, y, fAvg);
-                        fAvg = diamondAverage ((x + iStep) % iDim, y, iStep);
-                        fAvg += Random (fRange);
-                        setElevation ((x + iStep) % iDim, y, fAvg);
-                        fAvg = diamondAverage (y, (y + iStep) % iDim, iStep);
-                        fAvg += Random (fRange);
-                        setElevation (x, (y + iStep) % iDim, fAvg);
-                        x += iStep << 1;
-                    }
-                    y += iStep << 1;
-                }
-
-                // Reduce the range, and go to the next iteration
-                fRange = fRange * (float)(Math.pow (2, -pParams.fRoughness));
-                iStep  = iStep >> 1;
-            }
-        }
-        catch (NullPointerException e)  
-        {
-            logger.error(e);
+        lSeed = pParams.lSeed;
+        while (lSeed == 0)  {
+            lSeed = generator.nextLong();
         }
 
+        DiamondSquare pDiamondSquare =
+                new DiamondSquare (pGrid.fElevation, iDim, lSeed, getStageExecutor(), getThreads());
+        pDiamondSquare.generate (pParams.iIterations, pParams.fRoughness);
+
         // Normalize all Elevations to [0,1]
         // then cube them (to flatten)
         calcHighLowElevations();
@@ -452,23 +374,22 @@ public class MapBuilder {
             fNormElFactor = 0.0f - fElevationLowest;
         }
         fNormElHigh = fElevationHighest + fNormElFactor;
-        for (x = 0; x < iDim; x++)  {
-            for (y = 0; y < iDim; y++)  {
-                float fCurEl = getElevation(x,y);
-                fCurEl = (float) Math.pow ((double)((fCurEl + fNormElFactor) / fNormElHigh), 2);
-                setElevation (x,y,fCurEl);
-            }
+        float [] fElevation = pGrid.fElevation;
+        for (int i = 0; i < (iDim * iDim); i++)  {
+            fElevation[i] = (float) Math.pow ((double)((fElevation[i] + fNormElFactor) / fNormElHigh), 2);
         }
         calcHighLowElevations();
+        pArena.pQuantiles.reset(fElevation);
     }
 
 
     private void calcHighLowElevations ()  {
+        float [] fElevation = pGrid.fElevation;
         fElevationHighest = Float.MIN_VALUE;
         fElevationLowest = Float.MAX_VALUE;
         float fCur;
         for (int i = 0; i < (iDim * iDim); i++)  {
-            fCur = pHex[i].getElevation();
+            fCur = fElevation[i];
             if (fCur < fElevationLowest)  {
                 fElevationLowest = fCur;
             }
@@ -482,216 +403,174 @@ public class MapBuilder {
     /**
      This function assigns Terrain based on Elevation.  Note that this does
      NOT generate all the terrain - just that which can be determined by
-     elevation alone.
+     elevation alone; every other hex is reset to TERRAIN_NOTYPE.
+
+     The thresholds are read either from a histogram of a sample of the
+     elevations (see MapParams.iThresholdBins) or, with
+     MapParams.bExactThresholds, from the exact elevations of the matching
+     ranks.  Either way the elevations are only counted once per heightmap,
+     so re-thresholding the same heightmap is cheap.
      */
     private void assignElevationBasedTerrain()  {
-        int [] iElevations = new int[1001];
-        int i,j,n,max;
-        float fNormFactor;
-        float fNormElevation;
-        float fNormElLow, fNormElHigh, fNormElFactor;
+        float [] fElevation = pGrid.fElevation;
+        byte [] iTerrain = pArena.iBaseTerrain;
+        float [] fThresholds;
 
-        logger.log("Info","Generating Elevation Based Terrain");
+        logger.info("Generating Elevation Based Terrain");
         pParams.fPercentDeepOcean = pParams.fPercentOcean * 0.75f;
 
-        for (i = 0; i <= 1000; i++)  {
-            iElevations[i] = 0;
-        }
-        fNormElFactor = 0.0f;
-        if (fElevationLowest < 0.0f)  {
-            fNormElFactor = 0.0f - fElevationLowest;
-        }
-        fNormElLow = fElevationLowest + fNormElFactor;
-        fNormElHigh = fElevationHighest + fNormElFactor;
-        fNormFactor = 1000.0f / (fNormElHigh - fNormElLow);
-        max = 0;
-        n = 0;
-        try  {
-            for (i = 0; i < (iDim * iDim); i+=5)  {
-                n = (int)((float)(pHex[i].getElevation() + fNormElFactor) * fNormFactor);
-                iElevations[n] += 1;
-                max++;
-            }
-        }
-        catch (ArrayIndexOutOfBoundsException e)  {
-            logger.log("Info","OOB: i == "+i+", n == "+n+"");
-        }
-
-        n = (int)((float)max * pParams.fPercentDeepOcean);
-        i = j = 0;
-        while (i < n && j <= 1000)  {
-            i += iElevations[j++];
-        }
-        j--;
-        fElevationDeepOcean = ((float)j / fNormFactor) - fNormElFactor;
-        n = (int)((float)max * pParams.fPercentOcean);
-        i = j = 0;
-        while (i < n && j <= 1000)  {
-            i += iElevations[j++];
+        float [] fPercents = { pParams.fPercentDeepOcean,
+                               pParams.fPercentOcean,
+                               pParams.fPercentMountains,
+                               pParams.fPercentImpassableMountains };
+        if (pParams.bExactThresholds)  {
+            fThresholds = findExactThresholds(fPercents);
         }
-        j--;
-        fElevationOcean = ((float)j / fNormFactor) - fNormElFactor;
-        n = (int)((float)max * pParams.fPercentMountains);
-        i = j = 0;
-        while (i < n && j <= 1000)  {
-            i += iElevations[j++];
+        else  {
+            fThresholds = findHistogramThresholds(fPercents);
         }
-        j--;
-        fElevationMountains = ((float)j / fNormFactor) - fNormElFactor;
-        n = (int)((float)max * pParams.fPercentImpassableMountains);
-        i = j = 0;
-        while (i < n && j <= 1000)  {
-            i += iElevations[j++];
-        }
-        j--;
-        fElevationImpassableMountains =
-                ((float)j / fNormFactor) - fNormElFactor;
+        fElevationDeepOcean = fThresholds[0];
+        fElevationOcean = fThresholds[1];
+        fElevationMountains = fThresholds[2];
+        fElevationImpassableMountains = fThresholds[3];
 
-        for (i = 0; i < (iDim * iDim); i++)  {
-            if (pHex[i].getElevation() < fElevationDeepOcean)  {
-                pHex[i].setTerrainType(Hex.TERRAIN_DEEPOCEAN);
+        for (int i = 0; i < (iDim * iDim); i++)  {
+            if (fElevation[i] < fElevationDeepOcean)  {
+                iTerrain[i] = Hex.TERRAIN_DEEPOCEAN;
             }
-            else if (pHex[i].getElevation() < fElevationOcean)  {
-                pHex[i].setTerrainType(Hex.TERRAIN_OCEAN);
+            else if (fElevation[i] < fElevationOcean)  {
+                iTerrain[i] = Hex.TERRAIN_OCEAN;
             }
-            else if (pHex[i].getElevation() > fElevationImpassableMountains)  {
-                pHex[i].setTerrainType(Hex.TERRAIN_IMPASSABLEMOUNTAINS);
+            else if (fElevation[i] > fElevationImpassableMountains)  {
+                iTerrain[i] = Hex.TERRAIN_IMPASSABLEMOUNTAINS;
             }
-            else if (pHex[i].getElevation() > fElevationMountains)  {
-                pHex[i].setTerrainType(Hex.TERRAIN_MOUNTAINS);
+            else if (fElevation[i] > fElevationMountains)  {
+                iTerrain[i] = Hex.TERRAIN_MOUNTAINS;
+            }
+            else  {
+                iTerrain[i] = Hex.TERRAIN_NOTYPE;
             }
         }
         fillPuddles();
     }
 
-    private void fillPuddles()  {
-        boolean [] pVisited = new boolean[iDim * iDim];
-        int i;
-        Hex pTempHex;
-        Vector pHexes;
+    /**
+     Reads each threshold off a histogram of every iThresholdSampleStep'th
+     elevation, normalized to iThresholdBins bins: the threshold is the
+     bottom of the bin in which the given fraction of the samples is
+     reached.
+     */
+    private float [] findHistogramThresholds (float [] fPercents)  {
+        float [] fThresholds = new float [fPercents.length];
+        int iBins = pParams.iThresholdBins;
+        int i, j, k, n, max;
+        float fNormFactor;
+        float fNormElLow, fNormElHigh, fNormElFactor;
 
-        for (i = 0; i < (iDim * iDim); i++)  {
-            pVisited[i] = false;
+        fNormElFactor = 0.0f;
+        if (fElevationLowest < 0.0f)  {
+            fNormElFactor = 0.0f - fElevationLowest;
         }
-
-        for (i = 0; i < (iDim * iDim); i++)  {
-            pTempHex = getHex (i);
-            if (!pVisited[i])  {
-                pVisited[i] = true;
-                if (pTempHex.isWater())  {
-                    pHexes = new Vector();
-                    pHexes.add(pTempHex);
-                    findWaterNeighbors(pTempHex, pHexes, pVisited);
-                    if (pHexes.size() < pParams.iMinInlandSeaSize)  {
-                        for (Enumeration e = pHexes.elements();
-                             e.hasMoreElements() ;
-                                )  {
-                            pTempHex = (Hex)e.nextElement();
-                            pTempHex.setTerrainType(Hex.TERRAIN_NOTYPE);
-                        }
-                    }
-                }
+        fNormElLow = fElevationLowest + fNormElFactor;
+        fNormElHigh = fElevationHighest + fNormElFactor;
+        fNormFactor = (float)iBins / (fNormElHigh - fNormElLow);
+
+        int [] iElevations = pArena.pQuantiles.histogram(iBins, pParams.iThresholdSampleStep,
+                                                         fNormElFactor, fNormFactor, getStageExecutor(),
+                                                         getThreads());
+        max = pArena.pQuantiles.getSampleCount();
+
+        for (k = 0; k < fPercents.length; k++)  {
+            n = (int)((float)max * fPercents[k]);
+            i = j = 0;
+            while (i < n && j <= iBins)  {
+                i += iElevations[j++];
             }
+            j--;
+            fThresholds[k] = ((float)j / fNormFactor) - fNormElFactor;
         }
+        return fThresholds;
     }
 
-    private boolean findWaterNeighbors (Hex pHex,
-                                        Vector pHexes,
-                                        boolean [] pVisited)  {
-        boolean done = false;
-        Hex pTempHex;
+    /**
+     Selects the thresholds from the elevations themselves, so that exactly
+     the given fraction of the hexes (ties aside) is below the deep ocean
+     and ocean thresholds, and below or at the mountain thresholds.
+     */
+    private float [] findExactThresholds (float [] fPercents)  {
+        int iSize = iDim * iDim;
+        int [] iRanks = new int [fPercents.length];
 
-        if (pHexes.size() >= pParams.iMinInlandSeaSize)  {
-            done = true;
+        for (int k = 0; k < fPercents.length; k++)  {
+            iRanks[k] = (int)((float)iSize * fPercents[k]);
         }
-        for (int i = 0; i < 6 && !done; i++)  {
-            pTempHex = pHex.getNeighbor(i);
-            if (pTempHex != null)  {
-                if (!pVisited[pTempHex.getIDNum()])  {
-                    pVisited[pTempHex.getIDNum()] = true;
-                    if (pTempHex.isWater())  {
-                        pHexes.add(pTempHex);
-                        done = findWaterNeighbors(pTempHex, pHexes, pVisited);
-                    }
-                }
-            }
-        }
-        return done;
+        // Water is below its threshold, mountains are above theirs
+        iRanks[2] -= 1;
+        iRanks[3] -= 1;
+        return pArena.pQuantiles.select(iRanks, getStageExecutor(), getThreads());
+    }
+
+    /**
+     Labels the bodies of water and turns the ones smaller than
+     iMinInlandSeaSize into land.
+     */
+    private void fillPuddles()  {
+        pArena.pWaterBodies.build(pArena.iBaseTerrain, pGrid.getTopology(),
+                                  pArena.iParent, pParams.iMinInlandSeaSize);
     }
 
 
 
+    /**
+     Sets the final terrain: the elevation based terrain, with the plain
+     land given the terrain of its climate, and icy ocean turned to ice.
+     */
     private void assignClimateBasedTerrain()  {
-        Hex pTempHex;
-
-        logger.log("Info","Generating Climate Based Terrain");
-                logger.log("Info","Generating Temperatures");
-                        computeTemperatures();
-        logger.log("Info","Generating Pressure");
-                computePressure();
-        logger.log("Info","Generating Wind");
-                computeWind();
-        logger.log("Info","Generating Rainfall");
-                computeRainfall();
-        logger.log("Info","Generating Climate");
-                computeClimate();
+        byte [] iTerrain = pGrid.iTerrainType;
+        byte [] iBaseTerrain = pArena.iBaseTerrain;
+        byte [] iClimate = pGrid.iClimate;
+        Logger.Tally pNoTerrain = logger.tally(Logger.WARN, "hexes with no terrain for their climate");
+
+        logger.info("Generating Climate Based Terrain");
         for (int i = 0; i < (iDim * iDim); i++)  {
-            pTempHex = getHex(i);
-            switch (pTempHex.getTerrainType())  {
+            iTerrain[i] = iBaseTerrain[i];
+            switch (iTerrain[i])  {
                 case Hex.TERRAIN_NOTYPE:
-                    switch (pTempHex.getClimate())  {
+                    switch (iClimate[i])  {
                         case Hex.CLIMATE_TUNDRA:
-                            pTempHex.setTerrainType(Hex.TERRAIN_TUNDRA);
+                            iTerrain[i] = Hex.TERRAIN_TUNDRA;
                             break;
                         case Hex.CLIMATE_STEPPE:
-                            pTempHex.setTerrainType(Hex.TERRAIN_STEPPE);
+                            iTerrain[i] = Hex.TERRAIN_STEPPE;
                             break;
                         case Hex.CLIMATE_DECIDUOUS:
-                            pTempHex.setTerrainType(Hex.TERRAIN_FOREST);
+                            iTerrain[i] = Hex.TERRAIN_FOREST;
                             break;
                         case Hex.CLIMATE_DESERT:
-                            pTempHex.setTerrainType(Hex.TERRAIN_DESERT);
+                            iTerrain[i] = Hex.TERRAIN_DESERT;
                             break;
                         case Hex.CLIMATE_SAVANNAH:
-                            pTempHex.setTerrainType(Hex.TERRAIN_SAVANNAH);
+                            iTerrain[i] = Hex.TERRAIN_SAVANNAH;
                             break;
                         case Hex.CLIMATE_PRAIRIE:
-                            pTempHex.setTerrainType(Hex.TERRAIN_PRAIRIE);
+                            iTerrain[i] = Hex.TERRAIN_PRAIRIE;
                             break;
                         case Hex.CLIMATE_JUNGLE:
-                            pTempHex.setTerrainType(Hex.TERRAIN_JUNGLE);
+                            iTerrain[i] = Hex.TERRAIN_JUNGLE;
                             break;
                         case Hex.CLIMATE_SWAMP:
-                            pTempHex.setTerrainType(Hex.TERRAIN_SWAMP);
+                            iTerrain[i] = Hex.TERRAIN_SWAMP;
                             break;
                         default:
-                            logger.log("Info","Hex "+i+": noTerrain.");
-                            logger.log("Info","  Elevation: "+pTempHex.getElevation()+"");
-                            logger.log("Info","Temp: ("+pTempHex.getTemperature(0)+","
-                                    +pTempHex.getTemperature(1)+","
-                                    +pTempHex.getTemperature(2)+","
-                                    +pTempHex.getTemperature(3)+")");
-                            logger.log("Info","Pressure: ("+pTempHex.getPressure(0)+","
-                                    +pTempHex.getPressure(1)+","
-                                    +pTempHex.getPressure(2)+","
-                                    +pTempHex.getPressure(3)+")");
-                            logger.log("Info","Rainfall: ("+pTempHex.getRainfall(0)+","
-                                    +pTempHex.getRainfall(1)+","
-                                    +pTempHex.getRainfall(2)+","
-                                    +pTempHex.getRainfall(3)+")");
-                            logger.log("Info","Pressure: ("+pTempHex.getPressure(0)+","
-                                    +pTempHex.getPressure(1)+","
-                                    +pTempHex.getPressure(2)+","
-                                    +pTempHex.getPressure(3)+")");
-                            logger.log("Info","  Climate: "+pTempHex.getClimate()+"");
+                            pNoTerrain.add(i);
                             break;
                     }
                     break;
                 case Hex.TERRAIN_OCEAN:
                 case Hex.TERRAIN_DEEPOCEAN:
-                    switch (pTempHex.getClimate())  {
+                    switch (iClimate[i])  {
                         case Hex.CLIMATE_OCEANICE:
-                            pTempHex.setTerrainType(Hex.TERRAIN_ICE);
+                            iTerrain[i] = Hex.TERRAIN_ICE;
                             break;
                     }
                     break;
@@ -699,21 +578,50 @@ public class MapBuilder {
                     break;
             }
         }
+        if (pNoTerrain.getCount() > 0 && logger.isDebugEnabled())  {
+            logNoTerrain((int)pNoTerrain.getFirst());
+        }
+        pNoTerrain.report();
+    }
+
+
+    /**
+     Logs what the climate stages computed for a hex that got no terrain.
+     */
+    private void logNoTerrain (int i)  {
+        Hex pHex = pGrid.getHex(i);
+        int iSeasons = pParams.iNumSeasons;
+        float [] fTemperature = new float [iSeasons];
+        byte [] iPressure = new byte [iSeasons];
+        short [] iRainfall = new short [iSeasons];
+        for (int s = 0; s < iSeasons; s++)  {
+            fTemperature[s] = pHex.getTemperature(s);
+            iPressure[s] = pHex.getPressure(s);
+            iRainfall[s] = pHex.getRainfall(s);
+        }
+        logger.debug("Hex {}: no terrain.  Elevation: {}  Climate: {}",
+                     i, pHex.getElevation(), pHex.getClimate());
+        logger.debug("  Temp: {}  Pressure: {}  Rainfall: {}",
+                     Arrays.toString(fTemperature), Arrays.toString(iPressure), Arrays.toString(iRainfall));
     }
 
 
     private void computeTemperatures ()  {
-        int iSeason, i, j;
+        int iSeason, i, j, iSize = iDim * iDim;
         double lat, lscl, sscl, x, fact, theta, delth, phase;
         double [] tland;
         double [] tsea;
         float tmax = -32000.0f, tmin = 32000.0f;
         float fTemp;
-        Hex pTempHex;
         tland = new double [pParams.iNumSeasons];
         tsea = new double [pParams.iNumSeasons];
         double DEG2RAD = (Math.PI / 180.0);
         float tscale;
+        byte [] iTerrain = pArena.iBaseTerrain;
+        float [] fTemperature = pGrid.fTemperature;
+        float [] fScaledTemperature = pGrid.fScaledTemperature;
+
+        pArena.pLandTable.build (iTerrain, LAND_WEIGHTS);
 
         lscl = DEG2RAD * 180.0 / (90.0 + pParams.dLandTempTilt * pParams.dAxialTilt);
         sscl = DEG2RAD * 180.0 / (90.0 + pParams.dOceanTempTilt * pParams.dAxialTilt);
@@ -732,9 +640,7 @@ public class MapBuilder {
                 tsea[iSeason] = (pParams.dBaseOceanTemp + pParams.dOceanTempVariance * Math.cos(x)) * fact;
             }
             for (i=0; i < iDim; i++) {
-                int iTerrain = getHex(i,j).getTerrainType();
-                if (   iTerrain == Hex.TERRAIN_OCEAN
-                        || iTerrain == Hex.TERRAIN_DEEPOCEAN)  {
+                if (HexGrid.isWaterTerrain(iTerrain[j*iDim+i]))  {
                     x = pParams.dOceanSmooth + (countland (i, j) / pParams.dOceanDiv);
                 }
                 else  {
@@ -742,7 +648,7 @@ public class MapBuilder {
                 }
                 for (iSeason=0; iSeason < pParams.iNumSeasons; iSeason++)  {
                     fTemp = (float)(tsea[iSeason] + (tland[iSeason] - tsea[iSeason]) * x);
-                    getHex(i,j).setTemperature(iSeason, fTemp);
+                    fTemperature[iSeason*iSize + j*iDim+i] = fTemp;
                     if (fTemp < tmin)  {
                         tmin = fTemp;
                     }
@@ -753,410 +659,496 @@ public class MapBuilder {
             }
         }
 
-        int avgScaledTemp = 0;
         // Compute scale; for every Season, fill ts from tt
         tscale = 254.0f / (tmax - tmin);
-        for (iSeason=0; iSeason < pParams.iNumSeasons; iSeason++) {
-            for (i = 0; i < iDim; i++)  {
-                for (j = 0; j < iDim; j++)  {
-                    pTempHex = getHex(i,j);
-                    pTempHex.setScaledTemperature(iSeason, (pTempHex.getTemperature(iSeason) - tmin) * tscale);
-                    avgScaledTemp += (pTempHex.getTemperature(iSeason) - tmin) * tscale;
-                }
-            }
+        for (i = 0; i < pParams.iNumSeasons * iSize; i++)  {
+            fScaledTemperature[i] = (fTemperature[i] - tmin) * tscale;
         }
-        avgScaledTemp /= (iDim * iDim);
     }
 
 
     /**
      Called by computeTemperatures() for each hex, this function looks
      in a 11 wide by 5 high box and counts the number of land squares
-     found there.  It compensates for y values off the map, and wraps x
-     values around.
+     found there, mountains counting three times.  It compensates for y
+     values off the map, and wraps x values around.  The land table must
+     have been built from the terrain first.
      */
     private int countland (int x, int y)  {
-        int sum=0;
-        int jmin, jmax, j1, i0, i1;
-        Hex pTempHex;
-
-        jmin = y - 2;
-        if (jmin < 0)  {
-            jmin = 0;
-        }
-        jmax = y + 2;
-        if (jmax >= iDim)  {
-            jmax = iDim-1;
-        }
-        for (j1 = jmin; j1 <= jmax; j1++)  {
-            for (i0 = -5; i0 < 6; i0++) {
-                i1 = i0 + x;
-                if (i1 < 0)  {
-                    i1 += iDim;
-                }
-                if (i1 >= iDim)  {
-                    i1 -= iDim;
-                }
-                pTempHex = getHex(i1,j1);
-                switch (pTempHex.getTerrainType())  {
-                    case Hex.TERRAIN_OCEAN:
-                    case Hex.TERRAIN_DEEPOCEAN:
-                        break;
-                    case Hex.TERRAIN_MOUNTAINS:
-                    case Hex.TERRAIN_IMPASSABLEMOUNTAINS:
-                        sum += 2;
-                    default:
-                        sum += 1;
-                }
-            }
-        }
-        return (sum);
+        return pArena.pLandTable.sum (x - 5, y - 2, x + 5, y + 2);
     }
 
 
     /**
      This function is called by a number of climate routines.  It takes an
      input array with blobs of -1's on a background of 0's.  The function winds
-     up replacing each 0 with the distance from that square to the nearest -1.
-     The function onerange() does all the work, but it will not compute ranges
-     greater than MAXRANGE.  Therefore, after onerange() is called, any
-     remaining 0 values must be replaced with MAXRANGE, indicating that that
-     square is "very far" from any -1 value.
-     The main part of this routine consists of a loop.  Each time through the
-     loop, every square is checked.  If the square is zero, it has not yet been
-     updated.  In that case, look to see if any adjacent squares were previously
-     updated (or if they were initialized to -1).  If so, set the square to the
-     current distance value, which happens to be identical to the outer loop
-     variable.  If, after one loop iteration, no squares have been updated, the
-     matrix must be completely updated.  Stop.  To keep down run-time, a maximum
-     distance value, MAXRANGE, is used as the terminating loop value.
+     up replacing each 0 with the distance from that square to the nearest -1,
+     counted in steps to the four adjacent squares.  x wraps around, y does
+     not.  Distances of bMaxRange or more are not computed; any square that
+     far away is set to bMaxRange, indicating that that square is "very far"
+     from any -1 value.
+     The distances are found with a breadth first search started from every
+     -1 at once.  Squares leave the queue in order of distance, so each one
+     is set exactly once, to its final value, and the search can stop as soon
+     as it reaches bMaxRange.  The cost is linear in the size of the map
+     whatever bMaxRange is.  iQueue must be at least as big as the map.
      */
-    private void computeRange (int [] iRanges)  {
-        int i, j;
-        int x, k, keepgo;
-
-        for (k = 1; k < pParams.bMaxRange; k++)  {
-            for (keepgo=0, j=0; j < iDim; j++)  {
-                for (i = 0; i < iDim; i++)  {
-                    if (iRanges[(j*iDim)+i] == 0) {
-                        keepgo = 1;
-                        x = iRanges[(j*iDim) + (i != 0 ? i-1 : iDim - 1)];
-                        if (x != 0 && (x != k))  {
-                            iRanges[(j*iDim)+i] = k;
-                        }
-                        x = iRanges[(j*iDim) + ((i<iDim-1) ? i+1 : 0)];
-                        if (x != 0 && (x != k))  {
-                            iRanges[(j*iDim)+i] = k;
-                        }
-                        if (j < iDim-1) {
-                            x = iRanges[((j+1)*iDim)+i];
-                            if (x != 0 && (x != k))  {
-                                iRanges[(j*iDim)+i] = k;
-                            }
-                        }
-                        if (j != 0) {
-                            x = iRanges[((j-1)*iDim)+i];
-                            if (x != 0 && (x != k))  {
-                                iRanges[(j*iDim)+i] = k;
-                            }
-                        }
-                    }
-                }
+    private void computeRange (int [] iRanges, int [] iQueue)  {
+        computeRange(iRanges, iDim, pParams.bMaxRange, iQueue);
+    }
+
+    /**
+     computeRange for an iDim by iDim map, stopping at iMaxRange.  It is
+     static so that ComputeRangeTest can check it against the old sweep.
+     */
+    static void computeRange (int [] iRanges, int iDim, int iMaxRange, int [] iQueue)  {
+        int iSize = iDim * iDim;
+        int iHead = 0, iTail = 0;
+        int i, x, iRow, k, iNext;
+
+        for (i = 0; i < iSize; i++)  {
+            if (iRanges[i] != 0)  {
+                iQueue[iTail++] = i;
             }
         }
 
-        for (j = 0; j < iDim; j++)  {
-            for (i = 0; i < iDim; i++)  {
-                if (iRanges[(j*iDim)+i] == 0)  {
-                    iRanges[(j*iDim)+i] = pParams.bMaxRange;
-                }
+        while (iHead < iTail)  {
+            i = iQueue[iHead++];
+            k = (iRanges[i] < 0) ? 1 : iRanges[i] + 1;
+            if (k >= iMaxRange)  {
+                break;
+            }
+            x = i % iDim;
+            iRow = i - x;
+
+            iNext = iRow + ((x != 0) ? x-1 : iDim-1);
+            if (iRanges[iNext] == 0)  {
+                iRanges[iNext] = k;
+                iQueue[iTail++] = iNext;
+            }
+            iNext = iRow + ((x < iDim-1) ? x+1 : 0);
+            if (iRanges[iNext] == 0)  {
+                iRanges[iNext] = k;
+                iQueue[iTail++] = iNext;
+            }
+            iNext = i + iDim;
+            if (iNext < iSize && iRanges[iNext] == 0)  {
+                iRanges[iNext] = k;
+                iQueue[iTail++] = iNext;
+            }
+            iNext = i - iDim;
+            if (iNext >= 0 && iRanges[iNext] == 0)  {
+                iRanges[iNext] = k;
+                iQueue[iTail++] = iNext;
             }
         }
 
+        for (i = 0; i < iSize; i++)  {
+            if (iRanges[i] == 0)  {
+                iRanges[i] = iMaxRange;
+            }
+        }
     }
 
 
-    private void computePressure ()  {
-        int [] iRanges;
-        int iSeason;
-        int i, j;
-        int x;
-        Hex pTempHex;
-        int sum, jlast = 0, jnext;
+    /**
+     Computes the distance fields used to place the pressure zones.  They
+     only depend on the terrain, so they are computed once for all seasons.
 
-        iRanges = new int [iDim * iDim];
-        for (iSeason=0; iSeason < pParams.iNumSeasons; iSeason++) {
-            // Determine ocean highs and lows.  An ocean high or low must occur over
-            // ocean, far away from major land masses.  Two calls to range() are made
-            // to find the qualifying ocean areas; then temperature criteria are used
-            // to select the actual pressure zones.
+     iOceanRanges holds, for every square, the distance to the nearest big
+     piece of land (ignoring islands of radius OLTHRESH or less).
+     iLandRanges holds the distance to the nearest big ocean (ignoring lakes
+     of radius LOTHRESH or less).
+     */
+    private void computeLandOceanRanges ()  {
+        int i, iSize = iDim * iDim;
+        int [] iOceanRanges = pArena.iOceanRanges;
+        int [] iLandRanges = pArena.iLandRanges;
+        int [] iQueue = pArena.getSeason(0).iQueue;
+        byte [] iTerrain = pArena.iBaseTerrain;
+
+        // Set r to the distance on land from the coast.
+        for (i = 0; i < iSize; i++)  {
+            iOceanRanges[i] = HexGrid.isWaterTerrain(iTerrain[i]) ? -1 : 0;
+        }
+        computeRange (iOceanRanges, iQueue);
+
+        //  Initialize r to contain blobs on land which are at least OLTHRESH
+        // squares away from the coast.  Then set r to the distance from these.
+        // The result in r is the distance from the nearest big piece of land
+        // (ignoring islands).
+        for (i = 0; i < iSize; i++)  {
+            iOceanRanges[i] = (iOceanRanges[i] > pParams.OLTHRESH) ? -1 : 0;
+        }
+        computeRange (iOceanRanges, iQueue);
 
-            // Set r to the distance on land from the coast.
-            for (i = 0; i < iDim; i++)  {
-                for (j = 0; j < iDim; j++)  {
-                    switch (getHex(i,j).getTerrainType())  {
-                        case Hex.TERRAIN_DEEPOCEAN:
-                        case Hex.TERRAIN_OCEAN:
-                            iRanges[(j * iDim) + i] = -1;
-                            break;
-                        default:
-                            iRanges[(j * iDim) + i] = 0;
-                            break;
-                    }
+        // Set r to distance on water from coast.
+        for (i = 0; i < iSize; i++)  {
+            iLandRanges[i] = HexGrid.isWaterTerrain(iTerrain[i]) ? 0 : -1;
+        }
+        computeRange (iLandRanges, iQueue);
+
+        // Initialize r to contain blobs on ocean which are at least LOTHRESH
+        // squares away from the coast.  Then set r to the distance from these.
+        // The result in r is the distance from the nearest ocean, ignoring
+        // lakes.
+        for (i = 0; i < iSize; i++)  {
+            iLandRanges[i] = (iLandRanges[i] > pParams.LOTHRESH) ? -1 : 0;
+        }
+        computeRange (iLandRanges, iQueue);
+    }
+
+
+    /**
+     The work of one season of the pressure, wind or rainfall stage.
+     */
+    private interface SeasonTask  {
+        void run (int iSeason);
+    }
+
+    /**
+     Runs the task for every season.  Once the temperatures are known the
+     seasons are independent, so each one runs as its own task on the
+     builder's executor.
+     */
+    private void forEachSeason (final SeasonTask pTask, String sWhat)  {
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(pParams.iNumSeasons);
+
+        for (int s = 0; s < pParams.iNumSeasons; s++)  {
+            final int iSeason = s;
+            pTasks.add(new Callable<Void>() {
+                public Void call ()  {
+                    pTask.run(iSeason);
+                    return null;
                 }
+            });
+        }
+        MapTasks.invokeAll(getStageExecutor(), pTasks, sWhat);
+    }
+
+    private void computePressures ()  {
+        final int [] iHeatEquatorRows = findHeatEquatorRows();
+
+        logger.info("Generating Pressure");
+        computeLandOceanRanges();
+        forEachSeason(new SeasonTask() {
+            public void run (int iSeason)  {
+                computePressure(iSeason, iHeatEquatorRows);
             }
-            computeRange (iRanges);
-
-            //  Initialize r to contain blobs on land which are at least OLTHRESH
-            // squares away from the coast.  Then set r to the distance from these.
-            // The result in r is the distance from the nearest big piece of land
-            // (ignoring islands).
-            for (i=0; i< (iDim * iDim); i++)  {
-                iRanges[i] = (iRanges[i] > pParams.OLTHRESH) ? -1 : 0;
-            }
-            computeRange (iRanges);
-
-            // For each array element, if it is at least OOTHRESH squares from the
-            // nearest big piece of land, it might be the center of an ocean pressure
-            // zone.  The pressure zones are defined by temperature ranges; if the
-            // temperature in ts is between OLMIN and OLMAX, a low is recorded, while
-            // if the temperature is between OHMIN and OHMAX, a high is recorded.
-            for (j = 0; j < iDim; j++)  {
-                for (i = 0; i < iDim; i++)  {
-                    pTempHex = getHex(i,j);
-                    pTempHex.setPressure(iSeason, (byte)0);
-                    x = (int)(pTempHex.getScaledTemperature(iSeason));
-                    if (iRanges[(j * iDim) + i] > pParams.OOTHRESH)  {
-                        if ((x >= pParams.OLMIN) && (x <= pParams.OLMAX))  {
-                            pTempHex.setPressure(iSeason, Hex.PRESSURE_LOW);
-                        }
-                        if ((x >= pParams.OHMIN) && (x <= pParams.OHMAX))  {
-                            pTempHex.setPressure(iSeason, Hex.PRESSURE_HIGH);
-                        }
-                    }
-                }
+        }, "Pressure generation");
+    }
+
+    private void computeWinds ()  {
+        logger.info("Generating Wind");
+        forEachSeason(new SeasonTask() {
+            public void run (int iSeason)  {
+                computeWind(iSeason);
             }
+        }, "Wind generation");
+    }
 
+    private void computeRainfalls ()  {
+        logger.info("Generating Rainfall");
+        forEachSeason(new SeasonTask() {
+            public void run (int iSeason)  {
+                computeRainfall(iSeason);
+            }
+        }, "Rainfall generation");
+    }
 
-            // find land highs and lows.  A land high or low must occur over land,
-            // far from major oceans.  Two calls to range() are made to find the
-            // qualifying land areas; then temperature criteria are used to select
-            // the actual pressure zones.
 
-            // Set r to distance on water from coast.
-            for (j=0; j<iDim; j++)  {
-                for (i=0; i<iDim; i++)  {
-                    switch (getHex(i,j).getTerrainType())  {
-                        case Hex.TERRAIN_DEEPOCEAN:
-                        case Hex.TERRAIN_OCEAN:
-                            iRanges[(j * iDim) + i] = 0;
-                            break;
-                        default:
-                            iRanges[(j * iDim) + i] = -1;
-                            break;
+    /**
+     Finds the heat equator for every season: in each column, the median
+     position of the scaled temperature.  The row for column i of season s
+     is returned in element s * iDim + i.  The columns are independent, so
+     they are split into bands, each band running as its own task.
+     */
+    private int [] findHeatEquatorRows ()  {
+        final int [] iRows = new int [pParams.iNumSeasons * iDim];
+        int iBands = Math.max(1, Math.min(iDim / MIN_HEQ_BAND_WIDTH, getThreads()));
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(pParams.iNumSeasons * iBands);
+
+        for (int s = 0; s < pParams.iNumSeasons; s++)  {
+            for (int b = 0; b < iBands; b++)  {
+                final int iSeason = s;
+                final int iFirst = (iDim * b) / iBands;
+                final int iLast = (iDim * (b + 1)) / iBands;
+                pTasks.add(new Callable<Void>() {
+                    public Void call ()  {
+                        findHeatEquatorRows(iSeason, iFirst, iLast, iRows);
+                        return null;
                     }
-                }
+                });
             }
-            computeRange (iRanges);
-
-            // Initialize r to contain blobs on ocean which are at least LOTHRESH
-            // squares away from the coast.  Then set r to the distance from these.
-            // The result in r is the distance from the nearest ocean, ignoring
-            // lakes.
-            for (i=0; i< (iDim * iDim); i++)  {
-                iRanges[i] = (iRanges[i] > pParams.LOTHRESH) ? -1 : 0;
+        }
+        MapTasks.invokeAll(getStageExecutor(), pTasks, "Heat equator detection");
+        return iRows;
+    }
+
+    /**
+     Finds the heat equator rows of the columns [iFirst, iLast) of one
+     season.  The map is read a row at a time, keeping a running total for
+     each column: the first pass totals the columns, the second stops each
+     column where its total so far reaches half the total for the column.
+     This is the median position.
+     */
+    private void findHeatEquatorRows (int iSeason, int iFirst, int iLast, int [] iRows)  {
+        int iWidth = iLast - iFirst;
+        int [] iHalf = new int [iWidth];
+        int [] iSum = new int [iWidth];
+        int i, j, iRow, iOffset = iSeason * iDim * iDim;
+        float [] fScaledTemperature = pGrid.fScaledTemperature;
+
+        // Find the total of the temperatures in each column
+        for (j = 0; j < iDim; j++)  {
+            iRow = iOffset + j*iDim + iFirst;
+            for (i = 0; i < iWidth; i++)  {
+                iHalf[i] += (int)(fScaledTemperature[iRow+i]);
             }
-            computeRange (iRanges);
-
-            // For each array element, if it is at least LLTHRESH squares from the
-            // nearest large ocean, it might be the center of a land pressure zone.
-            // The pressure zones are defined by temperature ranges; if the
-            // temperature in ts is between LLMIN and LLMAX, a low is recorded,
-            // while if the temperature is between LHMIN and LHMAX, a high is
-            // recorded.
-            for (j = 0; j < iDim; j++)  {
-                for (i = 0; i < iDim; i++)  {
-                    pTempHex = getHex(i,j);
-                    x = (int)(pTempHex.getScaledTemperature(iSeason));
-                    if (iRanges[(j*iDim)+i] > pParams.LLTHRESH)  {
-                        if ((x >= pParams.LLMIN) && (x <= pParams.LLMAX))  {
-                            pTempHex.setPressure(iSeason, Hex.PRESSURE_LOW);
-                        }
-                        if ((x >= pParams.LHMIN) && (x <= pParams.LHMAX))  {
-                            pTempHex.setPressure(iSeason, Hex.PRESSURE_HIGH);
-                        }
+        }
+
+        // Step through the columns again until the total so far is at least
+        // half the total for the column.  Columns not yet stopped are marked
+        // with a row of -1.
+        for (i = 0; i < iWidth; i++)  {
+            iHalf[i] >>= 1;
+            iRows[(iSeason * iDim) + iFirst + i] = -1;
+        }
+        for (j = 0; j < iDim; j++)  {
+            iRow = iOffset + j*iDim + iFirst;
+            for (i = 0; i < iWidth; i++)  {
+                if (iRows[(iSeason * iDim) + iFirst + i] < 0)  {
+                    if (iSum[i] >= iHalf[i])  {
+                        iRows[(iSeason * iDim) + iFirst + i] = j;
+                    }
+                    else  {
+                        iSum[i] += (int)(fScaledTemperature[iRow+i]);
                     }
                 }
             }
+        }
 
-            // This function finds the heat equator and marks it in pr.  For each
-            // vertical column of ts, the median position is found and marked.  To
-            // make the heat equator continuous, jlast is set to the position of the
-            // heat equator in the previous column; a connection is made in the
-            // present column to ensure continuity.
-            sum = 0;
-            for (i = 0; i < iDim; i++)  {
-                // Find the total of the temperatures in this column
-                for (sum=0, j=0; j < iDim; j++)  {
-                    sum += (int)(getHex(i,j).getScaledTemperature(iSeason));
-                }
+        // A column whose last square holds more than half its total stops on
+        // the last row.
+        for (i = 0; i < iWidth; i++)  {
+            if (iRows[(iSeason * iDim) + iFirst + i] < 0)  {
+                iRows[(iSeason * iDim) + iFirst + i] = iDim - 1;
             }
+        }
+    }
+
 
-            // Step through the column again until the total so far is exactly
-            // half the total for the column.  This is the median position.
-            for (sum >>= 1, j = 0; j < iDim && sum > 0; j++)  {
-                sum -= (int)(getHex(i,j).getScaledTemperature(iSeason));
+    private void computePressure (int iSeason, int [] iHeatEquatorRows)  {
+        int i, j, jlast;
+        int x;
+        int iSize = iDim * iDim, iOffset = iSeason * iSize;
+        int [] iOceanRanges = pArena.iOceanRanges;
+        int [] iLandRanges = pArena.iLandRanges;
+        byte [] iPressure = pGrid.iPressure;
+        float [] fScaledTemperature = pGrid.fScaledTemperature;
+
+        // Determine ocean highs and lows.  An ocean high or low must occur over
+        // ocean, far away from major land masses.
+        // For each array element, if it is at least OOTHRESH squares from the
+        // nearest big piece of land, it might be the center of an ocean pressure
+        // zone.  The pressure zones are defined by temperature ranges; if the
+        // temperature in ts is between OLMIN and OLMAX, a low is recorded, while
+        // if the temperature is between OHMIN and OHMAX, a high is recorded.
+        for (i = 0; i < iSize; i++)  {
+            iPressure[iOffset+i] = 0;
+            x = (int)(fScaledTemperature[iOffset+i]);
+            if (iOceanRanges[i] > pParams.OOTHRESH)  {
+                if ((x >= pParams.OLMIN) && (x <= pParams.OLMAX))  {
+                    iPressure[iOffset+i] = Hex.PRESSURE_LOW;
+                }
+                if ((x >= pParams.OHMIN) && (x <= pParams.OHMAX))  {
+                    iPressure[iOffset+i] = Hex.PRESSURE_HIGH;
+                }
             }
+        }
 
-            // Mark this position and remember it with jnext
-            getHex(i,j).setPressure(iSeason, Hex.PRESSURE_HEQ);
-            jnext = j;
+        // find land highs and lows.  A land high or low must occur over land,
+        // far from major oceans.
+        // For each array element, if it is at least LLTHRESH squares from the
+        // nearest large ocean, it might be the center of a land pressure zone.
+        // The pressure zones are defined by temperature ranges; if the
+        // temperature in ts is between LLMIN and LLMAX, a low is recorded,
+        // while if the temperature is between LHMIN and LHMAX, a high is
+        // recorded.
+        for (i = 0; i < iSize; i++)  {
+            x = (int)(fScaledTemperature[iOffset+i]);
+            if (iLandRanges[i] > pParams.LLTHRESH)  {
+                if ((x >= pParams.LLMIN) && (x <= pParams.LLMAX))  {
+                    iPressure[iOffset+i] = Hex.PRESSURE_LOW;
+                }
+                if ((x >= pParams.LHMIN) && (x <= pParams.LHMAX))  {
+                    iPressure[iOffset+i] = Hex.PRESSURE_HIGH;
+                }
+            }
+        }
 
-            // For each column except the first (where i = 0), if the last heat
-            // equator is above this one, move upwards to it, marking each square,
-            //  to ensure continuity; if below this one, move downwards to it.
-            if (i != 0 && (j > jlast))  {
+        // This marks the heat equator found by findHeatEquatorRows.  To
+        // make the heat equator continuous, jlast is set to the position of the
+        // heat equator in the previous column; a connection is made in the
+        // present column to ensure continuity.  Column 0 is connected to the
+        // last column, so the heat equator is also continuous at the
+        // wraparound point.
+        for (i = 0; i < iDim; i++)  {
+            j = iHeatEquatorRows[(iSeason * iDim) + i];
+            jlast = iHeatEquatorRows[(iSeason * iDim) + ((i != 0) ? i - 1 : iDim - 1)];
+            iPressure[iOffset+j*iDim+i] = Hex.PRESSURE_HEQ;
+
+            // If the last heat equator is above this one, move upwards to it,
+            // marking each square, to ensure continuity; if below this one, move
+            // downwards to it.
+            if (j > jlast)  {
                 for (; j >= jlast; j--)  {
-                    getHex(i,j).setPressure(iSeason, Hex.PRESSURE_HEQ);
+                    iPressure[iOffset+j*iDim+i] = Hex.PRESSURE_HEQ;
                 }
             }
-            else if (i != 0 && (j < jlast))  {
+            else if (j < jlast)  {
                 for (; j <= jlast; j++)  {
-                    getHex(i,j).setPressure(iSeason, Hex.PRESSURE_HEQ);
+                    iPressure[iOffset+j*iDim+i] = Hex.PRESSURE_HEQ;
                 }
             }
-
-            // Remember this position for the next column.  Note that no check is
-            // done to ensure continuity at the wraparound point; this is bad.
-            jlast = jnext;
         }
     }
 
-    private void computeWind ()  {
-        int [] iHighPressure;
-        int [] iLowPressure;
-        int [] iSmoothedPressure;
-        int i, j, x, iSeason;
-        int a, b, e, bar;
-        iHighPressure = new int [iDim * iDim];
-        iLowPressure = new int [iDim * iDim];
-        iSmoothedPressure = new int [iDim * iDim];
-        Hex pTempHex;
+    private void computeWind (int iSeason)  {
+        MapArena.Season pSeason = pArena.getSeason(iSeason);
+        int [] iHighPressure = pSeason.iHighPressure;
+        int [] iLowPressure = pSeason.iLowPressure;
+        int [] iSmoothedPressure = pSeason.iSmoothedPressure;
+        int i, j, x;
+        int a, b, e;
+        int iSize = iDim * iDim, iOffset = iSeason * iSize, iHex;
+        byte [] iPressure = pGrid.iPressure;
+        short [] iWind = pGrid.iWind;
 
         // This is the main function in this file; it calls getpress() to create
         // a smoothed pressure map, then getwind() to put isobars (wind lines) on
         // the output map.  The last step makes sure that contradictory winds are
         // removed, such as N and S winds in the same square.
 
-        for (iSeason = 0; iSeason < pParams.iNumSeasons; iSeason++) {
-            // take the high and low markings from pressure.c and create
-            // a smoothed function.  Highs turn into iMaxPressure and lows turn
-            // into 0.
-
-            for (j = 0; j < iDim; j++)  {
-                for (i=0; i<iDim; i++) {
-                    pTempHex = getHex(i,j);
-                    // Zero out the arrays to be used
-                    pTempHex.setWind(iSeason,(short)0);
-                    iLowPressure[j*iDim+i] = 0;
-                    iHighPressure[j*iDim+i] = 0;
-
-                    // Fill hl[0] with the low pressure zones, and hl[1] with highs
-                    if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_LOW)  {
-                        iLowPressure[j*iDim+i] = -1;
-                    }
-                    else if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HIGH)  {
-                        iHighPressure[j*iDim+i] = -1;
-                    }
-                    else if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                        iLowPressure[j*iDim+i] = -1;
-                    }
-                }
-            }
+        // take the high and low markings from pressure.c and create
+        // a smoothed function.  Highs turn into iMaxPressure and lows turn
+        // into 0.
 
-            // Set each square in hl[0] to the distance from that square to the
-            // nearest low, and each square in hl[1] to the distance to a high.
-            computeRange (iLowPressure);
-            computeRange (iHighPressure);
-
-            // The final pressure, in array p, is zero if a low is there and
-            // iMaxPressure if a high is there.  Otherwise, the pressure in a square
-            // is proportional to the ratio of (distance from the square to the
-            // nearest low) to (total of distance from nearest high and nearest low).
-            // This gives a smooth curve between the extremes.
-            for (j = 0; j < iDim; j++)  {
-                for (i = 0; i < iDim; i++)  {
-                    pTempHex = getHex(i,j);
-                    if (iHighPressure[j*iDim+i] == -1)  {
-                        iSmoothedPressure[j*iDim+i] = pParams.iMaxPressure;
-                    }
-                    else if (iLowPressure[j*iDim+i] == -1)  {
-                        iSmoothedPressure[j*iDim+i] = 0;
-                    }
-                    else   {
-                        iSmoothedPressure[j*iDim+i] = (pParams.iMaxPressure*iLowPressure[j*iDim+i]) / (iLowPressure[j*iDim+i] + iHighPressure[j*iDim+i]);
-                    }
-                }
-            }
+        for (i = 0; i < iSize; i++)  {
+            // Zero out the arrays to be used
+            iWind[iOffset+i] = 0;
+            iLowPressure[i] = 0;
+            iHighPressure[i] = 0;
 
-            // Draws isobars around the pressure map created above.  These
-            // isobars are the directions of wind flow.  The isobars are given a
-            // direction depending on whether the square is above or below the heat
-            // equator; north of the heat equator, the winds blow counterclockwise
-            // out from a low, while south of it, the opposite is true.
-
-            // Step from 0 to iMaxPressure by BARSEP; bar is the pressure for which
-            // this isobar will be drawn.
-            for (bar = pParams.BARSEP; bar <= pParams.iMaxPressure; bar += pParams.BARSEP)  {
-                for (i = 0; i < iDim; i++)  {
-                    for (e=0, j=0; j<iDim; j++) {
-                        pTempHex = getHex(i,j);
-                        // Set e if this square is south of the heat equator
-                        a = iSmoothedPressure[j*iDim+i];
-                        if (pTempHex.getPressure(iSeason) == 3)  {
-                            e = 1;
-                        }
+            // Fill hl[0] with the low pressure zones, and hl[1] with highs
+            if (iPressure[iOffset+i] == Hex.PRESSURE_LOW)  {
+                iLowPressure[i] = -1;
+            }
+            else if (iPressure[iOffset+i] == Hex.PRESSURE_HIGH)  {
+                iHighPressure[i] = -1;
+            }
+            else if (iPressure[iOffset+i] == Hex.PRESSURE_HEQ)  {
+                iLowPressure[i] = -1;
+            }
+        }
 
-                        // Provided the square is not at the top of the array, compare the
-                        // pressure here to the pressure one square up.  This gives the
-                        // direction of the wind in terms of east / west flow.
-                        if (j != 0) {
-                            b = iSmoothedPressure[(j-1)*iDim+i];
-                            if ((a < bar) && (b >= bar))  {
-                                pTempHex.setWind(iSeason, (short)(pTempHex.getWind(iSeason) | ((e != 0) ? Hex.WIND_E : Hex.WIND_W)));
-                            }
-                            if ((a >= bar) && (b < bar))  {
-                                pTempHex.setWind(iSeason, (short)(pTempHex.getWind(iSeason) | ((e != 0) ? Hex.WIND_W : Hex.WIND_E)));
-                            }
-                        }
+        // Set each square in hl[0] to the distance from that square to the
+        // nearest low, and each square in hl[1] to the distance to a high.
+        computeRange (iLowPressure, pSeason.iQueue);
+        computeRange (iHighPressure, pSeason.iQueue);
+
+        // The final pressure, in array p, is zero if a low is there and
+        // iMaxPressure if a high is there.  Otherwise, the pressure in a square
+        // is proportional to the ratio of (distance from the square to the
+        // nearest low) to (total of distance from nearest high and nearest low).
+        // This gives a smooth curve between the extremes.
+        for (i = 0; i < iSize; i++)  {
+            if (iHighPressure[i] == -1)  {
+                iSmoothedPressure[i] = pParams.iMaxPressure;
+            }
+            else if (iLowPressure[i] == -1)  {
+                iSmoothedPressure[i] = 0;
+            }
+            else   {
+                iSmoothedPressure[i] = (pParams.iMaxPressure*iLowPressure[i]) / (iLowPressure[i] + iHighPressure[i]);
+            }
+        }
 
-                        // Compare the pressure here to the pressure one square to the
-                        // left (including wraparound); this gives the wind direction in
-                        // terms of north / south flow.
-                        b = (i != 0) ? iSmoothedPressure[j*iDim+(i-1)] : iSmoothedPressure[j*iDim+(iDim-1)];
-                        if ((a < bar) && (b >= bar))  {
-                            pTempHex.setWind(iSeason, (short)(pTempHex.getWind(iSeason) | ((e != 0) ? Hex.WIND_N : Hex.WIND_S)));
-                        }
-                        if ((a >= bar) && (b < bar))  {
-                            pTempHex.setWind(iSeason, (short)(pTempHex.getWind(iSeason) | ((e != 0) ? Hex.WIND_S : Hex.WIND_N)));
-                        }
-                    }
+        // Draws isobars around the pressure map created above.  These
+        // isobars are the directions of wind flow.  The isobars are given a
+        // direction depending on whether the square is above or below the heat
+        // equator; north of the heat equator, the winds blow counterclockwise
+        // out from a low, while south of it, the opposite is true.
+
+        // The isobars are drawn every BARSEP from BARSEP up to iMaxPressure.
+        // Two squares are on opposite sides of at least one of them exactly
+        // when their pressures, capped at the highest isobar, fall into
+        // different BARSEP buckets, so all the isobars are drawn in a single
+        // sweep.  The wind stage is done with the range buffers: iLowPressure
+        // now holds the bucket of each square, and iHighPressure[i] the first
+        // row of column i on the heat equator.  A square is south of the heat
+        // equator (e is set) from that row down.
+        int [] iBucket = iLowPressure;
+        int [] iHeqRow = iHighPressure;
+        int iTop = (pParams.iMaxPressure / pParams.BARSEP) * pParams.BARSEP;
+
+        for (i = 0; i < iSize; i++)  {
+            iBucket[i] = Math.min(iSmoothedPressure[i], iTop) / pParams.BARSEP;
+        }
+        for (i = 0; i < iDim; i++)  {
+            iHeqRow[i] = iDim;
+        }
+        for (j = 0; j < iDim; j++)  {
+            for (i = 0; i < iDim; i++)  {
+                if (iHeqRow[i] == iDim && iPressure[iOffset+j*iDim+i] == Hex.PRESSURE_HEQ)  {
+                    iHeqRow[i] = j;
                 }
             }
+        }
 
-            for (j = 0; j < iDim; j++)  {
-                for (i = 0; i < iDim; i++) {
-                    pTempHex = getHex(i,j);
-                    x = pTempHex.getWind(iSeason);
-                    if ((x & Hex.WIND_N) != 0)  {
-                        x &= (~Hex.WIND_S);
+        for (j = 0; j < iDim; j++)  {
+            for (i = 0; i < iDim; i++)  {
+                iHex = j*iDim+i;
+                e = (j >= iHeqRow[i]) ? 1 : 0;
+                a = iBucket[iHex];
+                x = 0;
+
+                // Provided the square is not at the top of the array, compare the
+                // pressure here to the pressure one square up.  This gives the
+                // direction of the wind in terms of east / west flow.
+                if (j != 0) {
+                    b = iBucket[iHex-iDim];
+                    if (a < b)  {
+                        x |= ((e != 0) ? Hex.WIND_E : Hex.WIND_W);
                     }
-                    if ((x & Hex.WIND_E) != 0)  {
-                        x &= (~Hex.WIND_W);
+                    else if (a > b)  {
+                        x |= ((e != 0) ? Hex.WIND_W : Hex.WIND_E);
                     }
-                    pTempHex.setWind(iSeason, (short)x);
                 }
+
+                // Compare the pressure here to the pressure one square to the
+                // left (including wraparound); this gives the wind direction in
+                // terms of north / south flow.
+                b = (i != 0) ? iBucket[iHex-1] : iBucket[j*iDim+(iDim-1)];
+                if (a < b)  {
+                    x |= ((e != 0) ? Hex.WIND_N : Hex.WIND_S);
+                }
+                else if (a > b)  {
+                    x |= ((e != 0) ? Hex.WIND_S : Hex.WIND_N);
+                }
+                iWind[iOffset+iHex] = (short)x;
+            }
+        }
+
+        for (i = 0; i < iSize; i++)  {
+            x = iWind[iOffset+i];
+            if ((x & Hex.WIND_N) != 0)  {
+                x &= (~Hex.WIND_S);
+            }
+            if ((x & Hex.WIND_E) != 0)  {
+                x &= (~Hex.WIND_W);
             }
+            iWind[iOffset+i] = (short)x;
         }
     }
 
@@ -1180,198 +1172,176 @@ public class MapBuilder {
      increased by rain falling on mountains, so it is nonzero when this
      function is called.
      */
-    private void computeRainfall()  {
-        int [][] fr;
-        int [] fs;
-        int iSeason;
-        int i, j, k;
-        int src, dest;
+    private void computeRainfall(int iSeason)  {
+        MapArena.Season pSeason = pArena.getSeason(iSeason);
+        int [] frSrc, frDest, frSwap;
+        int [] fs, iMarks;
+        int i, j, k, n;
+        int iSrcCount, iDestCount;
         int x;
         int itcz, flank;
-        Hex pTempHex;
-        fr = new int[2][iDim*iDim];
-        fs = new int [iDim * iDim];
-
-        for (iSeason = 0; iSeason < pParams.iNumSeasons; iSeason++) {
-            // Initialize the counter fs to zero.  Array fr, which records the
-            // list of active edges in the walks, is set so that all ocean squares
-            // are active.  Also, the result array rn is cleared.
-            for (i=0; i<iDim; i++)  {
-                for (j=0; j<iDim; j++) {
-                    switch (getHex(i,j).getTerrainType())  {
-                        case Hex.TERRAIN_DEEPOCEAN:
-                        case Hex.TERRAIN_OCEAN:
-                            fr[0][j*iDim+i] = 1;
-                            break;
-                        default:
-                            fr[0][j*iDim+i] = 0;
-                            break;
-                    }
-                    fs[j*iDim+i] = 0;
-                    getHex(i,j).setRainfall(iSeason, (short)0);
-                }
+        int iSize = iDim * iDim, iOffset = iSeason * iSize, iHex, iNeighbor;
+        byte [] iTerrain = pArena.iBaseTerrain;
+        byte [] iPressure = pGrid.iPressure;
+        short [] iWind = pGrid.iWind;
+        short [] iRainfall = pGrid.iRainfall;
+
+        // The wind stage is done with its buffers, so they hold the fetch
+        // frontiers and counts.
+        frSrc = pSeason.iHighPressure;
+        frDest = pSeason.iLowPressure;
+        fs = pSeason.iSmoothedPressure;
+        iMarks = pSeason.iQueue;
+
+        // Initialize the counter fs to zero.  The frontier frSrc, which lists
+        // the active squares of the walks, starts with all ocean squares.
+        // iMarks[i] is k+1 once square i is on the frontier for step k+1.
+        // Also, the result array rn is cleared.
+        iSrcCount = 0;
+        for (i = 0; i < iSize; i++)  {
+            if (HexGrid.isWaterTerrain(iTerrain[i]))  {
+                frSrc[iSrcCount++] = i;
             }
+            iMarks[i] = 0;
+            fs[i] = 0;
+            iRainfall[iOffset+i] = 0;
+        }
 
-            // Each time through the loop, each square is examined.  If it's
-            // active, disable the mark in the current time step (thus ensuring
-            // that when the buffers are flipped, the new destination is empty).
-            // If the square is a mountain, don't pass the mark, but instead add
-            // some amount to the square -- implementing rain shadows and rainy
-            // mountain squares.  Finally, for each of the eight cardinal
-            // directions, if there is wind blowing in that direction, carry a
-            // marker to that square using fetchinc(), above.
-            for (k = 0; k < pParams.MAXFETCH; k++) {
-                src = k % 2;
-                dest = 1 - src;
-                for (i = 0; i < iDim; i++)  {
-                    for (j = 0; j < iDim; j++)  {
-                        pTempHex = getHex(i,j);
-                        if ((fr[src][j*iDim+i]) != 0)  {
-                            fr[src][j*iDim+i] = 0;
-                            switch(pTempHex.getTerrainType())  {
-                                case Hex.TERRAIN_MOUNTAINS:
-                                case Hex.TERRAIN_IMPASSABLEMOUNTAINS:
-                                    pTempHex.setRainfall(iSeason, (short)(pTempHex.getRainfall(iSeason) + pParams.MOUNTDEL));
-                                    break;
-                                default:
-                                    switch (pTempHex.getWind(iSeason))  {
-                                        case Hex.WIND_N|Hex.WIND_E:
-                                            fetchinc (i+1, j-1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_N|Hex.WIND_W:
-                                            fetchinc (i-1, j-1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_S|Hex.WIND_E:
-                                            fetchinc (i+1, j+1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_S|Hex.WIND_W:
-                                            fetchinc (i-1, j+1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_N:
-                                            fetchinc (i, j-1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_S:
-                                            fetchinc (i, j+1, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_E:
-                                            fetchinc (i+1, j, fr[dest], fs);
-                                            break;
-                                        case Hex.WIND_W:
-                                            fetchinc (i-1, j, fr[dest], fs);
-                                            break;
-                                    }
-                            }
+        // Each time through the loop, each active square is examined.  If
+        // the square is a mountain, don't pass the mark, but instead add
+        // some amount to the square -- implementing rain shadows and rainy
+        // mountain squares.  Otherwise, for each of the eight cardinal
+        // directions, if there is wind blowing in that direction, carry a
+        // marker to that square using fetchinc(), below.  Only the squares
+        // reached this way are active in the next step, so a step costs the
+        // size of its frontier rather than the size of the map.
+        for (k = 0; k < pParams.MAXFETCH && iSrcCount > 0; k++) {
+            iDestCount = 0;
+            for (n = 0; n < iSrcCount; n++)  {
+                iHex = frSrc[n];
+                i = iHex % iDim;
+                j = iHex / iDim;
+                switch(iTerrain[iHex])  {
+                    case Hex.TERRAIN_MOUNTAINS:
+                    case Hex.TERRAIN_IMPASSABLEMOUNTAINS:
+                        iRainfall[iOffset+iHex] += pParams.MOUNTDEL;
+                        break;
+                    default:
+                        switch (iWind[iOffset+iHex])  {
+                            case Hex.WIND_N|Hex.WIND_E:
+                                iDestCount = fetchinc (i+1, j-1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_N|Hex.WIND_W:
+                                iDestCount = fetchinc (i-1, j-1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_S|Hex.WIND_E:
+                                iDestCount = fetchinc (i+1, j+1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_S|Hex.WIND_W:
+                                iDestCount = fetchinc (i-1, j+1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_N:
+                                iDestCount = fetchinc (i, j-1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_S:
+                                iDestCount = fetchinc (i, j+1, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_E:
+                                iDestCount = fetchinc (i+1, j, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
+                            case Hex.WIND_W:
+                                iDestCount = fetchinc (i-1, j, k+1, iMarks, frDest, iDestCount, fs);
+                                break;
                         }
-                    }
                 }
             }
 
-            // For each square around the current one, this
-            // simply tests the square for several conditions: if the square is on
-            // the heat equator, itcz is set to one; if the wind blows south in this
-            // square, it is on the flank of a circular wind zone (and thus less
-            // rainy); the local rain sum, x, is increased according to the fetch
-            // sum in the square.
-            for (i = 0; i < iDim; i++)  {
-                for (j = 0; j < iDim; j++) {
-                    flank = 0;
-                    itcz = 0;
-                    x = getHex(i,j).getRainfall(iSeason);
-                    if (i < iDim-1)  {
-                        pTempHex = getHex(i+1,j);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[j*iDim+(i+1)] + pParams.NRFDEL;
-                    }
-                    else {
-                        pTempHex = getHex(0,j);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[j*iDim] + pParams.NRFDEL;
-                    }
-                    if (i != 0) {
-                        pTempHex = getHex(i-1,j);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[j*iDim+(i-1)] + pParams.NRFDEL;
-                    }
-                    else {
-                        pTempHex = getHex(iDim-1,j);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[j*iDim+(iDim-1)] + pParams.NRFDEL;
-                    }
-                    if (j < iDim-1) {
-                        pTempHex = getHex(i,j+1);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[(j+1)*iDim+i] + pParams.NRFDEL;
+            // Flip the frontiers
+            frSwap = frSrc;
+            frSrc = frDest;
+            frDest = frSwap;
+            iSrcCount = iDestCount;
+        }
+
+        // For each square around the current one, this
+        // simply tests the square for several conditions: if the square is on
+        // the heat equator, itcz is set to one; if the wind blows south in this
+        // square, it is on the flank of a circular wind zone (and thus less
+        // rainy); the local rain sum, x, is increased according to the fetch
+        // sum in the square.
+        for (j = 0; j < iDim; j++)  {
+            for (i = 0; i < iDim; i++) {
+                iHex = j*iDim+i;
+                flank = 0;
+                itcz = 0;
+                x = iRainfall[iOffset+iHex];
+
+                iNeighbor = (i < iDim-1) ? iHex+1 : j*iDim;
+                if (iPressure[iOffset+iNeighbor] == Hex.PRESSURE_HEQ)  {
+                    itcz = 1;
+                }
+                if ((iWind[iOffset+iNeighbor] & Hex.WIND_S) != 0)  {
+                    flank = 1;
+                }
+                x += fs[iNeighbor] + pParams.NRFDEL;
+
+                iNeighbor = (i != 0) ? iHex-1 : j*iDim+(iDim-1);
+                if (iPressure[iOffset+iNeighbor] == Hex.PRESSURE_HEQ)  {
+                    itcz = 1;
+                }
+                if ((iWind[iOffset+iNeighbor] & Hex.WIND_S) != 0)  {
+                    flank = 1;
+                }
+                x += fs[iNeighbor] + pParams.NRFDEL;
+
+                if (j < iDim-1) {
+                    iNeighbor = iHex+iDim;
+                    if (iPressure[iOffset+iNeighbor] == Hex.PRESSURE_HEQ)  {
+                        itcz = 1;
                     }
-                    if (j != 0) {
-                        pTempHex = getHex(i,j-1);
-                        if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                            itcz = 1;
-                        }
-                        if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
-                            flank = 1;
-                        }
-                        x += fs[(j-1)*iDim+i] + pParams.NRFDEL;
+                    if ((iWind[iOffset+iNeighbor] & Hex.WIND_S) != 0)  {
+                        flank = 1;
                     }
-                    pTempHex = getHex(i,j);
-                    if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
+                    x += fs[iNeighbor] + pParams.NRFDEL;
+                }
+                if (j != 0) {
+                    iNeighbor = iHex-iDim;
+                    if (iPressure[iOffset+iNeighbor] == Hex.PRESSURE_HEQ)  {
                         itcz = 1;
                     }
-                    if ((pTempHex.getWind(iSeason) & Hex.WIND_S) != 0)  {
+                    if ((iWind[iOffset+iNeighbor] & Hex.WIND_S) != 0)  {
                         flank = 1;
                     }
-                    x += fs[j*iDim+i] + pParams.NRFDEL;
+                    x += fs[iNeighbor] + pParams.NRFDEL;
+                }
+                if (iPressure[iOffset+iHex] == Hex.PRESSURE_HEQ)  {
+                    itcz = 1;
+                }
+                if ((iWind[iOffset+iHex] & Hex.WIND_S) != 0)  {
+                    flank = 1;
+                }
+                x += fs[iHex] + pParams.NRFDEL;
 
-                    x += (pParams.RAINCONST + pParams.FETCHDEL * fs[j*iDim+i]);
-                    switch (pTempHex.getTerrainType())  {
-                        case Hex.TERRAIN_DEEPOCEAN:
-                        case Hex.TERRAIN_OCEAN:
-                            break;
-                        default:
-                            x += pParams.LANDEL;
-                            break;
-                    }
-                    if (pTempHex.getPressure(iSeason) == Hex.PRESSURE_HEQ)  {
-                        x += pParams.HEQDEL;
-                    }
-                    if (itcz != 0)  {
-                        x += pParams.NRHEQDEL;
-                    }
-                    if (flank != 0)  {
-                        x += pParams.FLANKDEL;
-                    }
-                    if (x < 0)  {
-                        x = 0;
-                    }
-                    if (x> 255)  {
-                        x = 255;
-                    }
-                    pTempHex.setRainfall(iSeason, (short)x);
+                x += (pParams.RAINCONST + pParams.FETCHDEL * fs[iHex]);
+                if (!HexGrid.isWaterTerrain(iTerrain[iHex]))  {
+                    x += pParams.LANDEL;
+                }
+                if (iPressure[iOffset+iHex] == Hex.PRESSURE_HEQ)  {
+                    x += pParams.HEQDEL;
+                }
+                if (itcz != 0)  {
+                    x += pParams.NRHEQDEL;
+                }
+                if (flank != 0)  {
+                    x += pParams.FLANKDEL;
+                }
+                if (x < 0)  {
+                    x = 0;
                 }
+                if (x> 255)  {
+                    x = 255;
+                }
+                iRainfall[iOffset+iHex] = (short)x;
             }
         }
     }
@@ -1381,10 +1351,17 @@ public class MapBuilder {
      This is the workhorse function for rain-fetch(). It is called
      several times per square.  It changes x to account for wraparound.
      If y is out of range it does nothing, else it
-     "marks" the new square in fr[dest] and increments fs to record the number
-     of times the square has been marked.
+     "marks" the new square for step iStep, adding it to the frontier fr the
+     first time, and increments fs to record the number of times the square
+     has been marked.  Returns the new length of the frontier.
      */
-    private void fetchinc (int x, int y, int [] fr, int [] fs)  {
+    private int fetchinc (int x,
+                          int y,
+                          int iStep,
+                          int [] iMarks,
+                          int [] fr,
+                          int iCount,
+                          int [] fs)  {
         if (x == -1)  {
             x = iDim-1;
         }
@@ -1392,11 +1369,15 @@ public class MapBuilder {
             x = 0;
         }
         if ((y == -1) || (y == iDim))  {
-            return;
+            return iCount;
+        }
+        int iHex = y*iDim+x;
+        if (iMarks[iHex] != iStep)  {
+            iMarks[iHex] = iStep;
+            fr[iCount++] = iHex;
         }
-        fr[y*iDim+x] = 1;
-        fs[y*iDim+x]++;
-        return;
+        fs[iHex]++;
+        return iCount;
     }
 
 
@@ -1410,7 +1391,7 @@ public class MapBuilder {
      for the square is then simply a table lookup.
      */
     private void computeClimate()  {
-        int i, j, iSeason;
+        int i, iSeason;
         int noice, averain, ttt, r;
         double avetemp;
         // This array is the heart of the climate routine; temperature increases
@@ -1422,48 +1403,49 @@ public class MapBuilder {
                 { Hex.CLIMATE_DESERT, Hex.CLIMATE_SAVANNAH, Hex.CLIMATE_JUNGLE, Hex.CLIMATE_SWAMP,  Hex.CLIMATE_SWAMP  }
         };
         short TCSIZE = 4, RCSIZE = 5;
-        Hex pTempHex;
-
-        for (j = 0; j < iDim; j++)  {
-            for (i = 0; i < iDim; i++) {
-                pTempHex = getHex(i,j);
-                switch (pTempHex.getTerrainType())  {
-                    case Hex.TERRAIN_DEEPOCEAN:
-                    case Hex.TERRAIN_OCEAN:
-                        for (noice = 0, iSeason = 0; iSeason < pParams.iNumSeasons; iSeason++)  {
-                            noice |= ((pTempHex.getTemperature(iSeason) > pParams.TEMPSCALE * pParams.ICEBERGK) ? 1 : 0);
-                        }
-                        pTempHex.setClimate((noice != 0) ?
-                                Hex.CLIMATE_OCEAN : Hex.CLIMATE_OCEANICE);
-                        break;
-                    default:
-                        for (averain = 0, avetemp = 0, iSeason = 0;
-                             iSeason < pParams.iNumSeasons;
-                             iSeason++)
-                        {
-                            averain += pTempHex.getRainfall(iSeason);
-                            avetemp += (double)pTempHex.getTemperature(iSeason);
-                        }
-                        averain /= pParams.iNumSeasons;
-                        avetemp /= (double)pParams.iNumSeasons;
-                        avetemp = ((double) (avetemp / (double)pParams.TEMPSCALE) - 273.0) * 1.8 + 32.0;
-                        switch (pTempHex.getTerrainType())  {
-                            case Hex.TERRAIN_MOUNTAINS:
-                            case Hex.TERRAIN_IMPASSABLEMOUNTAINS:
-                                avetemp -= (double)pParams.MTDELTA;
-                                break;
-                        }
-                        ttt = 0;
-                        while ((avetemp > pParams.TEMPCUT[ttt]) && (ttt < TCSIZE-1))  {
-                            ttt++;
-                        }
-                        r  = 0;
-                        while ((averain > pParams.RAINCUT[r])  && (r  < RCSIZE-1))  {
-                            r++;
-                        }
-                        pTempHex.setClimate(climkey[ttt][r]);
-                        break;
-                }
+        int iSize = iDim * iDim;
+        byte [] iTerrain = pArena.iBaseTerrain;
+        byte [] iClimate = pGrid.iClimate;
+        float [] fTemperature = pGrid.fTemperature;
+        short [] iRainfall = pGrid.iRainfall;
+
+        for (i = 0; i < iSize; i++)  {
+            switch (iTerrain[i])  {
+                case Hex.TERRAIN_DEEPOCEAN:
+                case Hex.TERRAIN_OCEAN:
+                    for (noice = 0, iSeason = 0; iSeason < pParams.iNumSeasons; iSeason++)  {
+                        noice |= ((fTemperature[iSeason*iSize+i] > pParams.TEMPSCALE * pParams.ICEBERGK) ? 1 : 0);
+                    }
+                    iClimate[i] = (noice != 0) ?
+                            Hex.CLIMATE_OCEAN : Hex.CLIMATE_OCEANICE;
+                    break;
+                default:
+                    for (averain = 0, avetemp = 0, iSeason = 0;
+                         iSeason < pParams.iNumSeasons;
+                         iSeason++)
+                    {
+                        averain += iRainfall[iSeason*iSize+i];
+                        avetemp += (double)fTemperature[iSeason*iSize+i];
+                    }
+                    averain /= pParams.iNumSeasons;
+                    avetemp /= (double)pParams.iNumSeasons;
+                    avetemp = ((double) (avetemp / (double)pParams.TEMPSCALE) - 273.0) * 1.8 + 32.0;
+                    switch (iTerrain[i])  {
+                        case Hex.TERRAIN_MOUNTAINS:
+                        case Hex.TERRAIN_IMPASSABLEMOUNTAINS:
+                            avetemp -= (double)pParams.MTDELTA;
+                            break;
+                    }
+                    ttt = 0;
+                    while ((avetemp > pParams.TEMPCUT[ttt]) && (ttt < TCSIZE-1))  {
+                        ttt++;
+                    }
+                    r  = 0;
+                    while ((averain > pParams.RAINCUT[r])  && (r  < RCSIZE-1))  {
+                        r++;
+                    }
+                    iClimate[i] = climkey[ttt][r];
+                    break;
             }
         }
     }
@@ -1474,32 +1456,38 @@ public class MapBuilder {
     }
 
     public void findShorelines ()  {
-        Hex pTempHex, pTempNeighborHex;
-        int i,x,y;
-
-        for (x = 0; x < iDim; x++)  {
-            for (y = 0; y < iDim; y++)  {
-                pTempHex = getHex(x,y);
-                pTempHex.clearShorelines();
-                for (i = 0; i < 6; i++)  {
-                    if (pTempHex.isLand())  {
-                        pTempNeighborHex = pTempHex.getNeighbor(i);
-                        if (   pTempNeighborHex != null
-                                && pTempNeighborHex.isWater())  {
-                            pTempHex.setShoreline(Hex.BW_DIRS[i], true);
+        int i, x, y, iHex, iNeighbor;
+        byte iShore;
+        byte [] iTerrain = pGrid.iTerrainType;
+        byte [] iShoreline = pGrid.iShoreline;
+        HexTopology pTopology = pGrid.getTopology();
+
+        for (y = 0; y < iDim; y++)  {
+            for (x = 0; x < iDim; x++)  {
+                iHex = (y*iDim)+x;
+                iShore = 0;
+                if (!HexGrid.isWaterTerrain(iTerrain[iHex]))  {
+                    for (i = 0; i < 6; i++)  {
+                        iNeighbor = pTopology.neighbor(x, y, i);
+                        if (   iNeighbor >= 0
+                                && HexGrid.isWaterTerrain(iTerrain[iNeighbor]))  {
+                            iShore |= Hex.BW_DIRS[i];
                         }
                     }
                 }
+                iShoreline[iHex] = iShore;
             }
         }
     }
 
 
+    /**
+     Regenerates everything but the elevations, for instance after they
+     have been edited with setElevation().
+     */
     public void reCreateWorld ()  {
-        assignElevationBasedTerrain();
-        assignClimateBasedTerrain();
-        createRivers();
-        findShorelines();
+        getStageGraph().invalidate(DATA_ELEVATION);
+        getStageGraph().run(pParams, pMonitor);
     }
 
 
@@ -1508,27 +1496,161 @@ public class MapBuilder {
      */
     public void generateWorld ()
     {
-        logger.log("Info", "Generating map of dimension: " + getDimension() + ":" + getDimension());
-
-        logger.log("Info","Generating Elevations");
-        generateElevations ();
-        iProgress = 20;
-        logger.log("Info","Assigning Elevation-based Terrain");
-        assignElevationBasedTerrain();
-        iProgress = 40;
-        logger.log("Info","Assigning Climate-based Terrain");
-        assignClimateBasedTerrain();
-        iProgress = 60;
-        logger.log("Info","Creating River Networks");
-        createRivers();
-        iProgress = 80;
-        logger.log("Info","Find Shorelines");
-        findShorelines();
-        iProgress = 100;
-        logger.log("Info","Done");
+        logger.info("Generating map of dimension: {}:{}", getDimension(), getDimension());
+
+        getStageGraph().invalidate();
+        getStageGraph().run(pParams, pMonitor);
+        logger.info("Done");
+        logger.info("{}", pMonitor.getLastGenerationSummary());
     }
 
-}
 
+    /**
+     Brings the current world up to date with pParams, running only the
+     stages whose parameters, or whose input data, changed since they last
+     ran: changing RAINCUT, say, only reruns the climate stage and those
+     after it.  A new dimension or number of seasons starts a new world.
+     Returns the stages that ran.
+     */
+    public List<MapStage> updateWorld (MapParams pParams)
+    {
+        if (pGrid == null || !pGrid.fits(pParams.dimension, pParams.iNumSeasons))  {
+            init(pParams);
+        }
+        else  {
+            this.pParams = pParams;
+            this.sName = pParams.sName;
+        }
+        return getStageGraph().run(pParams, pMonitor);
+    }
 
 
+    //-------------------------------------------------------------------
+    // Stages
+    //
+    private StageGraph getStageGraph ()  {
+        if (pStageGraph == null)  {
+            pStageGraph = new StageGraph (createStages());
+        }
+        return pStageGraph;
+    }
+
+    /**
+     Declares the stages of world generation.  The elevation based terrain
+     is kept apart from the final terrain (the climate stages read the
+     former and the terrain stage writes the latter), so that the climate
+     can be recomputed without regenerating the elevations.
+     */
+    private List<MapStage> createStages ()  {
+        List<MapStage> pStages = new ArrayList<MapStage>();
+
+        pStages.add(new MapStage ("elevation",
+                names("lSeed", "iIterations", "fRoughness"),
+                names(),
+                names(DATA_ELEVATION),
+                false)  {
+            protected void run ()  {
+                logger.info("Generating Elevations");
+                generateElevations();
+            }
+        });
+        pStages.add(new MapStage ("elevation terrain",
+                names("fPercentOcean", "fPercentMountains", "fPercentImpassableMountains",
+                      "iThresholdBins", "iThresholdSampleStep", "bExactThresholds",
+                      "iMinInlandSeaSize"),
+                names(DATA_ELEVATION),
+                names(DATA_BASE_TERRAIN),
+                false)  {
+            protected void run ()  {
+                assignElevationBasedTerrain();
+            }
+        });
+        pStages.add(new MapStage ("temperature",
+                names("TEMPSCALE", "dAxialTilt", "dOrbitalEccentricity", "dEccentricityPhase",
+                      "dBaseLandTemp", "dLandTempVariance", "dLandTempTilt", "dLandSmooth",
+                      "dLandDiv", "dBaseOceanTemp", "dOceanTempVariance", "dOceanTempTilt",
+                      "dOceanSmooth", "dOceanDiv"),
+                names(DATA_BASE_TERRAIN),
+                names(DATA_TEMPERATURE),
+                true)  {
+            protected void run ()  {
+                logger.info("Generating Temperatures");
+                computeTemperatures();
+            }
+        });
+        pStages.add(new MapStage ("pressure",
+                names("bMaxRange", "OLTHRESH", "LOTHRESH", "OOTHRESH", "OLMIN", "OLMAX",
+                      "OHMIN", "OHMAX", "LLTHRESH", "LLMIN", "LLMAX", "LHMIN", "LHMAX"),
+                names(DATA_BASE_TERRAIN, DATA_TEMPERATURE),
+                names(DATA_PRESSURE),
+                true)  {
+            protected void run ()  {
+                computePressures();
+            }
+        });
+        pStages.add(new MapStage ("wind",
+                names("bMaxRange", "iMaxPressure", "BARSEP"),
+                names(DATA_PRESSURE),
+                names(DATA_WIND),
+                true)  {
+            protected void run ()  {
+                computeWinds();
+            }
+        });
+        pStages.add(new MapStage ("rainfall",
+                names("MAXFETCH", "MOUNTDEL", "NRFDEL", "FETCHDEL", "RAINCONST", "LANDEL",
+                      "HEQDEL", "NRHEQDEL", "FLANKDEL"),
+                names(DATA_BASE_TERRAIN, DATA_PRESSURE, DATA_WIND),
+                names(DATA_RAINFALL),
+                true)  {
+            protected void run ()  {
+                computeRainfalls();
+            }
+        });
+        pStages.add(new MapStage ("climate",
+                names("TEMPSCALE", "ICEBERGK", "MTDELTA", "TEMPCUT", "RAINCUT"),
+                names(DATA_BASE_TERRAIN, DATA_TEMPERATURE, DATA_RAINFALL),
+                names(DATA_CLIMATE),
+                false)  {
+            protected void run ()  {
+                logger.info("Generating Climate");
+                computeClimate();
+            }
+        });
+        pStages.add(new MapStage ("terrain",
+                names(),
+                names(DATA_BASE_TERRAIN, DATA_CLIMATE),
+                names(DATA_TERRAIN),
+                false)  {
+            protected void run ()  {
+                assignClimateBasedTerrain();
+            }
+        });
+        pStages.add(new MapStage ("rivers",
+                names(),
+                names(DATA_TERRAIN),
+                names(DATA_RIVERS),
+                false)  {
+            protected void run ()  {
+                logger.info("Creating River Networks");
+                createRivers();
+            }
+        });
+        pStages.add(new MapStage ("shorelines",
+                names(),
+                names(DATA_TERRAIN),
+                names(DATA_SHORELINES),
+                false)  {
+            protected void run ()  {
+                logger.info("Find Shorelines");
+                findShorelines();
+            }
+        });
+        return pStages;
+    }
+
+    private static String [] names (String... sNames)  {
+        return sNames;
+    }
+
+}
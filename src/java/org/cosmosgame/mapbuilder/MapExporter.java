@@ -0,0 +1,320 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The MapExporter class draws a MapLayer of a world through a MapPalette,
+ * one pixel or character per hex, as:
+ *
+ *      FORMAT_PNG      an indexed PNG, with the palette as its PLTE
+ *      FORMAT_PPM      a binary (P6) PPM
+ *      FORMAT_ASCII    a line per row, "y<tab>" and a character per hex
+ *
+ * The rows are split into bands that are encoded on the executor at the
+ * same time; each band comes back as the bytes of the file, which are
+ * written in order through a buffered channel.  PNG bands are compressed
+ * as one zlib stream on the writing thread.
+ *
+ * @author Odysseus Levy
+ */
+
+public class MapExporter {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int FORMAT_PNG = 0;
+    public static final int FORMAT_PPM = 1;
+    public static final int FORMAT_ASCII = 2;
+
+    private static final int MIN_BAND_ROWS = 16;
+    private static final int BUFFER_SIZE = 1 << 18;
+    private static final int IDAT_SIZE = 1 << 16;
+    private static final byte [] PNG_SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final ExecutorService executor;
+    private final int iThreads;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     With a null executor the bands are encoded on the calling thread.
+     */
+    public MapExporter (ExecutorService executor)  {
+        this(executor, MapTasks.threadsOf(executor));
+    }
+
+    /**
+     The rows are split into bands for iThreads threads.
+     */
+    public MapExporter (ExecutorService executor, int iThreads)  {
+        this.executor = executor;
+        this.iThreads = Math.max(1, iThreads);
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns the format for the file's extension: .png, .ppm, or anything
+     else for ASCII.
+     */
+    public static int getFormat (File pFile)  {
+        String sName = pFile.getName().toLowerCase();
+        if (sName.endsWith(".png"))  {
+            return FORMAT_PNG;
+        }
+        if (sName.endsWith(".ppm"))  {
+            return FORMAT_PPM;
+        }
+        return FORMAT_ASCII;
+    }
+
+    public void export (HexGrid pGrid, MapLayer pLayer, MapPalette pPalette, File pFile) throws IOException  {
+        export(pGrid, pLayer, pPalette, getFormat(pFile), pFile);
+    }
+
+    public void export (HexGrid pGrid, MapLayer pLayer, MapPalette pPalette, int iFormat, File pFile)
+            throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(pFile);
+        try  {
+            FileChannel pChannel = out.getChannel();
+            pChannel.truncate(0);
+            export(pGrid, pLayer, pPalette, iFormat, pChannel);
+        }
+        finally  {
+            out.close();
+        }
+    }
+
+    /**
+     Writes the layer to pChannel, which is not closed.
+     */
+    public void export (HexGrid pGrid, MapLayer pLayer, MapPalette pPalette, int iFormat,
+                        WritableByteChannel pChannel) throws IOException
+    {
+        if (iFormat != FORMAT_PNG && iFormat != FORMAT_PPM && iFormat != FORMAT_ASCII)  {
+            throw new IllegalArgumentException("Unknown format " + iFormat);
+        }
+        byte [][] pBands = encodeBands(pGrid, pLayer, pPalette, iFormat);
+        Output out = new Output(pChannel);
+
+        if (iFormat == FORMAT_PNG)  {
+            writePNG(out, pGrid.getDimension(), pPalette, pBands);
+        }
+        else  {
+            if (iFormat == FORMAT_PPM)  {
+                int iDim = pGrid.getDimension();
+                out.write(("P6\n" + iDim + " " + iDim + "\n255\n").getBytes("US-ASCII"));
+            }
+            for (byte [] pBand : pBands)  {
+                out.write(pBand, 0, pBand.length);
+            }
+        }
+        out.flush();
+    }
+
+    private byte [][] encodeBands (final HexGrid pGrid, final MapLayer pLayer, final MapPalette pPalette,
+                                   final int iFormat)
+    {
+        int iDim = pGrid.getDimension();
+        int iBands = Math.max(1, Math.min(iDim / MIN_BAND_ROWS, 4 * iThreads));
+        final byte [][] pBands = new byte [iBands][];
+
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(iBands);
+        for (int b = 0; b < iBands; b++)  {
+            final int iBand = b;
+            final int y0 = (int)((long)iDim * b / iBands);
+            final int y1 = (int)((long)iDim * (b + 1) / iBands);
+            pTasks.add(new Callable<Void>()  {
+                public Void call ()  {
+                    pBands[iBand] = encodeRows(pGrid, pLayer, pPalette, iFormat, y0, y1);
+                    return null;
+                }
+            });
+        }
+        MapTasks.invokeAll(executor, pTasks, "Map export");
+        return pBands;
+    }
+
+    private static byte [] encodeRows (HexGrid pGrid, MapLayer pLayer, MapPalette pPalette, int iFormat,
+                                       int y0, int y1)
+    {
+        int iDim = pGrid.getDimension();
+        int iRowBytes = (iFormat == FORMAT_PPM) ? 3 * iDim
+                      : (iFormat == FORMAT_PNG) ? 1 + iDim
+                      : 12 + iDim;
+        byte [] pOut = new byte [(y1 - y0) * iRowBytes];
+        int k = 0;
+
+        for (int y = y0; y < y1; y++)  {
+            int i = y * iDim;
+            if (iFormat == FORMAT_PNG)  {
+                pOut[k++] = 0;                  // filter type None
+                for (int x = 0; x < iDim; x++)  {
+                    pOut[k++] = (byte)pPalette.getIndex(pLayer.getValue(pGrid, i + x));
+                }
+            }
+            else if (iFormat == FORMAT_PPM)  {
+                for (int x = 0; x < iDim; x++)  {
+                    int iRGB = pPalette.getRGB(pPalette.getIndex(pLayer.getValue(pGrid, i + x)));
+                    pOut[k++] = (byte)(iRGB >> 16);
+                    pOut[k++] = (byte)(iRGB >> 8);
+                    pOut[k++] = (byte)iRGB;
+                }
+            }
+            else  {
+                k = putInt(pOut, k, y);
+                pOut[k++] = '\t';
+                for (int x = 0; x < iDim; x++)  {
+                    char c = pPalette.getChar(pPalette.getIndex(pLayer.getValue(pGrid, i + x)));
+                    pOut[k++] = (byte)((c < 0x80) ? c : '?');
+                }
+                pOut[k++] = '\n';
+            }
+        }
+
+        if (k < pOut.length)  {
+            byte [] pTrimmed = new byte [k];
+            System.arraycopy(pOut, 0, pTrimmed, 0, k);
+            pOut = pTrimmed;
+        }
+        return pOut;
+    }
+
+    private static int putInt (byte [] pOut, int k, int n)  {
+        int iDigits = 1;
+        for (int m = n; m >= 10; m /= 10)  {
+            iDigits++;
+        }
+        for (int d = k + iDigits - 1; d >= k; d--)  {
+            pOut[d] = (byte)('0' + n % 10);
+            n /= 10;
+        }
+        return k + iDigits;
+    }
+
+    private static void writePNG (Output out, int iDim, MapPalette pPalette, byte [][] pBands) throws IOException  {
+        out.write(PNG_SIGNATURE);
+
+        ByteBuffer pHeader = ByteBuffer.allocate(13);
+        pHeader.putInt(iDim).putInt(iDim);
+        pHeader.put((byte)8);                   // bit depth
+        pHeader.put((byte)3);                   // color type: indexed
+        pHeader.put((byte)0).put((byte)0).put((byte)0);
+        writeChunk(out, "IHDR", pHeader.array(), 13);
+
+        byte [] pPLTE = new byte [3 * pPalette.size()];
+        for (int k = 0; k < pPalette.size(); k++)  {
+            int iRGB = pPalette.getRGB(k);
+            pPLTE[3 * k] = (byte)(iRGB >> 16);
+            pPLTE[3 * k + 1] = (byte)(iRGB >> 8);
+            pPLTE[3 * k + 2] = (byte)iRGB;
+        }
+        writeChunk(out, "PLTE", pPLTE, pPLTE.length);
+
+        Deflater pDeflater = new Deflater(Deflater.BEST_SPEED);
+        byte [] pIDAT = new byte [IDAT_SIZE];
+        try  {
+            for (byte [] pBand : pBands)  {
+                pDeflater.setInput(pBand);
+                while (!pDeflater.needsInput())  {
+                    int n = pDeflater.deflate(pIDAT);
+                    if (n > 0)  {
+                        writeChunk(out, "IDAT", pIDAT, n);
+                    }
+                }
+            }
+            pDeflater.finish();
+            while (!pDeflater.finished())  {
+                int n = pDeflater.deflate(pIDAT);
+                if (n > 0)  {
+                    writeChunk(out, "IDAT", pIDAT, n);
+                }
+            }
+        }
+        finally  {
+            pDeflater.end();
+        }
+
+        writeChunk(out, "IEND", new byte [0], 0);
+    }
+
+    private static void writeChunk (Output out, String sType, byte [] pData, int iLength) throws IOException  {
+        byte [] pType = sType.getBytes("US-ASCII");
+        CRC32 pCRC = new CRC32();
+        pCRC.update(pType);
+        pCRC.update(pData, 0, iLength);
+
+        out.writeInt(iLength);
+        out.write(pType);
+        out.write(pData, 0, iLength);
+        out.writeInt((int)pCRC.getValue());
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Output
+    //
+    /**
+     Gathers small writes into one direct buffer before they reach the
+     channel.
+     */
+    private static class Output {
+        private final WritableByteChannel pChannel;
+        private final ByteBuffer pBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Output (WritableByteChannel pChannel)  {
+            this.pChannel = pChannel;
+        }
+
+        void write (byte [] pData) throws IOException  {
+            write(pData, 0, pData.length);
+        }
+
+        void write (byte [] pData, int iOffset, int iLength) throws IOException  {
+            while (iLength > 0)  {
+                if (!pBuffer.hasRemaining())  {
+                    flush();
+                }
+                int n = Math.min(iLength, pBuffer.remaining());
+                pBuffer.put(pData, iOffset, n);
+                iOffset += n;
+                iLength -= n;
+            }
+        }
+
+        void writeInt (int n) throws IOException  {
+            if (pBuffer.remaining() < 4)  {
+                flush();
+            }
+            pBuffer.putInt(n);
+        }
+
+        void flush () throws IOException  {
+            pBuffer.flip();
+            while (pBuffer.hasRemaining())  {
+                pChannel.write(pBuffer);
+            }
+            pBuffer.clear();
+        }
+    }
+}
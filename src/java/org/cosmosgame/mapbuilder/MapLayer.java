@@ -0,0 +1,18 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * A MapLayer is one value per hex of a world, such as its terrain or
+ * elevation, for MapExporter to draw through a MapPalette.  MapLayers has
+ * the usual ones.
+ *
+ * @author Odysseus Levy
+ */
+
+public interface MapLayer {
+
+    /**
+     Returns the value of the hex.  It is called from several threads at
+     once.
+     */
+    float getValue (HexGrid pGrid, int iIDNum);
+}
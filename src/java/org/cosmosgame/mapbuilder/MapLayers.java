@@ -0,0 +1,120 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * The MapLayers class holds the MapLayers of the fields of a HexGrid.
+ * Seasonal fields come as one season, or as the average over the year.
+ *
+ * @author Odysseus Levy
+ */
+
+public class MapLayers {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final MapLayer TERRAIN = new MapLayer()  {
+        public float getValue (HexGrid pGrid, int iIDNum)  {
+            return pGrid.iTerrainType[iIDNum];
+        }
+    };
+
+    public static final MapLayer ELEVATION = new MapLayer()  {
+        public float getValue (HexGrid pGrid, int iIDNum)  {
+            return pGrid.fElevation[iIDNum];
+        }
+    };
+
+    public static final MapLayer CLIMATE = new MapLayer()  {
+        public float getValue (HexGrid pGrid, int iIDNum)  {
+            return pGrid.iClimate[iIDNum];
+        }
+    };
+
+    public static final MapLayer TEMPERATURE = new MapLayer()  {
+        public float getValue (HexGrid pGrid, int iIDNum)  {
+            float fSum = 0;
+            for (int s = 0; s < pGrid.iNumSeasons; s++)  {
+                fSum += pGrid.fTemperature[s * pGrid.iSize + iIDNum];
+            }
+            return fSum / pGrid.iNumSeasons;
+        }
+    };
+
+    public static final MapLayer RAINFALL = new MapLayer()  {
+        public float getValue (HexGrid pGrid, int iIDNum)  {
+            float fSum = 0;
+            for (int s = 0; s < pGrid.iNumSeasons; s++)  {
+                fSum += pGrid.iRainfall[s * pGrid.iSize + iIDNum];
+            }
+            return fSum / pGrid.iNumSeasons;
+        }
+    };
+
+
+    //-------------------------------------------------------------------
+    // Constructors
+    //
+    private MapLayers ()  {
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public static MapLayer temperature (final int iSeason)  {
+        return new MapLayer()  {
+            public float getValue (HexGrid pGrid, int iIDNum)  {
+                return pGrid.fTemperature[pGrid.seasonIndex(iSeason, iIDNum)];
+            }
+        };
+    }
+
+    public static MapLayer rainfall (final int iSeason)  {
+        return new MapLayer()  {
+            public float getValue (HexGrid pGrid, int iIDNum)  {
+                return pGrid.iRainfall[pGrid.seasonIndex(iSeason, iIDNum)];
+            }
+        };
+    }
+
+    /**
+     Returns the layer called sName ("terrain", "elevation", "climate",
+     "temperature" or "rainfall", the last two averaged over the year), or
+     null.
+     */
+    public static MapLayer forName (String sName)  {
+        if ("terrain".equalsIgnoreCase(sName))  {
+            return TERRAIN;
+        }
+        if ("elevation".equalsIgnoreCase(sName))  {
+            return ELEVATION;
+        }
+        if ("climate".equalsIgnoreCase(sName))  {
+            return CLIMATE;
+        }
+        if ("temperature".equalsIgnoreCase(sName))  {
+            return TEMPERATURE;
+        }
+        if ("rainfall".equalsIgnoreCase(sName))  {
+            return RAINFALL;
+        }
+        return null;
+    }
+
+    /**
+     Returns the lowest and highest value of the layer, as {min, max}.
+     */
+    public static float [] getRange (HexGrid pGrid, MapLayer pLayer)  {
+        float fMin = Float.MAX_VALUE, fMax = -Float.MAX_VALUE;
+        for (int i = 0; i < pGrid.iSize; i++)  {
+            float f = pLayer.getValue(pGrid, i);
+            if (f < fMin)  {
+                fMin = f;
+            }
+            if (f > fMax)  {
+                fMax = f;
+            }
+        }
+        return new float [] { fMin, fMax };
+    }
+}
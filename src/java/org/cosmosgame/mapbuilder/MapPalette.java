@@ -0,0 +1,138 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * A MapPalette turns the values of a MapLayer into at most 256 entries,
+ * each with a color, for images, and a character, for text.  A value v
+ * picks entry round((v - min) * scale), clamped to the palette.
+ *
+ * terrain() has an entry per terrain type; gradient() spreads 256 entries
+ * evenly between two values, blending a list of colors.
+ *
+ * @author Odysseus Levy
+ */
+
+public class MapPalette {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int [] TERRAIN_COLORS = {
+            0x000000,                                               // NONE
+            0x00005a, 0x1e50b4, 0x8c7864, 0x5a4b3c, 0xb42814,       // DeepOcean .. Volcano
+            0xf0f8ff, 0xa0b4a0, 0xc8c88c, 0x9acd32, 0xd2b45a,       // Ice .. Savannah
+            0x228b22, 0x006400, 0x556b2f, 0xedc98a                  // Forest .. Desert
+    };
+
+    public static final int [] ELEVATION_COLORS = { 0x000050, 0x1e64c8, 0x3c9650, 0x8c6e46, 0xffffff };
+    public static final int [] HEAT_COLORS = { 0x2040c0, 0x40c0e0, 0xf0e060, 0xe04020 };
+    public static final int [] RAIN_COLORS = { 0xe6d2a0, 0x78be5a, 0x1e3cb4 };
+
+    /** Characters for gradients, from the lowest values to the highest */
+    public static final String RAMP = " .:-=+*#%@";
+
+    private static final int GRADIENT_SIZE = 256;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int [] iColors;
+    private final char [] cChars;
+    private final float fMin;
+    private final float fScale;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     A palette with an entry per whole value from 0, like the terrain types.
+     */
+    public MapPalette (int [] iColors, char [] cChars)  {
+        this(iColors, cChars, 0.0f, 1.0f);
+    }
+
+    public MapPalette (int [] iColors, char [] cChars, float fMin, float fScale)  {
+        if (iColors.length == 0 || iColors.length > 256 || cChars.length != iColors.length)  {
+            throw new IllegalArgumentException("A palette needs 1 to 256 colors, and a character for each");
+        }
+        this.iColors = iColors.clone();
+        this.cChars = cChars.clone();
+        this.fMin = fMin;
+        this.fScale = fScale;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public int size ()  {
+        return iColors.length;
+    }
+
+    /**
+     Returns the color of the entry, as 0xRRGGBB.
+     */
+    public int getRGB (int iIndex)  {
+        return iColors[iIndex];
+    }
+
+    public char getChar (int iIndex)  {
+        return cChars[iIndex];
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    public int getIndex (float fValue)  {
+        int k = (int)((fValue - fMin) * fScale + 0.5f);
+        if (k < 0)  {
+            return 0;
+        }
+        return (k < iColors.length) ? k : iColors.length - 1;
+    }
+
+    /**
+     The terrain types, in TERRAIN_COLORS, with the characters of
+     Hex.getTerrainShortName().
+     */
+    public static MapPalette terrain ()  {
+        char [] cChars = new char [TERRAIN_COLORS.length];
+        for (int k = 0; k < cChars.length; k++)  {
+            cChars[k] = Hex.sTerrainShortString[k].charAt(0);
+        }
+        return new MapPalette (TERRAIN_COLORS, cChars);
+    }
+
+    /**
+     256 entries from fMin to fMax, blending the colors evenly, with the
+     characters of RAMP.
+     */
+    public static MapPalette gradient (float fMin, float fMax, int... iStops)  {
+        int [] iColors = new int [GRADIENT_SIZE];
+        char [] cChars = new char [GRADIENT_SIZE];
+        for (int k = 0; k < GRADIENT_SIZE; k++)  {
+            float t = (float)k / (GRADIENT_SIZE - 1) * (iStops.length - 1);
+            int s = Math.min((int)t, iStops.length - 2);
+            iColors[k] = (iStops.length == 1) ? iStops[0] : blend(iStops[s], iStops[s + 1], t - s);
+            cChars[k] = RAMP.charAt(k * RAMP.length() / GRADIENT_SIZE);
+        }
+        float fScale = (fMax > fMin) ? (GRADIENT_SIZE - 1) / (fMax - fMin) : 0.0f;
+        return new MapPalette (iColors, cChars, fMin, fScale);
+    }
+
+    /**
+     A gradient over the range of the layer's values in pGrid.
+     */
+    public static MapPalette gradient (HexGrid pGrid, MapLayer pLayer, int... iStops)  {
+        float [] fRange = MapLayers.getRange(pGrid, pLayer);
+        return gradient(fRange[0], fRange[1], iStops);
+    }
+
+    private static int blend (int a, int b, float t)  {
+        int r = Math.round(((a >> 16) & 0xff) * (1 - t) + ((b >> 16) & 0xff) * t);
+        int g = Math.round(((a >> 8) & 0xff) * (1 - t) + ((b >> 8) & 0xff) * t);
+        int bl = Math.round((a & 0xff) * (1 - t) + (b & 0xff) * t);
+        return (r << 16) | (g << 8) | bl;
+    }
+}
@@ -1,5 +1,12 @@
 package org.cosmosgame.mapbuilder;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
  * Author: odysseus
  * Date: 2/4/12
@@ -36,6 +43,24 @@ public class MapParams
      Number of Seasons in a year for this world.
      */
     public int iNumSeasons = 4;
+
+    /**
+     The seed for all of the random numbers used to build the map.  The same
+     seed and parameters always give the same map.  0 means a new seed is
+     picked for every map.  Default 0.
+     */
+    public long lSeed = 0;
+
+    public void setSeed(long lSeed)
+    {
+        this.lSeed = lSeed;
+    }
+
+    public long getSeed()
+    {
+        return this.lSeed;
+    }
+
     public byte bMaxRange = 15;
     public int TEMPSCALE = 10;
 
@@ -59,6 +84,21 @@ public class MapParams
     public float fPercentImpassableMountains = 0.995f;
     public int iMinInlandSeaSize = 5;
 
+    /**
+     The terrain thresholds are read from a histogram of the elevations with
+     iThresholdBins bins, counting every iThresholdSampleStep'th hex.
+     Defaults 1000 and 5.
+     */
+    public int iThresholdBins = 1000;
+    public int iThresholdSampleStep = 5;
+
+    /**
+     If true the terrain thresholds are selected from all the elevations
+     exactly instead of read from the histogram, so that the fractions of
+     ocean and mountains match fPercentOcean and friends.  Default false.
+     */
+    public boolean bExactThresholds = false;
+
     //
     // Temperature
     //
@@ -370,6 +410,176 @@ public class MapParams
 
     }
 
-}
+    //-------------------------------------------------------------------
+    // Methods
+    //
+
+    /**
+     Returns a key that identifies the map these parameters generate: a
+     SHA-1 over the name and value of every public field, in name order.
+     fPercentDeepOcean is left out, since it is derived from fPercentOcean
+     while the map is built.
+     */
+    public String getCacheKey ()  {
+        StringBuilder sb = new StringBuilder();
+        try  {
+            for (Field f : getFields())  {
+                if (f.getName().equals("fPercentDeepOcean"))  {
+                    continue;
+                }
+                sb.append(f.getName()).append('=');
+                sb.append(format(f.get(this)));
+                sb.append(';');
+            }
+
+            byte [] pDigest = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder sKey = new StringBuilder(pDigest.length * 2);
+            for (byte b : pDigest)  {
+                sKey.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sKey.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sKey.toString();
+        }
+        catch (IllegalAccessException e)  {
+            throw new IllegalStateException(e);
+        }
+        catch (NoSuchAlgorithmException e)  {
+            throw new IllegalStateException(e);
+        }
+        catch (java.io.UnsupportedEncodingException e)  {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     Returns the value of the named public field as a string; arrays give
+     their contents.
+     */
+    String getValue (String sField)  {
+        try  {
+            return format(checkField(sField).get(this));
+        }
+        catch (IllegalAccessException e)  {
+            throw new IllegalStateException(e);
+        }
+    }
 
+    /**
+     Sets the named public field from a string in the form getValue()
+     gives.  Throws an IllegalArgumentException if there is no such field
+     or the value does not parse.
+     */
+    void setValue (String sField, String sValue)  {
+        Field f = checkField(sField);
+        Class<?> pType = f.getType();
+        try  {
+            if (pType == String.class)  {
+                f.set(this, "null".equals(sValue) ? null : sValue);
+            }
+            else if (pType == boolean.class)  {
+                f.setBoolean(this, Boolean.parseBoolean(sValue));
+            }
+            else if (pType == byte.class)  {
+                f.setByte(this, Byte.parseByte(sValue));
+            }
+            else if (pType == short.class)  {
+                f.setShort(this, Short.parseShort(sValue));
+            }
+            else if (pType == int.class)  {
+                f.setInt(this, Integer.parseInt(sValue));
+            }
+            else if (pType == long.class)  {
+                f.setLong(this, Long.parseLong(sValue));
+            }
+            else if (pType == float.class)  {
+                f.setFloat(this, Float.parseFloat(sValue));
+            }
+            else if (pType == double.class)  {
+                f.setDouble(this, Double.parseDouble(sValue));
+            }
+            else if (pType == short[].class)  {
+                String [] sItems = items(sValue);
+                short [] iValues = new short [sItems.length];
+                for (int i = 0; i < sItems.length; i++)  {
+                    iValues[i] = Short.parseShort(sItems[i]);
+                }
+                f.set(this, iValues);
+            }
+            else if (pType == float[].class)  {
+                String [] sItems = items(sValue);
+                float [] fValues = new float [sItems.length];
+                for (int i = 0; i < sItems.length; i++)  {
+                    fValues[i] = Float.parseFloat(sItems[i]);
+                }
+                f.set(this, fValues);
+            }
+            else  {
+                throw new IllegalArgumentException("Cannot set MapParams." + sField + " from a string");
+            }
+        }
+        catch (IllegalAccessException e)  {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     Returns the public, non static fields, in name order.
+     */
+    static Field [] getFields ()  {
+        Field [] pAll = MapParams.class.getFields();
+        Field [] pFields = new Field [pAll.length];
+        int n = 0;
+        for (Field f : pAll)  {
+            if (!Modifier.isStatic(f.getModifiers()))  {
+                pFields[n++] = f;
+            }
+        }
+        pFields = Arrays.copyOf(pFields, n);
+        Arrays.sort(pFields, new Comparator<Field>() {
+            public int compare (Field a, Field b)  {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return pFields;
+    }
 
+    /**
+     Returns the named public field, or throws an IllegalArgumentException
+     if there is no such field.
+     */
+    static Field checkField (String sField)  {
+        try  {
+            Field f = MapParams.class.getField(sField);
+            if (Modifier.isStatic(f.getModifiers()))  {
+                throw new IllegalArgumentException("MapParams." + sField + " is static");
+            }
+            return f;
+        }
+        catch (NoSuchFieldException e)  {
+            throw new IllegalArgumentException("No such parameter: " + sField);
+        }
+    }
+
+    /**
+     Splits "[a, b, c]", as written by format(), into its items.
+     */
+    private static String [] items (String sValue)  {
+        String sList = sValue.trim();
+        if (!sList.startsWith("[") || !sList.endsWith("]"))  {
+            throw new IllegalArgumentException("Not a list: " + sValue);
+        }
+        sList = sList.substring(1, sList.length() - 1).trim();
+        return sList.isEmpty() ? new String [0] : sList.split("\\s*,\\s*");
+    }
+
+    private static String format (Object value)  {
+        if (value instanceof short[])  {
+            return Arrays.toString((short[])value);
+        }
+        if (value instanceof float[])  {
+            return Arrays.toString((float[])value);
+        }
+        return String.valueOf(value);
+    }
+
+}
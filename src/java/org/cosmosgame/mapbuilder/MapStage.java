@@ -0,0 +1,87 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * A MapStage is one step of building a world: elevation, temperature,
+ * wind and so on.  Each stage declares the MapParams fields it reads, the
+ * map data it reads and the map data it writes; StageGraph uses these to
+ * order the stages and to decide which of them have to run again after
+ * the parameters change.
+ *
+ * Data is named by the DATA_ constants of MapBuilder.  A stage must read
+ * nothing but what it declares, or a change to it will not be noticed.
+ *
+ * @author Odysseus Levy
+ */
+
+public abstract class MapStage {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final String sName;
+    private final String [] sParams;
+    private final String [] sReads;
+    private final String [] sWrites;
+    private final boolean bSeasonal;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     bSeasonal is true if the stage works on every hex once per season,
+     rather than once.
+     */
+    protected MapStage (String sName,
+                        String [] sParams,
+                        String [] sReads,
+                        String [] sWrites,
+                        boolean bSeasonal)
+    {
+        this.sName = sName;
+        this.sParams = sParams.clone();
+        this.sReads = sReads.clone();
+        this.sWrites = sWrites.clone();
+        this.bSeasonal = bSeasonal;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public String getName ()  {
+        return sName;
+    }
+
+    /**
+     Returns the names of the MapParams fields the stage reads.
+     */
+    public String [] getParams ()  {
+        return sParams.clone();
+    }
+
+    public String [] getReads ()  {
+        return sReads.clone();
+    }
+
+    public String [] getWrites ()  {
+        return sWrites.clone();
+    }
+
+    public boolean isSeasonal ()  {
+        return bSeasonal;
+    }
+
+    public String toString ()  {
+        return sName;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Does the work of the stage.
+     */
+    protected abstract void run ();
+}
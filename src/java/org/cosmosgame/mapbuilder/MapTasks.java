@@ -0,0 +1,74 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Helpers for running the parallel parts of the MapBuilder stages.
+ *
+ * @author Odysseus Levy
+ */
+
+class MapTasks {
+
+    private MapTasks ()  {
+    }
+
+    /**
+     Returns the number of threads the executor runs tasks on at once: 1
+     for none (the calling thread), the core size of a pool, or, when that
+     can not be told, the number of processors.
+     */
+    static int threadsOf (ExecutorService executor)  {
+        if (executor == null)  {
+            return 1;
+        }
+        if (executor instanceof ThreadPoolExecutor)  {
+            int iCore = ((ThreadPoolExecutor)executor).getCorePoolSize();
+            if (iCore > 0)  {
+                return iCore;
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     Runs the tasks on the executor and waits for all of them.  With no
+     executor, or a single task, they are run on the calling thread.  A
+     failure in any task is rethrown as an IllegalStateException naming
+     sWhat.
+     */
+    static void invokeAll (ExecutorService executor,
+                           List<Callable<Void>> pTasks,
+                           String sWhat)
+    {
+        try  {
+            if (executor == null || pTasks.size() < 2)  {
+                for (Callable<Void> pTask : pTasks)  {
+                    pTask.call();
+                }
+                return;
+            }
+            for (Future<Void> f : executor.invokeAll(pTasks))  {
+                f.get();
+            }
+        }
+        catch (InterruptedException e)  {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(sWhat + " interrupted", e);
+        }
+        catch (ExecutionException e)  {
+            throw new IllegalStateException(sWhat + " failed", e.getCause());
+        }
+        catch (RuntimeException e)  {
+            throw e;
+        }
+        catch (Exception e)  {
+            throw new IllegalStateException(sWhat + " failed", e);
+        }
+    }
+}
@@ -5,41 +5,51 @@ import java.io.*;
 /**
  * Author: odysseus
  * Date: 2/4/12
+ *
+ * Usage: MapTest [layer [file]], where layer is terrain, elevation,
+ * climate, temperature or rainfall, and the file's extension (.png, .ppm,
+ * or anything else for text) picks the format.  The default is the
+ * terrain, as text, in dump.text.
  */
 public class MapTest
 {
-    
+
     public static void main(String args[]) throws IOException {
 
+        String sLayer = (args.length > 0) ? args[0] : "terrain";
+        File f = new File((args.length > 1) ? args[1] : "dump.text");
+
+        MapLayer layer = MapLayers.forName(sLayer);
+        if (layer == null)
+        {
+            System.err.println("Unknown layer " + sLayer);
+            return;
+        }
+
         MapParams params = new MapParams();
         MapBuilder builder = new MapBuilder();
         builder.init(params);
 
         builder.generateWorld();
 
-        File f = new File("dump.text");
-        f.createNewFile();
-
-        FileWriter writer = new FileWriter(f);
-        dump(writer, builder);
+        HexGrid grid = builder.getGrid();
+        new MapExporter(builder.getExecutor(), builder.getThreads()).export(grid, layer, getPalette(grid, layer), f);
     }
 
-    public static void dump(OutputStreamWriter out, MapBuilder builder)
+    public static MapPalette getPalette(HexGrid grid, MapLayer layer)
     {
-        PrintWriter writer = new PrintWriter(out);
-
-        int x = 0;
-        int y = 0;
-        for( y = 0; y < builder.getDimension(); y++)
+        if (layer == MapLayers.TERRAIN)
+        {
+            return MapPalette.terrain();
+        }
+        if (layer == MapLayers.ELEVATION)
+        {
+            return MapPalette.gradient(0.0f, 1.0f, MapPalette.ELEVATION_COLORS);
+        }
+        if (layer == MapLayers.RAINFALL)
         {
-            writer.print(y + "\t");
-            for (x = 0; x < builder.getDimension(); x++)
-            {
-                Hex h = builder.getHex(x, y);
-                writer.print(h.getTerrainShortName());
-            }
-
-            writer.println();
+            return MapPalette.gradient(grid, layer, MapPalette.RAIN_COLORS);
         }
+        return MapPalette.gradient(grid, layer, MapPalette.HEAT_COLORS);
     }
 }
@@ -0,0 +1,359 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The QuantileSelector class finds the elevations the terrain thresholds
+ * are set at, either from a histogram of a sample of the values or as the
+ * exact values of given ranks.
+ *
+ * Exact selection counts every value into a fine histogram, in parallel,
+ * which pins each requested rank down to one bin.  The values of those
+ * few bins are then gathered, again in parallel, and a quickselect over
+ * them finds the value of the rank.
+ *
+ * Both histograms are kept until reset() is called, so asking for other
+ * thresholds of the same values only costs the final selection.
+ *
+ * @author Odysseus Levy
+ */
+
+class QuantileSelector {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+
+    // The number of bins of the histogram used by exact selection
+    private static final int SELECT_BINS = 65536;
+
+    // Ranges with fewer values than this are not worth handing to the executor
+    private static final int MIN_PARALLEL_VALUES = 65536;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private float [] fValues = null;
+
+    // The sampled histogram, and what it was built with
+    private int [] iHistogram = null;
+    private int iSamples;
+    private int iHistogramStep;
+    private float fHistogramOffset, fHistogramScale;
+
+    // The fine histogram of exact selection, one per chunk of the values
+    private int [][] iChunkCounts = null;
+    private int [] iCounts = null;
+    private float fLowest, fScale;
+    private float [] fCandidates = new float [0];
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Sets the values to select from, dropping everything computed for the
+     previous ones.  Must be called again whenever the values change.
+     */
+    void reset (float [] fValues)  {
+        this.fValues = fValues;
+        this.iHistogram = null;
+        this.iCounts = null;
+    }
+
+    /**
+     Returns a histogram of every iStep'th value: value v is counted in
+     bin (int)((v + fOffset) * fScale), clamped to [0, iBins].  The number
+     of values counted is given by getSampleCount().  The values are split
+     into at most iThreads chunks, each with a histogram of its own.
+     */
+    int [] histogram (final int iBins,
+                      int iStep,
+                      final float fOffset,
+                      final float fScale,
+                      ExecutorService executor,
+                      int iThreads)
+    {
+        if (   iHistogram != null
+            && iHistogram.length == iBins + 1
+            && iHistogramStep == iStep
+            && fHistogramOffset == fOffset
+            && fHistogramScale == fScale)  {
+            return iHistogram;
+        }
+
+        final int iSampleStep = Math.max(iStep, 1);
+        final int iCount = (fValues.length + iSampleStep - 1) / iSampleStep;
+        int iChunks = chunks(iCount, iThreads);
+        final int [][] iPartial = new int [iChunks][];
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(iChunks);
+
+        for (int c = 0; c < iChunks; c++)  {
+            final int iChunk = c;
+            final int iFirst = (int)(((long)iCount * c) / iChunks);
+            final int iLast = (int)(((long)iCount * (c + 1)) / iChunks);
+            pTasks.add(new Callable<Void>() {
+                public Void call ()  {
+                    int [] h = new int [iBins + 1];
+                    int n;
+                    for (int s = iFirst; s < iLast; s++)  {
+                        n = (int)((fValues[s * iSampleStep] + fOffset) * fScale);
+                        if (n < 0)  {
+                            n = 0;
+                        }
+                        else if (n > iBins)  {
+                            n = iBins;
+                        }
+                        h[n] += 1;
+                    }
+                    iPartial[iChunk] = h;
+                    return null;
+                }
+            });
+        }
+        MapTasks.invokeAll(executor, pTasks, "Elevation histogram");
+
+        iHistogram = sum(iPartial, iBins + 1);
+        iSamples = iCount;
+        iHistogramStep = iStep;
+        fHistogramOffset = fOffset;
+        fHistogramScale = fScale;
+        return iHistogram;
+    }
+
+    /**
+     Returns the number of values counted in the last histogram().
+     */
+    int getSampleCount ()  {
+        return iSamples;
+    }
+
+    /**
+     Returns, for each rank r, the value that would be at index r if the
+     values were sorted.  Ranks below 0 give negative infinity and ranks
+     past the last value give positive infinity.  The fine histogram is
+     counted in at most iThreads chunks.
+     */
+    float [] select (int [] iRanks, ExecutorService executor, int iThreads)  {
+        float [] fResults = new float [iRanks.length];
+        int [] iBin = new int [iRanks.length];
+        int [] iRankInBin = new int [iRanks.length];
+        int q, b, iSeen;
+
+        countFine(executor, iThreads);
+
+        // Find the bin of each rank, and its rank among the values of the bin
+        for (q = 0; q < iRanks.length; q++)  {
+            iBin[q] = -1;
+            if (iRanks[q] < 0)  {
+                fResults[q] = Float.NEGATIVE_INFINITY;
+            }
+            else if (iRanks[q] >= fValues.length)  {
+                fResults[q] = Float.POSITIVE_INFINITY;
+            }
+            else  {
+                for (b = 0, iSeen = 0; iSeen + iCounts[b] <= iRanks[q]; b++)  {
+                    iSeen += iCounts[b];
+                }
+                iBin[q] = b;
+                iRankInBin[q] = iRanks[q] - iSeen;
+            }
+        }
+
+        // Gather the values of the bins needed, each bin into its own slice of
+        // fCandidates, and select within the slice
+        final int [] iBins = distinct(iBin);
+        final int [] iStarts = new int [iBins.length + 1];
+        for (b = 0; b < iBins.length; b++)  {
+            iStarts[b + 1] = iStarts[b] + iCounts[iBins[b]];
+        }
+        if (fCandidates.length < iStarts[iBins.length])  {
+            fCandidates = new float [iStarts[iBins.length]];
+        }
+        gather(iBins, iStarts, executor);
+
+        for (q = 0; q < iRanks.length; q++)  {
+            if (iBin[q] >= 0)  {
+                b = Arrays.binarySearch(iBins, iBin[q]);
+                fResults[q] = quickselect(fCandidates, iStarts[b], iStarts[b + 1] - 1,
+                                          iStarts[b] + iRankInBin[q]);
+            }
+        }
+        return fResults;
+    }
+
+    /**
+     Builds the fine histogram of all the values, unless it is already there.
+     */
+    private void countFine (ExecutorService executor, int iThreads)  {
+        if (iCounts != null)  {
+            return;
+        }
+
+        float fHighest = Float.NEGATIVE_INFINITY;
+        fLowest = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < fValues.length; i++)  {
+            if (fValues[i] < fLowest)  {
+                fLowest = fValues[i];
+            }
+            if (fValues[i] > fHighest)  {
+                fHighest = fValues[i];
+            }
+        }
+        fScale = (fHighest > fLowest) ? (float)SELECT_BINS / (fHighest - fLowest) : 0.0f;
+
+        int iChunks = chunks(fValues.length, iThreads);
+        if (iChunkCounts == null || iChunkCounts.length != iChunks)  {
+            iChunkCounts = new int [iChunks][SELECT_BINS];
+        }
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(iChunks);
+        for (int c = 0; c < iChunks; c++)  {
+            final int [] h = iChunkCounts[c];
+            final int iFirst = first(c, iChunks);
+            final int iLast = first(c + 1, iChunks);
+            pTasks.add(new Callable<Void>() {
+                public Void call ()  {
+                    Arrays.fill(h, 0);
+                    for (int i = iFirst; i < iLast; i++)  {
+                        h[bin(fValues[i])] += 1;
+                    }
+                    return null;
+                }
+            });
+        }
+        MapTasks.invokeAll(executor, pTasks, "Elevation selection");
+
+        iCounts = sum(iChunkCounts, SELECT_BINS);
+    }
+
+    /**
+     Copies the values of the given bins (sorted, distinct) into their
+     slices of fCandidates.  Each chunk of the values knows from its own
+     histogram where its share of each slice starts.
+     */
+    private void gather (final int [] iBins, int [] iStarts, ExecutorService executor)  {
+        int iChunks = iChunkCounts.length;
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>(iChunks);
+        int [] iNext = Arrays.copyOf(iStarts, iBins.length);
+
+        for (int c = 0; c < iChunks; c++)  {
+            final int [] iOffsets = Arrays.copyOf(iNext, iBins.length);
+            final int iFirst = first(c, iChunks);
+            final int iLast = first(c + 1, iChunks);
+            for (int b = 0; b < iBins.length; b++)  {
+                iNext[b] += iChunkCounts[c][iBins[b]];
+            }
+            pTasks.add(new Callable<Void>() {
+                public Void call ()  {
+                    int b;
+                    for (int i = iFirst; i < iLast; i++)  {
+                        b = Arrays.binarySearch(iBins, bin(fValues[i]));
+                        if (b >= 0)  {
+                            fCandidates[iOffsets[b]++] = fValues[i];
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        MapTasks.invokeAll(executor, pTasks, "Elevation selection");
+    }
+
+    /**
+     The bin of a value in the fine histogram.  It never decreases as the
+     value grows, so every value of a lower bin is smaller than every value
+     of a higher one.
+     */
+    private int bin (float fValue)  {
+        int b = (int)((fValue - fLowest) * fScale);
+        return (b < SELECT_BINS) ? b : SELECT_BINS - 1;
+    }
+
+    private int chunks (int iCount, int iThreads)  {
+        return Math.max(1, Math.min(iThreads, iCount / MIN_PARALLEL_VALUES));
+    }
+
+    private int first (int iChunk, int iChunks)  {
+        return (int)(((long)fValues.length * iChunk) / iChunks);
+    }
+
+    private static int [] sum (int [][] iPartial, int iLength)  {
+        int [] iTotal = new int [iLength];
+        for (int [] h : iPartial)  {
+            for (int i = 0; i < iLength; i++)  {
+                iTotal[i] += h[i];
+            }
+        }
+        return iTotal;
+    }
+
+    /**
+     Returns the non-negative entries of iValues, sorted, without duplicates.
+     */
+    private static int [] distinct (int [] iValues)  {
+        int [] iSorted = iValues.clone();
+        int n = 0;
+        Arrays.sort(iSorted);
+        for (int i = 0; i < iSorted.length; i++)  {
+            if (iSorted[i] >= 0 && (n == 0 || iSorted[n - 1] != iSorted[i]))  {
+                iSorted[n++] = iSorted[i];
+            }
+        }
+        return Arrays.copyOf(iSorted, n);
+    }
+
+    /**
+     Returns the value that belongs at index k of f[iLeft..iRight] once it
+     is sorted, partially reordering the slice.
+     */
+    private static float quickselect (float [] f, int iLeft, int iRight, int k)  {
+        float fPivot, fSwap;
+        int i, j, m;
+
+        while (iLeft < iRight)  {
+            // Median of three, so sorted runs don't go quadratic
+            m = (iLeft + iRight) >>> 1;
+            if (f[m] < f[iLeft])  {
+                fSwap = f[m]; f[m] = f[iLeft]; f[iLeft] = fSwap;
+            }
+            if (f[iRight] < f[iLeft])  {
+                fSwap = f[iRight]; f[iRight] = f[iLeft]; f[iLeft] = fSwap;
+            }
+            if (f[iRight] < f[m])  {
+                fSwap = f[iRight]; f[iRight] = f[m]; f[m] = fSwap;
+            }
+            fPivot = f[m];
+
+            i = iLeft;
+            j = iRight;
+            while (i <= j)  {
+                while (f[i] < fPivot)  {
+                    i++;
+                }
+                while (f[j] > fPivot)  {
+                    j--;
+                }
+                if (i <= j)  {
+                    fSwap = f[i]; f[i] = f[j]; f[j] = fSwap;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k <= j)  {
+                iRight = j;
+            }
+            else if (k >= i)  {
+                iLeft = i;
+            }
+            else  {
+                return f[k];
+            }
+        }
+        return f[k];
+    }
+}
@@ -0,0 +1,187 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The StageGraph class runs the MapStages of a MapBuilder in dependency
+ * order, and remembers what each stage last ran with so that it can
+ * skip the ones whose inputs have not changed.
+ *
+ * A stage depends on the stage that writes each piece of data it reads.
+ * It is stale, and runs again, if it has never run (or was invalidated),
+ * if any MapParams field it reads has a different value than the last
+ * time it ran, or if any data it reads has been rewritten since then,
+ * either by a stage that ran before it or from outside (invalidate(String)).
+ *
+ * @author Odysseus Levy
+ */
+
+class StageGraph {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final List<MapStage> pStages;               // in dependency order
+    private final Map<MapStage, String []> pLastParams = new HashMap<MapStage, String []>();
+    private final Set<String> pChanged = new HashSet<String>();
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     Orders the stages so that every stage comes after the stages whose
+     data it reads, otherwise keeping the order given.  Data nobody writes
+     is an outside input.
+     */
+    StageGraph (List<MapStage> pDeclared)  {
+        Map<String, MapStage> pWriters = new HashMap<String, MapStage>();
+        for (MapStage pStage : pDeclared)  {
+            for (String sData : pStage.getWrites())  {
+                MapStage pOther = pWriters.put(sData, pStage);
+                if (pOther != null)  {
+                    throw new IllegalArgumentException(
+                            "Stages " + pOther + " and " + pStage + " both write " + sData);
+                }
+            }
+            for (String sParam : pStage.getParams())  {
+                MapParams.checkField(sParam);
+            }
+        }
+
+        List<MapStage> pOrdered = new ArrayList<MapStage>(pDeclared.size());
+        List<MapStage> pLeft = new ArrayList<MapStage>(pDeclared);
+        while (!pLeft.isEmpty())  {
+            MapStage pReady = null;
+            for (MapStage pStage : pLeft)  {
+                boolean bReady = true;
+                for (String sData : pStage.getReads())  {
+                    MapStage pWriter = pWriters.get(sData);
+                    if (pWriter != null && pWriter != pStage && !pOrdered.contains(pWriter))  {
+                        bReady = false;
+                        break;
+                    }
+                }
+                if (bReady)  {
+                    pReady = pStage;
+                    break;
+                }
+            }
+            if (pReady == null)  {
+                throw new IllegalArgumentException("The stages " + pLeft + " depend on each other");
+            }
+            pOrdered.add(pReady);
+            pLeft.remove(pReady);
+        }
+        pStages = Collections.unmodifiableList(pOrdered);
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    /**
+     Returns the stages in the order they run.
+     */
+    List<MapStage> getStages ()  {
+        return pStages;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Forgets everything, so that every stage runs next time.
+     */
+    void invalidate ()  {
+        pLastParams.clear();
+        pChanged.clear();
+    }
+
+    /**
+     Notes that the data has been changed from outside the stages, so that
+     every stage reading it runs next time.
+     */
+    void invalidate (String sData)  {
+        pChanged.add(sData);
+    }
+
+    /**
+     Returns the stages run(pParams) would run, in order.
+     */
+    List<MapStage> getStale (MapParams pParams)  {
+        List<MapStage> pStale = new ArrayList<MapStage>();
+        Set<String> pDirty = new HashSet<String>(pChanged);
+
+        for (MapStage pStage : pStages)  {
+            if (isStale(pStage, pParams, pDirty))  {
+                pStale.add(pStage);
+                pDirty.addAll(Arrays.asList(pStage.getWrites()));
+            }
+        }
+        return pStale;
+    }
+
+    /**
+     Runs the stale stages, in order, reporting each one to the monitor,
+     and returns them.  If a stage fails it stays stale, and so do the
+     stages after it that it would have fed.
+     */
+    List<MapStage> run (MapParams pParams, GenerationMonitor pMonitor)  {
+        List<MapStage> pStale = getStale(pParams);
+        boolean bCompleted = false;
+
+        for (MapStage pStage : pStale)  {
+            pLastParams.remove(pStage);
+        }
+        pMonitor.begin(pParams.dimension, pParams.iNumSeasons, pStale.size());
+        try  {
+            for (MapStage pStage : pStale)  {
+                pMonitor.stageStarted(pStage);
+                try  {
+                    pStage.run();
+                }
+                finally  {
+                    pMonitor.stageFinished(pStage);
+                }
+                pLastParams.put(pStage, values(pStage, pParams));
+            }
+            bCompleted = true;
+        }
+        finally  {
+            pMonitor.end(bCompleted);
+        }
+        pChanged.clear();
+        return pStale;
+    }
+
+    private boolean isStale (MapStage pStage, MapParams pParams, Set<String> pDirty)  {
+        String [] sLast = pLastParams.get(pStage);
+        if (sLast == null || !Arrays.equals(sLast, values(pStage, pParams)))  {
+            return true;
+        }
+        for (String sData : pStage.getReads())  {
+            if (pDirty.contains(sData))  {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String [] values (MapStage pStage, MapParams pParams)  {
+        String [] sParams = pStage.getParams();
+        String [] sValues = new String [sParams.length];
+        for (int i = 0; i < sParams.length; i++)  {
+            sValues[i] = pParams.getValue(sParams[i]);
+        }
+        return sValues;
+    }
+}
@@ -0,0 +1,70 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * The StageStats class holds what one run of a MapStage cost: wall time,
+ * CPU time and bytes allocated, summed over the calling thread and the
+ * executor threads that worked for the stage, and the number of cells
+ * (hexes times seasons) it processed.
+ *
+ * CPU time and allocation are -1 if the JVM can not measure them.
+ *
+ * @author Odysseus Levy
+ */
+
+public class StageStats {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final String sStage;
+    private final long lWallNanos;
+    private final long lCpuNanos;
+    private final long lAllocatedBytes;
+    private final long lCells;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    StageStats (String sStage, long lWallNanos, long lCpuNanos, long lAllocatedBytes, long lCells)  {
+        this.sStage = sStage;
+        this.lWallNanos = lWallNanos;
+        this.lCpuNanos = lCpuNanos;
+        this.lAllocatedBytes = lAllocatedBytes;
+        this.lCells = lCells;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public String getStage ()  {
+        return sStage;
+    }
+
+    public long getWallNanos ()  {
+        return lWallNanos;
+    }
+
+    public long getCpuNanos ()  {
+        return lCpuNanos;
+    }
+
+    public long getAllocatedBytes ()  {
+        return lAllocatedBytes;
+    }
+
+    public long getCells ()  {
+        return lCells;
+    }
+
+    public String toString ()  {
+        return String.format("%-18s %9.1f ms wall %9.1f ms cpu %11.1f KB %11d cells %7.1f ns/cell",
+                             sStage,
+                             lWallNanos / 1e6,
+                             (lCpuNanos < 0) ? -1.0 : lCpuNanos / 1e6,
+                             (lAllocatedBytes < 0) ? -1.0 : lAllocatedBytes / 1024.0,
+                             lCells,
+                             (lCells > 0) ? (double)lWallNanos / lCells : 0.0);
+    }
+}
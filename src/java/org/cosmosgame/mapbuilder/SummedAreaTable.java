@@ -0,0 +1,95 @@
+package org.cosmosgame.mapbuilder;
+
+/**
+ * The SummedAreaTable class answers "what is the total weight in this
+ * box" for any box of the map in constant time, after one linear pass to
+ * build the table.
+ *
+ * Each cell gets a weight looked up from a per-code weight table (for
+ * example the weight of its terrain type).  Boxes wrap around in x, like
+ * the map does, and are clamped to the map in y.
+ *
+ * @author Odysseus Levy
+ */
+
+class SummedAreaTable {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iDim;
+    private final int iStride;
+    private final int [] iSums;     // iSums[(y * iStride) + x] = total of [0,x) x [0,y)
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    SummedAreaTable (int iDim)  {
+        this.iDim = iDim;
+        this.iStride = iDim + 1;
+        this.iSums = new int [iStride * iStride];
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Builds the table; the weight of hex i is iWeights[iCodes[i]].
+     */
+    void build (byte [] iCodes, int [] iWeights)  {
+        int x, y, iRow;
+
+        for (y = 0; y < iDim; y++)  {
+            iRow = 0;
+            for (x = 0; x < iDim; x++)  {
+                iRow += iWeights[iCodes[(y * iDim) + x]];
+                iSums[((y + 1) * iStride) + (x + 1)] = iSums[(y * iStride) + (x + 1)] + iRow;
+            }
+        }
+    }
+
+    /**
+     Returns the total weight of the box from (x0, y0) to (x1, y1)
+     inclusive.  x0 may be negative and x1 may be past the edge of the map;
+     the box wraps around.  y0 and y1 are clamped to the map.
+     */
+    int sum (int x0, int y0, int x1, int y1)  {
+        if (y0 < 0)  {
+            y0 = 0;
+        }
+        if (y1 >= iDim)  {
+            y1 = iDim - 1;
+        }
+        if (y1 < y0 || x1 < x0)  {
+            return 0;
+        }
+
+        int iWidth = x1 - x0 + 1;
+        int iWraps = iWidth / iDim;
+        int iTotal = 0;
+
+        if (iWraps > 0)  {
+            iTotal = iWraps * box(0, y0, iDim - 1, y1);
+            iWidth -= iWraps * iDim;
+            if (iWidth == 0)  {
+                return iTotal;
+            }
+        }
+
+        x0 = ((x0 % iDim) + iDim) % iDim;
+        x1 = x0 + iWidth - 1;
+        if (x1 < iDim)  {
+            return iTotal + box(x0, y0, x1, y1);
+        }
+        return iTotal + box(x0, y0, iDim - 1, y1) + box(0, y0, x1 - iDim, y1);
+    }
+
+    private int box (int x0, int y0, int x1, int y1)  {
+        return iSums[((y1 + 1) * iStride) + (x1 + 1)]
+                - iSums[(y0 * iStride) + (x1 + 1)]
+                - iSums[((y1 + 1) * iStride) + x0]
+                + iSums[(y0 * iStride) + x0];
+    }
+}
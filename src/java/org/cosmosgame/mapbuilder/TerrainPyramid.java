@@ -0,0 +1,306 @@
+package org.cosmosgame.mapbuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The TerrainPyramid class holds smaller copies of a world for views that
+ * show much of it at once.  Level 0 is the world itself; each level after
+ * it halves the dimension (rounding up) until it is 1.  A cell of level k
+ * covers a block of 2^k by 2^k hexes, and keeps
+ *
+ *      the terrain type most of the block's hexes have (the lowest code
+ *      on a tie), and the mean elevation, and the mean over the block and
+ *      the year of the temperature and rainfall.
+ *
+ * Every level is computed when the pyramid is made, a band of rows per
+ * task.  A level is encoded the first time it is asked for, big endian:
+ *
+ *      byte    format (FORMAT)
+ *      byte    level
+ *      short   dimension
+ *      byte    the terrain type of each cell, row by row
+ *      float   the elevation of each cell
+ *      float   the temperature of each cell
+ *      float   the rainfall of each cell
+ *
+ * The grid must not change while the pyramid is built.
+ *
+ * @author Odysseus Levy
+ */
+
+public class TerrainPyramid {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final byte FORMAT = 1;
+    private static final int HEADER_BYTES = 1 + 1 + 2;
+    private static final int BAND_ROWS = 32;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iBaseDim;
+    private final int [] iDims;                 // by level, iDims[0] is the world's
+    private final byte [][] iTerrain;
+    private final float [][] fElevation;
+    private final float [][] fTemperature;
+    private final float [][] fRainfall;
+    private final AtomicReferenceArray<byte []> pEncoded;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    /**
+     Builds every level of the pyramid of pGrid on the executor, or on the
+     calling thread if it is null.
+     */
+    public TerrainPyramid (HexGrid pGrid, ExecutorService executor)  {
+        iBaseDim = pGrid.getDimension();
+
+        int iLevels = 1;
+        while (levelDimension(iLevels - 1) > 1)  {
+            iLevels++;
+        }
+        iDims = new int [iLevels];
+        for (int k = 0; k < iLevels; k++)  {
+            iDims[k] = levelDimension(k);
+        }
+
+        iTerrain = new byte [iLevels][];
+        fElevation = new float [iLevels][];
+        fTemperature = new float [iLevels][];
+        fRainfall = new float [iLevels][];
+        pEncoded = new AtomicReferenceArray<byte []>(iLevels);
+
+        for (int k = 1; k < iLevels; k++)  {
+            int iCells = iDims[k] * iDims[k];
+            iTerrain[k] = new byte [iCells];
+            fElevation[k] = new float [iCells];
+            fTemperature[k] = new float [iCells];
+            fRainfall[k] = new float [iCells];
+            buildLevel(pGrid, k, executor);
+        }
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    /**
+     Returns the number of levels, counting level 0.
+     */
+    public int getLevelCount ()  {
+        return iDims.length;
+    }
+
+    public boolean hasLevel (int iLevel)  {
+        return iLevel > 0 && iLevel < iDims.length;
+    }
+
+    public int getDimension (int iLevel)  {
+        return iDims[iLevel];
+    }
+
+    /**
+     The arrays of a level, indexed y * dimension + x.  They are shared and
+     must not be modified.  Level 0 has none; it is the grid.
+     */
+    public byte [] getTerrain (int iLevel)  {
+        return iTerrain[checkLevel(iLevel)];
+    }
+
+    public float [] getElevation (int iLevel)  {
+        return fElevation[checkLevel(iLevel)];
+    }
+
+    public float [] getTemperature (int iLevel)  {
+        return fTemperature[checkLevel(iLevel)];
+    }
+
+    public float [] getRainfall (int iLevel)  {
+        return fRainfall[checkLevel(iLevel)];
+    }
+
+    /**
+     Returns the first level no larger than iMaxDim across, or the last
+     level if none is.
+     */
+    public int getLevelFor (int iMaxDim)  {
+        for (int k = 1; k < iDims.length; k++)  {
+            if (iDims[k] <= iMaxDim)  {
+                return k;
+            }
+        }
+        return iDims.length - 1;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns the encoded level.  The array is shared by every caller and
+     must not be modified.
+     */
+    public byte [] getLevel (int iLevel)  {
+        checkLevel(iLevel);
+        byte [] pLevel = pEncoded.get(iLevel);
+        if (pLevel == null)  {
+            // two threads may both encode it; they get the same bytes
+            pEncoded.compareAndSet(iLevel, null, encode(iLevel));
+            pLevel = pEncoded.get(iLevel);
+        }
+        return pLevel;
+    }
+
+    /**
+     Returns the number of bytes of the levels encoded so far.
+     */
+    public long getEncodedBytes ()  {
+        long lBytes = 0;
+        for (int k = 0; k < pEncoded.length(); k++)  {
+            byte [] pLevel = pEncoded.get(k);
+            if (pLevel != null)  {
+                lBytes += pLevel.length;
+            }
+        }
+        return lBytes;
+    }
+
+    private int checkLevel (int iLevel)  {
+        if (!hasLevel(iLevel))  {
+            throw new IndexOutOfBoundsException("No level " + iLevel);
+        }
+        return iLevel;
+    }
+
+    private int levelDimension (int iLevel)  {
+        return (int)(((long)iBaseDim + (1L << iLevel) - 1) >> iLevel);
+    }
+
+    /**
+     The number of hexes of the world across cell c of a level with blocks
+     of iBlock hexes; cells on the far edges may cover fewer.
+     */
+    private int coverage (int c, int iBlock)  {
+        return Math.min(iBlock, iBaseDim - c * iBlock);
+    }
+
+    private void buildLevel (final HexGrid pGrid, final int iLevel, ExecutorService executor)  {
+        int iDim = iDims[iLevel];
+        List<Callable<Void>> pTasks = new ArrayList<Callable<Void>>();
+        for (int y = 0; y < iDim; y += BAND_ROWS)  {
+            final int y0 = y;
+            final int y1 = Math.min(iDim, y + BAND_ROWS);
+            pTasks.add(new Callable<Void>()  {
+                public Void call ()  {
+                    buildRows(pGrid, iLevel, y0, y1);
+                    return null;
+                }
+            });
+        }
+        MapTasks.invokeAll(executor, pTasks, "Terrain pyramid level " + iLevel);
+    }
+
+    /**
+     The terrain is counted over the block's hexes in the grid, so it is the
+     true majority and not a majority of majorities.  The means come from the
+     level below, weighted by the hexes each cell covers; level 1 takes them
+     from the grid, averaging the seasons.
+     */
+    private void buildRows (HexGrid pGrid, int iLevel, int y0, int y1)  {
+        int iDim = iDims[iLevel];
+        int iBlock = 1 << iLevel;
+        int iHalf = iBlock >> 1;
+        int iBelowDim = iDims[iLevel - 1];
+        int [] iCounts = new int [Hex.sTerrainLongString.length];
+
+        for (int y = y0; y < y1; y++)  {
+            int iHeight = coverage(y, iBlock);
+            for (int x = 0; x < iDim; x++)  {
+                int iWidth = coverage(x, iBlock);
+                int i = y * iDim + x;
+
+                // majority terrain
+                int hx = x * iBlock, hy = y * iBlock;
+                for (int by = hy; by < hy + iHeight; by++)  {
+                    int j = by * iBaseDim + hx;
+                    for (int bx = 0; bx < iWidth; bx++)  {
+                        iCounts[pGrid.iTerrainType[j + bx]]++;
+                    }
+                }
+                int iBest = 0;
+                for (int t = 0; t < iCounts.length; t++)  {
+                    if (iCounts[t] > iCounts[iBest])  {
+                        iBest = t;
+                    }
+                }
+                Arrays.fill(iCounts, 0);
+                iTerrain[iLevel][i] = (byte)iBest;
+
+                // means of the (up to) four cells below
+                double dElevation = 0, dTemperature = 0, dRainfall = 0;
+                long lWeight = 0;
+                for (int cy = 2 * y; cy < Math.min(2 * y + 2, iBelowDim); cy++)  {
+                    for (int cx = 2 * x; cx < Math.min(2 * x + 2, iBelowDim); cx++)  {
+                        int w = (iLevel == 1) ? 1 : coverage(cx, iHalf) * coverage(cy, iHalf);
+                        int j = cy * iBelowDim + cx;
+                        if (iLevel == 1)  {
+                            dElevation += pGrid.fElevation[j];
+                            dTemperature += annualTemperature(pGrid, j);
+                            dRainfall += annualRainfall(pGrid, j);
+                        }
+                        else  {
+                            dElevation += (double)w * fElevation[iLevel - 1][j];
+                            dTemperature += (double)w * fTemperature[iLevel - 1][j];
+                            dRainfall += (double)w * fRainfall[iLevel - 1][j];
+                        }
+                        lWeight += w;
+                    }
+                }
+                fElevation[iLevel][i] = (float)(dElevation / lWeight);
+                fTemperature[iLevel][i] = (float)(dTemperature / lWeight);
+                fRainfall[iLevel][i] = (float)(dRainfall / lWeight);
+            }
+        }
+    }
+
+    private static float annualTemperature (HexGrid pGrid, int iIDNum)  {
+        float fSum = 0;
+        for (int s = 0; s < pGrid.iNumSeasons; s++)  {
+            fSum += pGrid.fTemperature[pGrid.seasonIndex(s, iIDNum)];
+        }
+        return fSum / pGrid.iNumSeasons;
+    }
+
+    private static float annualRainfall (HexGrid pGrid, int iIDNum)  {
+        float fSum = 0;
+        for (int s = 0; s < pGrid.iNumSeasons; s++)  {
+            fSum += pGrid.iRainfall[pGrid.seasonIndex(s, iIDNum)];
+        }
+        return fSum / pGrid.iNumSeasons;
+    }
+
+    private byte [] encode (int iLevel)  {
+        int iCells = iDims[iLevel] * iDims[iLevel];
+        ByteBuffer pOut = ByteBuffer.allocate(HEADER_BYTES + iCells * (1 + 3 * 4));
+        pOut.put(FORMAT);
+        pOut.put((byte)iLevel);
+        pOut.putShort((short)iDims[iLevel]);
+        pOut.put(iTerrain[iLevel]);
+        pOut.asFloatBuffer().put(fElevation[iLevel]);
+        pOut.position(pOut.position() + 4 * iCells);
+        pOut.asFloatBuffer().put(fTemperature[iLevel]);
+        pOut.position(pOut.position() + 4 * iCells);
+        pOut.asFloatBuffer().put(fRainfall[iLevel]);
+        return pOut.array();
+    }
+}
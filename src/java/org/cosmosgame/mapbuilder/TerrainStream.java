@@ -0,0 +1,126 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The TerrainStream class writes the terrain of a world as JSON, straight
+ * from the grid to a stream, without building an object per hex:
+ *
+ *      {"format":1,"dimension":256,
+ *       "palette":["NONE","DeepOcean",...],
+ *       "rows":[[1,40,2,3,...],...]}
+ *
+ * palette names the terrain codes, rows[y] lists the row as pairs of
+ * terrain code and run length, from x = 0.  Terrain comes in large
+ * patches, so a row is usually a few dozen numbers instead of one object
+ * per hex.
+ *
+ * @author Odysseus Levy
+ */
+
+public class TerrainStream {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int FORMAT = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Writes the terrain of pGrid to pOut, as UTF-8.  pOut is flushed but not
+     closed.
+     */
+    public static void write (HexGrid pGrid, OutputStream pOut) throws IOException  {
+        Writer out = new BufferedWriter(new OutputStreamWriter(pOut, "UTF-8"), BUFFER_SIZE);
+        write(pGrid, out);
+        out.flush();
+    }
+
+    /**
+     Writes the terrain of pGrid to out, which is not flushed.
+     */
+    public static void write (HexGrid pGrid, Writer out) throws IOException  {
+        int iDim = pGrid.getDimension();
+        byte [] iTerrain = pGrid.iTerrainType;
+        char [] pDigits = new char [11];
+
+        out.write("{\"format\":");
+        writeInt(out, FORMAT, pDigits);
+        out.write(",\"dimension\":");
+        writeInt(out, iDim, pDigits);
+
+        out.write(",\"palette\":[");
+        for (int k = 0; k < Hex.sTerrainLongString.length; k++)  {
+            if (k > 0)  {
+                out.write(',');
+            }
+            writeString(out, Hex.sTerrainLongString[k]);
+        }
+
+        out.write("],\"rows\":[");
+        for (int y = 0; y < iDim; y++)  {
+            if (y > 0)  {
+                out.write(',');
+            }
+            out.write('[');
+            int i = y * iDim, iEnd = i + iDim;
+            while (i < iEnd)  {
+                byte iCode = iTerrain[i];
+                int iStart = i;
+                while (i < iEnd && iTerrain[i] == iCode)  {
+                    i++;
+                }
+                if (iStart > y * iDim)  {
+                    out.write(',');
+                }
+                writeInt(out, iCode, pDigits);
+                out.write(',');
+                writeInt(out, i - iStart, pDigits);
+            }
+            out.write(']');
+        }
+        out.write("]}");
+    }
+
+    /**
+     Writes the decimal digits of n without making a String.
+     */
+    private static void writeInt (Writer out, int n, char [] pDigits) throws IOException  {
+        if (n < 0)  {
+            out.write('-');
+            n = -n;
+        }
+        int k = pDigits.length;
+        do  {
+            pDigits[--k] = (char)('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        out.write(pDigits, k, pDigits.length - k);
+    }
+
+    private static void writeString (Writer out, String s) throws IOException  {
+        out.write('"');
+        for (int k = 0; k < s.length(); k++)  {
+            char c = s.charAt(k);
+            if (c == '"' || c == '\\')  {
+                out.write('\\');
+                out.write(c);
+            }
+            else if (c < 0x20)  {
+                out.write(String.format("\\u%04x", (int)c));
+            }
+            else  {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,137 @@
+package org.cosmosgame.mapbuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The TerrainTiles class splits the terrain of a world into square tiles,
+ * so that a client can fetch the part of the world it shows instead of
+ * the whole of it.
+ *
+ * A tile is encoded the first time it is asked for, and the bytes are
+ * kept for every later request.  The encoding is big endian:
+ *
+ *      byte    format (FORMAT)
+ *      short   tx, ty          the tile
+ *      short   width, height   in hexes; tiles on the far edges may be smaller
+ *      byte    the terrain type of each hex, row by row
+ *
+ * The hex at (x, y) of the tile is hex (tx * tileSize + x, ty * tileSize + y)
+ * of the world.  The grid must not change once it is tiled.
+ *
+ * @author Odysseus Levy
+ */
+
+public class TerrainTiles {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int TILE_SIZE = 64;
+    public static final byte FORMAT = 1;
+    private static final int HEADER_BYTES = 1 + 2 * 4;
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final HexGrid pGrid;
+    private final int iTileSize;
+    private final int iTilesX;
+    private final int iTilesY;
+    private final AtomicReferenceArray<byte []> pTiles;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    public TerrainTiles (HexGrid pGrid)  {
+        this(pGrid, TILE_SIZE);
+    }
+
+    public TerrainTiles (HexGrid pGrid, int iTileSize)  {
+        if (iTileSize <= 0 || iTileSize > Short.MAX_VALUE)  {
+            throw new IllegalArgumentException("Bad tile size " + iTileSize);
+        }
+        this.pGrid = pGrid;
+        this.iTileSize = iTileSize;
+        this.iTilesX = (pGrid.getDimension() + iTileSize - 1) / iTileSize;
+        this.iTilesY = iTilesX;
+        this.pTiles = new AtomicReferenceArray<byte []>(iTilesX * iTilesY);
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public int getDimension ()  {
+        return pGrid.getDimension();
+    }
+
+    public int getTileSize ()  {
+        return iTileSize;
+    }
+
+    public int getTilesX ()  {
+        return iTilesX;
+    }
+
+    public int getTilesY ()  {
+        return iTilesY;
+    }
+
+    public boolean hasTile (int tx, int ty)  {
+        return tx >= 0 && tx < iTilesX && ty >= 0 && ty < iTilesY;
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns the encoded tile.  The array is shared by every caller and
+     must not be modified.
+     */
+    public byte [] getTile (int tx, int ty)  {
+        if (!hasTile(tx, ty))  {
+            throw new IndexOutOfBoundsException("No tile (" + tx + "," + ty + ")");
+        }
+        int k = ty * iTilesX + tx;
+        byte [] pTile = pTiles.get(k);
+        if (pTile == null)  {
+            // two threads may both encode it; they get the same bytes
+            pTiles.compareAndSet(k, null, encode(tx, ty));
+            pTile = pTiles.get(k);
+        }
+        return pTile;
+    }
+
+    /**
+     Returns the number of bytes of the tiles encoded so far.
+     */
+    public long getEncodedBytes ()  {
+        long lBytes = 0;
+        for (int k = 0; k < pTiles.length(); k++)  {
+            byte [] pTile = pTiles.get(k);
+            if (pTile != null)  {
+                lBytes += pTile.length;
+            }
+        }
+        return lBytes;
+    }
+
+    private byte [] encode (int tx, int ty)  {
+        int iDim = pGrid.getDimension();
+        int x0 = tx * iTileSize, y0 = ty * iTileSize;
+        int iWidth = Math.min(iTileSize, iDim - x0);
+        int iHeight = Math.min(iTileSize, iDim - y0);
+
+        ByteBuffer pOut = ByteBuffer.allocate(HEADER_BYTES + iWidth * iHeight);
+        pOut.put(FORMAT);
+        pOut.putShort((short)tx).putShort((short)ty);
+        pOut.putShort((short)iWidth).putShort((short)iHeight);
+        for (int y = y0; y < y0 + iHeight; y++)  {
+            pOut.put(pGrid.iTerrainType, y * iDim + x0, iWidth);
+        }
+        return pOut.array();
+    }
+}
@@ -0,0 +1,209 @@
+package org.cosmosgame.mapbuilder;
+
+import java.util.Arrays;
+
+/**
+ * The WaterBodies class is a catalog of the connected bodies of water on
+ * a map.  Every water hex is labeled with the id of its body, and every
+ * body records its size, its bounding box and whether it is an ocean or
+ * a lake.
+ *
+ * Bodies are found with a union-find over the hex neighbors, so building
+ * the catalog takes a couple of linear passes and no recursion, however
+ * big the oceans are.  Body ids are numbered in the order their first hex
+ * appears on the map.
+ *
+ * A body is an ocean if it contains any deep ocean; otherwise it is a
+ * lake.  Bounding boxes do not wrap, so a body crossing the left and
+ * right edges of the map spans the whole width.
+ *
+ * @author Odysseus Levy
+ */
+
+public class WaterBodies {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iDim;
+    private final int [] iBody;         // The body of each hex, -1 for land
+
+    private int iCount = 0;
+    private int [] iSizes = new int [16];
+    private int [] iMinX = new int [16];
+    private int [] iMinY = new int [16];
+    private int [] iMaxX = new int [16];
+    private int [] iMaxY = new int [16];
+    private boolean [] bOcean = new boolean [16];
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    WaterBodies (int iDim)  {
+        this.iDim = iDim;
+        this.iBody = new int [iDim * iDim];
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    /**
+     Returns the number of bodies of water.
+     */
+    public int getCount ()  {
+        return iCount;
+    }
+
+    /**
+     Returns the body the hex belongs to, or -1 if it is land.
+     */
+    public int getBody (int iIDNum)  {
+        return iBody[iIDNum];
+    }
+
+    public int getBody (int x, int y)  {
+        return iBody[(y * iDim) + x];
+    }
+
+    /**
+     Returns the number of hexes in the body.
+     */
+    public int getSize (int iBodyNum)  {
+        return iSizes[iBodyNum];
+    }
+
+    public int getMinX (int iBodyNum)  {
+        return iMinX[iBodyNum];
+    }
+
+    public int getMinY (int iBodyNum)  {
+        return iMinY[iBodyNum];
+    }
+
+    public int getMaxX (int iBodyNum)  {
+        return iMaxX[iBodyNum];
+    }
+
+    public int getMaxY (int iBodyNum)  {
+        return iMaxY[iBodyNum];
+    }
+
+    public boolean isOcean (int iBodyNum)  {
+        return bOcean[iBodyNum];
+    }
+
+    public boolean isLake (int iBodyNum)  {
+        return !bOcean[iBodyNum];
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Labels the water of the terrain.  Bodies of fewer than iMinSize hexes
+     are puddles: they are turned into land (TERRAIN_NOTYPE) and left out of
+     the catalog.  iParent is a scratch buffer of one int per hex.
+     */
+    void build (byte [] iTerrain, HexTopology pTopology, int [] iParent, int iMinSize)  {
+        int iSize = iDim * iDim;
+        int i, k, n, a, b, r;
+
+        // Every water hex starts as a body of its own.  A root holds minus
+        // the size of its body; any other hex holds its parent.
+        for (i = 0; i < iSize; i++)  {
+            iParent[i] = -1;
+        }
+
+        for (i = 0; i < iSize; i++)  {
+            if (HexGrid.isWaterTerrain(iTerrain[i]))  {
+                for (k = 0; k < 6; k++)  {
+                    n = pTopology.neighbor(i, k);
+                    if (n >= 0 && HexGrid.isWaterTerrain(iTerrain[n]))  {
+                        a = find(iParent, i);
+                        b = find(iParent, n);
+                        if (a != b)  {
+                            // Union by size
+                            if (iParent[a] > iParent[b])  {
+                                r = a;
+                                a = b;
+                                b = r;
+                            }
+                            iParent[a] += iParent[b];
+                            iParent[b] = a;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Number the bodies, filling in the puddles as we go.  A root's own
+        // label doubles as the label of its body.
+        Arrays.fill(iBody, -1);
+        iCount = 0;
+        for (i = 0; i < iSize; i++)  {
+            if (!HexGrid.isWaterTerrain(iTerrain[i]))  {
+                continue;
+            }
+            r = find(iParent, i);
+            if (-iParent[r] < iMinSize)  {
+                iTerrain[i] = Hex.TERRAIN_NOTYPE;
+                continue;
+            }
+            if (iBody[r] < 0)  {
+                iBody[r] = addBody(-iParent[r], i % iDim, i / iDim);
+            }
+            iBody[i] = iBody[r];
+            include(iBody[i], i % iDim, i / iDim, iTerrain[i]);
+        }
+    }
+
+    /**
+     Finds the root of a hex, halving the path to it on the way.
+     */
+    private static int find (int [] iParent, int i)  {
+        int p;
+        while (iParent[i] >= 0)  {
+            p = iParent[i];
+            if (iParent[p] >= 0)  {
+                iParent[i] = iParent[p];
+            }
+            i = p;
+        }
+        return i;
+    }
+
+    private int addBody (int iSize, int x, int y)  {
+        if (iCount == iSizes.length)  {
+            int iLength = iCount * 2;
+            iSizes = Arrays.copyOf(iSizes, iLength);
+            iMinX = Arrays.copyOf(iMinX, iLength);
+            iMinY = Arrays.copyOf(iMinY, iLength);
+            iMaxX = Arrays.copyOf(iMaxX, iLength);
+            iMaxY = Arrays.copyOf(iMaxY, iLength);
+            bOcean = Arrays.copyOf(bOcean, iLength);
+        }
+        iSizes[iCount] = iSize;
+        iMinX[iCount] = iMaxX[iCount] = x;
+        iMinY[iCount] = iMaxY[iCount] = y;
+        bOcean[iCount] = false;
+        return iCount++;
+    }
+
+    private void include (int iBodyNum, int x, int y, byte iTerrain)  {
+        if (x < iMinX[iBodyNum])  {
+            iMinX[iBodyNum] = x;
+        }
+        if (x > iMaxX[iBodyNum])  {
+            iMaxX[iBodyNum] = x;
+        }
+        if (y > iMaxY[iBodyNum])  {
+            iMaxY[iBodyNum] = y;
+        }
+        if (iTerrain == Hex.TERRAIN_DEEPOCEAN)  {
+            bOcean[iBodyNum] = true;
+        }
+    }
+}
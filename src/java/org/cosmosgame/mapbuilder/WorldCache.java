@@ -0,0 +1,265 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The WorldCache class keeps generated worlds, keyed by
+ * MapParams.getCacheKey(), so that identical world requests do not have
+ * to be generated again.
+ *
+ * Worlds are held in memory in least-recently-used order, up to maxBytes
+ * of grid data.  If a spill directory is set, evicted worlds are written
+ * there, as WorldFiles, and read back on a later miss instead of being
+ * regenerated.
+ *
+ * Worlds generated from a random seed (MapParams.lSeed == 0) are never
+ * cached, since every request for them should give a new world.
+ *
+ * @author Odysseus Levy
+ */
+
+public class WorldCache {
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private long maxBytes = 256L * 1024 * 1024;
+    private File spillDirectory = null;
+    private long lBytes = 0;
+
+    private final LinkedHashMap<String, HexGrid> pWorlds =
+            new LinkedHashMap<String, HexGrid>(16, 0.75f, true);
+
+    private final AtomicLong lHits = new AtomicLong();
+    private final AtomicLong lMisses = new AtomicLong();
+    private final AtomicLong lEvictions = new AtomicLong();
+    private final AtomicLong lSpillHits = new AtomicLong();
+
+    public Logger logger = new Logger();
+
+
+    //-------------------------------------------------------------------
+    // Accessors & Mutators
+    //
+    public long getMaxBytes ()  {
+        return maxBytes;
+    }
+
+    public void setMaxBytes (long maxBytes)  {
+        List<Map.Entry<String, HexGrid>> pEvicted;
+        synchronized (this)  {
+            this.maxBytes = maxBytes;
+            pEvicted = evict();
+        }
+        spill(pEvicted);
+    }
+
+    public File getSpillDirectory ()  {
+        return spillDirectory;
+    }
+
+    /**
+     Sets the directory evicted worlds are written to, or null to simply
+     drop them.
+     */
+    public void setSpillDirectory (File spillDirectory)  {
+        if (spillDirectory != null)  {
+            spillDirectory.mkdirs();
+        }
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getHits ()  {
+        return lHits.get();
+    }
+
+    public long getMisses ()  {
+        return lMisses.get();
+    }
+
+    public long getEvictions ()  {
+        return lEvictions.get();
+    }
+
+    public long getSpillHits ()  {
+        return lSpillHits.get();
+    }
+
+    public synchronized int getSize ()  {
+        return pWorlds.size();
+    }
+
+    public synchronized long getBytes ()  {
+        return lBytes;
+    }
+
+
+    //-------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Returns true if worlds built from these parameters may be cached.
+     */
+    public boolean isCacheable (MapParams pParams)  {
+        return pParams.lSeed != 0;
+    }
+
+    /**
+     Returns the cached world for these parameters, or null if there is none.
+     The grid returned is shared and must not be modified.
+     */
+    public HexGrid get (MapParams pParams)  {
+        if (!isCacheable(pParams))  {
+            return null;
+        }
+        String sKey = pParams.getCacheKey();
+        HexGrid pGrid;
+
+        synchronized (this)  {
+            pGrid = pWorlds.get(sKey);
+        }
+        if (pGrid != null)  {
+            lHits.incrementAndGet();
+            return pGrid;
+        }
+
+        pGrid = readSpilled(sKey);
+        if (pGrid != null)  {
+            lSpillHits.incrementAndGet();
+            store(sKey, pGrid);
+            return pGrid;
+        }
+
+        lMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     Caches a generated world.  The grid is kept as is, so callers should
+     pass a copy if they are going to reuse it.
+     */
+    public void put (MapParams pParams, HexGrid pGrid)  {
+        if (isCacheable(pParams))  {
+            store(pParams.getCacheKey(), pGrid);
+        }
+    }
+
+    public synchronized void clear ()  {
+        pWorlds.clear();
+        lBytes = 0;
+    }
+
+    private void store (String sKey, HexGrid pGrid)  {
+        List<Map.Entry<String, HexGrid>> pEvicted;
+        synchronized (this)  {
+            HexGrid pOld = pWorlds.put(sKey, pGrid);
+            if (pOld != null)  {
+                lBytes -= pOld.getByteSize();
+            }
+            lBytes += pGrid.getByteSize();
+            pEvicted = evict();
+        }
+        spill(pEvicted);
+    }
+
+    /**
+     Drops least recently used worlds until the cache fits in maxBytes, and
+     returns them to be spilled once the lock is released.  The most recent
+     world is always kept, even if it alone is too big.
+     */
+    private List<Map.Entry<String, HexGrid>> evict ()  {
+        List<Map.Entry<String, HexGrid>> pEvicted = new ArrayList<Map.Entry<String, HexGrid>>();
+        Iterator<Map.Entry<String, HexGrid>> it = pWorlds.entrySet().iterator();
+        while (lBytes > maxBytes && pWorlds.size() > 1 && it.hasNext())  {
+            Map.Entry<String, HexGrid> pEntry = it.next();
+            pEvicted.add(new AbstractMap.SimpleImmutableEntry<String, HexGrid>(pEntry));
+            it.remove();
+            lBytes -= pEntry.getValue().getByteSize();
+            lEvictions.incrementAndGet();
+        }
+        return pEvicted;
+    }
+
+    /**
+     Writes the evicted worlds out.  It is called without the lock held, so
+     that a get() is never kept waiting on the disk.
+     */
+    private void spill (List<Map.Entry<String, HexGrid>> pEvicted)  {
+        for (Map.Entry<String, HexGrid> pEntry : pEvicted)  {
+            spill(pEntry.getKey(), pEntry.getValue());
+        }
+    }
+
+    private File spillFile (String sKey)  {
+        return new File(spillDirectory, sKey + ".world");
+    }
+
+    private void spill (String sKey, HexGrid pGrid)  {
+        if (spillDirectory == null)  {
+            return;
+        }
+        File f = spillFile(sKey);
+        if (f.exists())  {
+            return;
+        }
+        File pTemp = null;
+        try  {
+            // unique, as two threads may spill the same world at once
+            pTemp = File.createTempFile(sKey, ".tmp", spillDirectory);
+            WorldFile.write(pGrid, null, pTemp);
+            if (!pTemp.renameTo(f))  {
+                pTemp.delete();
+            }
+        }
+        catch (IOException e)  {
+            logger.error(e);
+            if (pTemp != null)  {
+                pTemp.delete();
+            }
+        }
+    }
+
+    private HexGrid readSpilled (String sKey)  {
+        File f = (spillDirectory != null) ? spillFile(sKey) : null;
+        if (f == null || !f.exists())  {
+            return null;
+        }
+        WorldFile pWorld = null;
+        try  {
+            pWorld = WorldFile.open(f);
+            return pWorld.toGrid();
+        }
+        catch (IOException e)  {
+            logger.error(e);
+            f.delete();
+            return null;
+        }
+        catch (IllegalStateException e)  {
+            logger.error(e);
+            f.delete();
+            return null;
+        }
+        finally  {
+            close(pWorld);
+        }
+    }
+
+    private static void close (java.io.Closeable c)  {
+        if (c != null)  {
+            try  {
+                c.close();
+            }
+            catch (IOException e)  {
+                // nothing more to do
+            }
+        }
+    }
+}
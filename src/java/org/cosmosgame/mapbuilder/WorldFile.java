@@ -0,0 +1,753 @@
+package org.cosmosgame.mapbuilder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The WorldFile class writes worlds to, and reads them from, a compact
+ * binary file, so that a world can be loaded instead of generated again.
+ *
+ * The file holds the grid a column (one field, for every hex) at a time,
+ * all numbers little endian:
+ *
+ *      header      "CWLD", format version, dimension, seasons, seed,
+ *                  number of columns
+ *      directory   for each column: column, encoding, offset, length
+ *      params      the MapParams of the world, as name/value pairs
+ *      columns
+ *
+ * Elevation is stored as the difference between the bits of each value
+ * and of the one before it, zigzag and varint coded, then deflated.
+ * Terrain and climate share a byte per hex when both fit in four bits.
+ * The other columns hold the values as they are, the seasonal ones
+ * season-major like HexGrid.
+ *
+ * open() reads the header and memory maps the columns, which the
+ * accessors then read in place; elevation is only inflated the first time
+ * it is asked for.  A large world can so be looked at straight away,
+ * without reading all of it; toGrid() decodes everything into a HexGrid.
+ *
+ * @author Odysseus Levy
+ */
+
+public class WorldFile implements Closeable {
+
+    //-------------------------------------------------------------------
+    // Global Constants
+    //
+    public static final int MAGIC = 0x444c5743;         // "CWLD"
+    public static final int VERSION = 1;
+
+    static final int COLUMN_ELEVATION = 0;
+    static final int COLUMN_TEMPERATURE = 1;
+    static final int COLUMN_SCALED_TEMPERATURE = 2;
+    static final int COLUMN_PRESSURE = 3;
+    static final int COLUMN_WIND = 4;
+    static final int COLUMN_RAINFALL = 5;
+    static final int COLUMN_TERRAIN = 6;
+    static final int COLUMN_CLIMATE = 7;
+    static final int COLUMN_TERRAIN_CLIMATE = 8;        // terrain << 4 | climate
+    static final int COLUMN_SHORELINE = 9;
+    static final int COLUMN_RIVER = 10;
+    static final int COLUMN_NAMES = 11;
+    private static final int NUM_COLUMNS = 12;
+
+    static final int ENCODING_RAW = 0;
+    static final int ENCODING_DELTA_DEFLATE = 1;
+    static final int ENCODING_NIBBLES = 2;
+    static final int ENCODING_NAMES = 3;
+
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 4;
+    private static final int ENTRY_BYTES = 4 + 4 + 8 + 8;
+    private static final int CHUNK = 1 << 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //-------------------------------------------------------------------
+    // Data
+    //
+    private final int iVersion;
+    private final int iDim;
+    private final int iSize;
+    private final int iNumSeasons;
+    private final long lSeed;
+    private final MapParams pParams;
+
+    private final int [] iEncodings = new int [NUM_COLUMNS];    // -1 if absent
+    private final ByteBuffer [] pColumns = new ByteBuffer [NUM_COLUMNS];
+    private volatile float [] fElevation = null;
+    private volatile String [] sNames = null;
+
+
+    //---------------------------------------------------------------------------
+    // Constructors
+    //
+    private WorldFile (FileChannel pChannel) throws IOException  {
+        long lFileSize = pChannel.size();
+        ByteBuffer pHeader = read(pChannel, 0, HEADER_BYTES);
+        if (pHeader.getInt() != MAGIC)  {
+            throw new IOException("Not a world file");
+        }
+        iVersion = pHeader.getInt();
+        if (iVersion < 1 || iVersion > VERSION)  {
+            throw new IOException("Unsupported world file version " + iVersion);
+        }
+        iDim = pHeader.getInt();
+        iNumSeasons = pHeader.getInt();
+        lSeed = pHeader.getLong();
+        int iCount = pHeader.getInt();
+        if (iDim <= 0 || iNumSeasons <= 0 || iCount < 0 || iCount > NUM_COLUMNS
+                || (long)iDim * iDim > Integer.MAX_VALUE)  {
+            throw new IOException("Corrupt world file header");
+        }
+        iSize = iDim * iDim;
+
+        Arrays.fill(iEncodings, -1);
+        ByteBuffer pDirectory = read(pChannel, HEADER_BYTES, iCount * ENTRY_BYTES);
+        for (int k = 0; k < iCount; k++)  {
+            int iColumn = pDirectory.getInt();
+            int iEncoding = pDirectory.getInt();
+            long lOffset = pDirectory.getLong();
+            long lLength = pDirectory.getLong();
+            if (iColumn < 0 || iColumn >= NUM_COLUMNS || lOffset < 0 || lLength < 0
+                    || lOffset + lLength > lFileSize)  {
+                throw new IOException("Corrupt world file directory");
+            }
+            if (lLength > Integer.MAX_VALUE)  {
+                throw new IOException("World file column too large to map");
+            }
+            iEncodings[iColumn] = iEncoding;
+            pColumns[iColumn] = pChannel.map(FileChannel.MapMode.READ_ONLY, lOffset, lLength)
+                                        .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        checkColumns();
+
+        long lParams = HEADER_BYTES + (long)iCount * ENTRY_BYTES;
+        int iParamBytes = read(pChannel, lParams, 4).getInt();
+        if (iParamBytes < 0 || lParams + 4 + iParamBytes > lFileSize)  {
+            throw new IOException("Corrupt world file params");
+        }
+        pParams = decodeParams(read(pChannel, lParams + 4, iParamBytes));
+    }
+
+
+    //-------------------------------------------------------------------
+    // Accessors
+    //
+    public int getVersion ()  {
+        return iVersion;
+    }
+
+    public int getDimension ()  {
+        return iDim;
+    }
+
+    public int getSize ()  {
+        return iSize;
+    }
+
+    public int getNumSeasons ()  {
+        return iNumSeasons;
+    }
+
+    public long getSeed ()  {
+        return lSeed;
+    }
+
+    /**
+     Returns the parameters the world was built with, or null if they were
+     not written.  Parameters this version does not know are skipped.
+     */
+    public MapParams getParams ()  {
+        return pParams;
+    }
+
+    public float getElevation (int iIDNum)  {
+        return elevations()[iIDNum];
+    }
+
+    public byte getTerrainType (int iIDNum)  {
+        if (iEncodings[COLUMN_TERRAIN_CLIMATE] >= 0)  {
+            return (byte)((pColumns[COLUMN_TERRAIN_CLIMATE].get(iIDNum) >> 4) & 0xf);
+        }
+        return pColumns[COLUMN_TERRAIN].get(iIDNum);
+    }
+
+    public byte getClimate (int iIDNum)  {
+        if (iEncodings[COLUMN_TERRAIN_CLIMATE] >= 0)  {
+            return (byte)(pColumns[COLUMN_TERRAIN_CLIMATE].get(iIDNum) & 0xf);
+        }
+        return pColumns[COLUMN_CLIMATE].get(iIDNum);
+    }
+
+    public float getTemperature (int iSeason, int iIDNum)  {
+        return pColumns[COLUMN_TEMPERATURE].getFloat(4 * (iSeason * iSize + iIDNum));
+    }
+
+    public float getScaledTemperature (int iSeason, int iIDNum)  {
+        return pColumns[COLUMN_SCALED_TEMPERATURE].getFloat(4 * (iSeason * iSize + iIDNum));
+    }
+
+    public byte getPressure (int iSeason, int iIDNum)  {
+        return pColumns[COLUMN_PRESSURE].get(iSeason * iSize + iIDNum);
+    }
+
+    public short getWind (int iSeason, int iIDNum)  {
+        return pColumns[COLUMN_WIND].getShort(2 * (iSeason * iSize + iIDNum));
+    }
+
+    public short getRainfall (int iSeason, int iIDNum)  {
+        return pColumns[COLUMN_RAINFALL].getShort(2 * (iSeason * iSize + iIDNum));
+    }
+
+    public byte getShoreline (int iIDNum)  {
+        return pColumns[COLUMN_SHORELINE].get(iIDNum);
+    }
+
+    public byte getRiver (int iIDNum)  {
+        return pColumns[COLUMN_RIVER].get(iIDNum);
+    }
+
+    /**
+     Returns the name of a hex, "(x,y)" unless it was renamed.
+     */
+    public String getName (int iIDNum)  {
+        String [] sNames = names();
+        if (sNames != null && sNames[iIDNum] != null)  {
+            return sNames[iIDNum];
+        }
+        return "("+(iIDNum % iDim)+","+(iIDNum / iDim)+")";
+    }
+
+
+    //---------------------------------------------------------------------------
+    // Methods
+    //
+    /**
+     Opens a world file, reading its header and mapping its columns.
+     */
+    public static WorldFile open (File pFile) throws IOException  {
+        RandomAccessFile pIn = new RandomAccessFile(pFile, "r");
+        try  {
+            // the mappings stay valid once the file is closed
+            return new WorldFile(pIn.getChannel());
+        }
+        finally  {
+            pIn.close();
+        }
+    }
+
+    /**
+     Drops the mapped columns; they are unmapped once they are collected.
+     The accessors must not be used afterwards.
+     */
+    public synchronized void close ()  {
+        Arrays.fill(pColumns, null);
+        fElevation = null;
+        sNames = null;
+    }
+
+    /**
+     Decodes the whole world into a new HexGrid.
+     */
+    public HexGrid toGrid ()  {
+        HexGrid pGrid = new HexGrid (iDim, iNumSeasons);
+
+        System.arraycopy(elevations(), 0, pGrid.fElevation, 0, iSize);
+        view(COLUMN_TEMPERATURE).asFloatBuffer().get(pGrid.fTemperature);
+        view(COLUMN_SCALED_TEMPERATURE).asFloatBuffer().get(pGrid.fScaledTemperature);
+        view(COLUMN_PRESSURE).get(pGrid.iPressure);
+        view(COLUMN_WIND).asShortBuffer().get(pGrid.iWind);
+        view(COLUMN_RAINFALL).asShortBuffer().get(pGrid.iRainfall);
+        if (iEncodings[COLUMN_TERRAIN_CLIMATE] >= 0)  {
+            ByteBuffer pPacked = view(COLUMN_TERRAIN_CLIMATE);
+            for (int i = 0; i < iSize; i++)  {
+                byte b = pPacked.get(i);
+                pGrid.iTerrainType[i] = (byte)((b >> 4) & 0xf);
+                pGrid.iClimate[i] = (byte)(b & 0xf);
+            }
+        }
+        else  {
+            view(COLUMN_TERRAIN).get(pGrid.iTerrainType);
+            view(COLUMN_CLIMATE).get(pGrid.iClimate);
+        }
+        view(COLUMN_SHORELINE).get(pGrid.iShoreline);
+        view(COLUMN_RIVER).get(pGrid.iRiver);
+
+        String [] sNames = names();
+        if (sNames != null)  {
+            for (int i = 0; i < iSize; i++)  {
+                if (sNames[i] != null)  {
+                    pGrid.setName(i, sNames[i]);
+                }
+            }
+        }
+        return pGrid;
+    }
+
+    /**
+     Writes the world to pFile, a column at a time straight from the grid's
+     arrays.  pParams may be null.
+     */
+    public static void write (HexGrid pGrid, MapParams pParams, File pFile) throws IOException  {
+        FileOutputStream pOut = new FileOutputStream(pFile);
+        try  {
+            write(pGrid, pParams, pOut.getChannel());
+        }
+        finally  {
+            pOut.close();
+        }
+    }
+
+    private static void write (HexGrid pGrid, MapParams pParams, FileChannel pChannel) throws IOException  {
+        boolean bPacked = fitsNibble(pGrid.iTerrainType) && fitsNibble(pGrid.iClimate);
+        boolean bNames = pGrid.getCustomNames() != null;
+        int [] iColumns = {
+                COLUMN_ELEVATION, COLUMN_TEMPERATURE, COLUMN_SCALED_TEMPERATURE, COLUMN_PRESSURE,
+                COLUMN_WIND, COLUMN_RAINFALL,
+                bPacked ? COLUMN_TERRAIN_CLIMATE : COLUMN_TERRAIN,
+                bPacked ? -1 : COLUMN_CLIMATE,
+                COLUMN_SHORELINE, COLUMN_RIVER,
+                bNames ? COLUMN_NAMES : -1 };
+        int iCount = 0;
+        for (int iColumn : iColumns)  {
+            if (iColumn >= 0)  {
+                iColumns[iCount++] = iColumn;
+            }
+        }
+
+        byte [] pParamBytes = encodeParams(pParams);
+        ByteBuffer pHeader = ByteBuffer.allocate(HEADER_BYTES + iCount * ENTRY_BYTES + 4 + pParamBytes.length)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+        pHeader.putInt(MAGIC).putInt(VERSION);
+        pHeader.putInt(pGrid.iDim).putInt(pGrid.iNumSeasons);
+        pHeader.putLong((pParams != null) ? pParams.lSeed : 0);
+        pHeader.putInt(iCount);
+        pHeader.position(pHeader.position() + iCount * ENTRY_BYTES);   // filled in below
+        pHeader.putInt(pParamBytes.length).put(pParamBytes);
+        pHeader.flip();
+        writeFully(pChannel, pHeader);
+
+        ByteBuffer pDirectory = ByteBuffer.allocate(iCount * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer pChunk = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        for (int k = 0; k < iCount; k++)  {
+            long lStart = pChannel.position();
+            int iEncoding = ENCODING_RAW;
+            switch (iColumns[k])  {
+                case COLUMN_ELEVATION:
+                    writeElevation(pChannel, pGrid.fElevation);
+                    iEncoding = ENCODING_DELTA_DEFLATE;
+                    break;
+                case COLUMN_TEMPERATURE:
+                    writeFloats(pChannel, pChunk, pGrid.fTemperature);
+                    break;
+                case COLUMN_SCALED_TEMPERATURE:
+                    writeFloats(pChannel, pChunk, pGrid.fScaledTemperature);
+                    break;
+                case COLUMN_PRESSURE:
+                    writeBytes(pChannel, pChunk, pGrid.iPressure);
+                    break;
+                case COLUMN_WIND:
+                    writeShorts(pChannel, pChunk, pGrid.iWind);
+                    break;
+                case COLUMN_RAINFALL:
+                    writeShorts(pChannel, pChunk, pGrid.iRainfall);
+                    break;
+                case COLUMN_TERRAIN:
+                    writeBytes(pChannel, pChunk, pGrid.iTerrainType);
+                    break;
+                case COLUMN_CLIMATE:
+                    writeBytes(pChannel, pChunk, pGrid.iClimate);
+                    break;
+                case COLUMN_TERRAIN_CLIMATE:
+                    writeNibbles(pChannel, pChunk, pGrid.iTerrainType, pGrid.iClimate);
+                    iEncoding = ENCODING_NIBBLES;
+                    break;
+                case COLUMN_SHORELINE:
+                    writeBytes(pChannel, pChunk, pGrid.iShoreline);
+                    break;
+                case COLUMN_RIVER:
+                    writeBytes(pChannel, pChunk, pGrid.iRiver);
+                    break;
+                case COLUMN_NAMES:
+                    writeFully(pChannel, encodeNames(pGrid.getCustomNames()));
+                    iEncoding = ENCODING_NAMES;
+                    break;
+            }
+            pDirectory.putInt(iColumns[k]).putInt(iEncoding);
+            pDirectory.putLong(lStart).putLong(pChannel.position() - lStart);
+        }
+        pDirectory.flip();
+        long lPos = HEADER_BYTES;
+        while (pDirectory.hasRemaining())  {
+            lPos += pChannel.write(pDirectory, lPos);
+        }
+    }
+
+    /**
+     Checks that every column a grid needs is there, with the right length.
+     */
+    private void checkColumns () throws IOException  {
+        long lSeasonal = (long)iNumSeasons * iSize;
+        checkColumn(COLUMN_ELEVATION, ENCODING_DELTA_DEFLATE, -1);
+        checkColumn(COLUMN_TEMPERATURE, ENCODING_RAW, 4 * lSeasonal);
+        checkColumn(COLUMN_SCALED_TEMPERATURE, ENCODING_RAW, 4 * lSeasonal);
+        checkColumn(COLUMN_PRESSURE, ENCODING_RAW, lSeasonal);
+        checkColumn(COLUMN_WIND, ENCODING_RAW, 2 * lSeasonal);
+        checkColumn(COLUMN_RAINFALL, ENCODING_RAW, 2 * lSeasonal);
+        if (iEncodings[COLUMN_TERRAIN_CLIMATE] >= 0)  {
+            checkColumn(COLUMN_TERRAIN_CLIMATE, ENCODING_NIBBLES, iSize);
+        }
+        else  {
+            checkColumn(COLUMN_TERRAIN, ENCODING_RAW, iSize);
+            checkColumn(COLUMN_CLIMATE, ENCODING_RAW, iSize);
+        }
+        checkColumn(COLUMN_SHORELINE, ENCODING_RAW, iSize);
+        checkColumn(COLUMN_RIVER, ENCODING_RAW, iSize);
+        if (iEncodings[COLUMN_NAMES] >= 0)  {
+            checkColumn(COLUMN_NAMES, ENCODING_NAMES, -1);
+        }
+    }
+
+    private void checkColumn (int iColumn, int iEncoding, long lLength) throws IOException  {
+        if (iEncodings[iColumn] != iEncoding
+                || (lLength >= 0 && pColumns[iColumn].capacity() != lLength))  {
+            throw new IOException("Corrupt world file column " + iColumn);
+        }
+    }
+
+    /**
+     Returns the column, from its start, in little endian order.
+     */
+    private ByteBuffer view (int iColumn)  {
+        ByteBuffer pColumn = pColumns[iColumn];
+        if (pColumn == null)  {
+            throw new IllegalStateException("The world file is closed");
+        }
+        return pColumn.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     Returns the elevations, inflating them the first time.
+     */
+    private float [] elevations ()  {
+        float [] fValues = fElevation;
+        if (fValues == null)  {
+            synchronized (this)  {
+                fValues = fElevation;
+                if (fValues == null)  {
+                    fValues = readElevation(view(COLUMN_ELEVATION), iSize);
+                    fElevation = fValues;
+                }
+            }
+        }
+        return fValues;
+    }
+
+    private String [] names ()  {
+        if (iEncodings[COLUMN_NAMES] < 0)  {
+            return null;
+        }
+        String [] sValues = sNames;
+        if (sValues == null)  {
+            synchronized (this)  {
+                sValues = sNames;
+                if (sValues == null)  {
+                    sValues = decodeNames(view(COLUMN_NAMES), iSize);
+                    sNames = sValues;
+                }
+            }
+        }
+        return sValues;
+    }
+
+    //-------------------------------------------------------------------
+    // Elevation
+    //
+    /**
+     Writes the elevations as zigzag/varint coded differences between the
+     bits of successive values, deflated.  Neighbouring hexes have close
+     elevations, so most differences take two or three bytes before
+     deflating.
+     */
+    private static void writeElevation (FileChannel pChannel, float [] fValues) throws IOException  {
+        byte [] pRaw = new byte [CHUNK];
+        byte [] pOut = new byte [CHUNK];
+        Deflater pDeflater = new Deflater();
+        try  {
+            int iPrev = 0, n = 0;
+            for (float f : fValues)  {
+                int iBits = Float.floatToRawIntBits(f);
+                int d = iBits - iPrev;
+                iPrev = iBits;
+                int z = (d << 1) ^ (d >> 31);
+                while ((z & ~0x7f) != 0)  {
+                    pRaw[n++] = (byte)((z & 0x7f) | 0x80);
+                    z >>>= 7;
+                }
+                pRaw[n++] = (byte)z;
+                if (n > CHUNK - 5)  {
+                    pDeflater.setInput(pRaw, 0, n);
+                    while (!pDeflater.needsInput())  {
+                        writeFully(pChannel, ByteBuffer.wrap(pOut, 0, pDeflater.deflate(pOut)));
+                    }
+                    n = 0;
+                }
+            }
+            pDeflater.setInput(pRaw, 0, n);
+            pDeflater.finish();
+            while (!pDeflater.finished())  {
+                writeFully(pChannel, ByteBuffer.wrap(pOut, 0, pDeflater.deflate(pOut)));
+            }
+        }
+        finally  {
+            pDeflater.end();
+        }
+    }
+
+    private static float [] readElevation (ByteBuffer pColumn, int iSize)  {
+        float [] fValues = new float [iSize];
+        byte [] pIn = new byte [CHUNK];
+        byte [] pRaw = new byte [CHUNK];
+        Inflater pInflater = new Inflater();
+        try  {
+            int i = 0, iPrev = 0, z = 0, iShift = 0;
+            while (i < iSize)  {
+                if (pInflater.needsInput())  {
+                    int n = Math.min(CHUNK, pColumn.remaining());
+                    if (n == 0)  {
+                        throw new IllegalStateException("Truncated elevation column");
+                    }
+                    pColumn.get(pIn, 0, n);
+                    pInflater.setInput(pIn, 0, n);
+                }
+                int n = pInflater.inflate(pRaw);
+                if (n == 0 && (pInflater.finished() || pInflater.needsDictionary()))  {
+                    throw new IllegalStateException("Truncated elevation column");
+                }
+                for (int k = 0; k < n && i < iSize; k++)  {
+                    z |= (pRaw[k] & 0x7f) << iShift;
+                    if ((pRaw[k] & 0x80) != 0)  {
+                        iShift += 7;
+                        continue;
+                    }
+                    iPrev += (z >>> 1) ^ -(z & 1);
+                    fValues[i++] = Float.intBitsToFloat(iPrev);
+                    z = 0;
+                    iShift = 0;
+                }
+            }
+            return fValues;
+        }
+        catch (DataFormatException e)  {
+            throw new IllegalStateException("Corrupt elevation column", e);
+        }
+        finally  {
+            pInflater.end();
+        }
+    }
+
+    //-------------------------------------------------------------------
+    // Raw columns
+    //
+    private static void writeFloats (FileChannel pChannel, ByteBuffer pChunk, float [] fValues) throws IOException  {
+        int iPer = pChunk.capacity() / 4;
+        for (int i = 0; i < fValues.length; i += iPer)  {
+            int n = Math.min(iPer, fValues.length - i);
+            pChunk.clear();
+            pChunk.asFloatBuffer().put(fValues, i, n);
+            pChunk.limit(4 * n);
+            writeFully(pChannel, pChunk);
+        }
+    }
+
+    private static void writeShorts (FileChannel pChannel, ByteBuffer pChunk, short [] iValues) throws IOException  {
+        int iPer = pChunk.capacity() / 2;
+        for (int i = 0; i < iValues.length; i += iPer)  {
+            int n = Math.min(iPer, iValues.length - i);
+            pChunk.clear();
+            pChunk.asShortBuffer().put(iValues, i, n);
+            pChunk.limit(2 * n);
+            writeFully(pChannel, pChunk);
+        }
+    }
+
+    private static void writeBytes (FileChannel pChannel, ByteBuffer pChunk, byte [] iValues) throws IOException  {
+        int iPer = pChunk.capacity();
+        for (int i = 0; i < iValues.length; i += iPer)  {
+            int n = Math.min(iPer, iValues.length - i);
+            pChunk.clear();
+            pChunk.put(iValues, i, n);
+            pChunk.flip();
+            writeFully(pChannel, pChunk);
+        }
+    }
+
+    private static void writeNibbles (FileChannel pChannel, ByteBuffer pChunk,
+                                      byte [] iHigh, byte [] iLow) throws IOException
+    {
+        int iPer = pChunk.capacity();
+        for (int i = 0; i < iHigh.length; i += iPer)  {
+            int n = Math.min(iPer, iHigh.length - i);
+            pChunk.clear();
+            for (int k = i; k < i + n; k++)  {
+                pChunk.put((byte)((iHigh[k] << 4) | iLow[k]));
+            }
+            pChunk.flip();
+            writeFully(pChannel, pChunk);
+        }
+    }
+
+    private static boolean fitsNibble (byte [] iValues)  {
+        for (byte b : iValues)  {
+            if ((b & ~0xf) != 0)  {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-------------------------------------------------------------------
+    // Names and params
+    //
+    /**
+     Names are stored as a count, then the hex id and UTF-8 bytes of each.
+     */
+    private static ByteBuffer encodeNames (String [] sNames)  {
+        int iCount = 0, iBytes = 4;
+        byte [][] pBytes = new byte [sNames.length][];
+        for (int i = 0; i < sNames.length; i++)  {
+            if (sNames[i] != null)  {
+                pBytes[i] = sNames[i].getBytes(UTF8);
+                iBytes += 8 + pBytes[i].length;
+                iCount++;
+            }
+        }
+        ByteBuffer pOut = ByteBuffer.allocate(iBytes).order(ByteOrder.LITTLE_ENDIAN);
+        pOut.putInt(iCount);
+        for (int i = 0; i < sNames.length; i++)  {
+            if (pBytes[i] != null)  {
+                pOut.putInt(i).putInt(pBytes[i].length).put(pBytes[i]);
+            }
+        }
+        pOut.flip();
+        return pOut;
+    }
+
+    /**
+     A column that does not hold what encodeNames wrote throws an
+     IllegalStateException, as a corrupt elevation column does.
+     */
+    private static String [] decodeNames (ByteBuffer pIn, int iSize)  {
+        String [] sNames = new String [iSize];
+        if (pIn.remaining() < 4)  {
+            throw new IllegalStateException("Truncated names column");
+        }
+        int iCount = pIn.getInt();
+        if (iCount < 0 || iCount > iSize)  {
+            throw new IllegalStateException("Corrupt names column: " + iCount + " names");
+        }
+        for (int k = 0; k < iCount; k++)  {
+            if (pIn.remaining() < 8)  {
+                throw new IllegalStateException("Truncated names column");
+            }
+            int i = pIn.getInt();
+            int iLength = pIn.getInt();
+            if (i < 0 || i >= iSize || iLength < 0 || iLength > pIn.remaining())  {
+                throw new IllegalStateException("Corrupt names column: hex " + i + ", " + iLength + " bytes");
+            }
+            byte [] pBytes = new byte [iLength];
+            pIn.get(pBytes);
+            sNames[i] = new String(pBytes, UTF8);
+        }
+        return sNames;
+    }
+
+    /**
+     Params are stored as a count, then the UTF-8 name and value (as
+     MapParams.getValue() gives it) of each public field.
+     */
+    private static byte [] encodeParams (MapParams pParams)  {
+        if (pParams == null)  {
+            return new byte [0];
+        }
+        Field [] pFields = MapParams.getFields();
+        byte [][] pNames = new byte [pFields.length][];
+        byte [][] pValues = new byte [pFields.length][];
+        int iBytes = 4;
+        for (int k = 0; k < pFields.length; k++)  {
+            pNames[k] = pFields[k].getName().getBytes(UTF8);
+            pValues[k] = pParams.getValue(pFields[k].getName()).getBytes(UTF8);
+            iBytes += 8 + pNames[k].length + pValues[k].length;
+        }
+        ByteBuffer pOut = ByteBuffer.allocate(iBytes).order(ByteOrder.LITTLE_ENDIAN);
+        pOut.putInt(pFields.length);
+        for (int k = 0; k < pFields.length; k++)  {
+            pOut.putInt(pNames[k].length).put(pNames[k]);
+            pOut.putInt(pValues[k].length).put(pValues[k]);
+        }
+        return pOut.array();
+    }
+
+    private static MapParams decodeParams (ByteBuffer pIn) throws IOException  {
+        if (!pIn.hasRemaining())  {
+            return null;
+        }
+        try  {
+            MapParams pParams = new MapParams();
+            int iCount = pIn.getInt();
+            for (int k = 0; k < iCount; k++)  {
+                String sName = string(pIn);
+                String sValue = string(pIn);
+                try  {
+                    pParams.setValue(sName, sValue);
+                }
+                catch (IllegalArgumentException e)  {
+                    // written by a version with other parameters
+                }
+            }
+            return pParams;
+        }
+        catch (RuntimeException e)  {
+            throw new IOException("Corrupt world file params: " + e);
+        }
+    }
+
+    private static String string (ByteBuffer pIn)  {
+        byte [] pBytes = new byte [pIn.getInt()];
+        pIn.get(pBytes);
+        return new String(pBytes, UTF8);
+    }
+
+    //-------------------------------------------------------------------
+    // Channels
+    //
+    private static ByteBuffer read (FileChannel pChannel, long lPos, int iBytes) throws IOException  {
+        ByteBuffer pBuffer = ByteBuffer.allocate(iBytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (pBuffer.hasRemaining())  {
+            int n = pChannel.read(pBuffer, lPos + pBuffer.position());
+            if (n < 0)  {
+                throw new IOException("Truncated world file");
+            }
+        }
+        pBuffer.flip();
+        return pBuffer;
+    }
+
+    private static void writeFully (FileChannel pChannel, ByteBuffer pBuffer) throws IOException  {
+        while (pBuffer.hasRemaining())  {
+            pChannel.write(pBuffer);
+        }
+    }
+}